@@ -3,27 +3,56 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min) over any number of columns, grouped by any number of columns.
+ * <p>
+ * Groups are kept in a {@link GroupTable}.  Once it is full, the tuples of
+ * groups not in it are split into FANOUT partitions on the hash of their
+ * group and written to spill files; each partition holds whole groups, so
+ * once the groups in memory are returned, the partitions are aggregated
+ * one after another, and split again if they don't fit either.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
-    private Aggregator ag;
-    private OpIterator itr;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    // set if this aggregate combines the results of partial aggregates
+    private boolean merging = false;
+    // set if this aggregate is over part of the input of a merging one
+    private boolean partial = false;
+
     /**
-     * Constructor.
-     * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntegerAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
-     * 
+     * Number of partitions that the tuples of groups not fitting in
+     * {@link BufferPool#getOperatorMemory()} are split into.
+     */
+    public final static int FANOUT = 16;
+
+    /** A partition of the input still to be aggregated. */
+    private static class Partition {
+        final SpillFile file;
+        final int level;
+
+        Partition(SpillFile file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    transient private TupleDesc td = null;
+    transient private GroupTable table = null;
+    transient private int out = 0;                   // next group of table to return
+    transient private int level = 0;                 // partitioning level of the input of table
+    transient private SpillFile[] parts = null;      // tuples of that input not in table
+    transient private LinkedList<Partition> pending = new LinkedList<Partition>();
+
+    /**
+     * Constructor for a single aggregate, grouped on at most one column.
+     * The groups are kept in a {@link GroupTable}, as those of
+     * {@link IntegerAggregator} and {@link StringAggregator} are.
+     *
      * @param child
      *            The OpIterator that is feeding us tuples.
      * @param afield
@@ -36,12 +65,88 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for any number of aggregates and group by columns.  Output
+     * tuples hold the group by fields, in order, followed by the aggregates.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result, none if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator of each of afields
+     * @throws IllegalArgumentException
+     *            if an aggregate other than COUNT is over a string column, or
+     *            is SUM_COUNT or SC_AVG
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length != aops.length)
+            throw new IllegalArgumentException("one operator per aggregate field");
+        for (int j = 0; j < afields.length; j++) {
+            if (aops[j] == Aggregator.Op.SUM_COUNT || aops[j] == Aggregator.Op.SC_AVG)
+                throw new IllegalArgumentException("unsupported aggregate " + aops[j]);
+            if (aops[j] != Aggregator.Op.COUNT
+                    && child.getTupleDesc().getFieldType(afields[j]) != Type.INT_TYPE)
+                throw new IllegalArgumentException(aops[j] + " over a string field");
+        }
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
-        this.itr = null;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+    }
 
+    /**
+     * Returns an aggregate over a part of an input, such as the pipeline of
+     * an {@link Exchange}, whose results {@link #merging} combines.  Unlike
+     * other aggregates without group by fields, it returns nothing if its
+     * part has no tuples, so that no MIN or MAX of 0 is combined for it.
+     *
+     * @see #Aggregate(OpIterator, int[], int[], Aggregator.Op[])
+     */
+    public static Aggregate partial(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        Aggregate a = new Aggregate(child, afields, gfields, aops);
+        a.partial = true;
+        return a;
+    }
+
+    /**
+     * Returns an aggregate that combines the results of partial aggregates,
+     * such as those of the pipelines of an {@link Exchange}, each over a
+     * part of the same input and with the same group by fields and
+     * aggregates.  Its output is that of a single aggregate over the whole
+     * input, names included.
+     *
+     * @param partials
+     *            the results of the partial aggregates (see {@link #partial})
+     * @param numGroupFields
+     *            the number of group by fields of the partial aggregates
+     * @param aops
+     *            the aggregates computed; AVG can't be combined
+     */
+    public static Aggregate merging(OpIterator partials, int numGroupFields, Aggregator.Op[] aops) {
+        int[] gfields = new int[numGroupFields];
+        for (int c = 0; c < numGroupFields; c++)
+            gfields[c] = c;
+        int[] afields = new int[aops.length];
+        Aggregator.Op[] combine = new Aggregator.Op[aops.length];
+        for (int j = 0; j < aops.length; j++) {
+            afields[j] = numGroupFields + j;
+            if (aops[j] == Aggregator.Op.AVG)
+                throw new IllegalArgumentException("can't combine averages");
+            // counts add up
+            combine[j] = aops[j] == Aggregator.Op.COUNT ? Aggregator.Op.SUM : aops[j];
+        }
+        Aggregate a = new Aggregate(partials, afields, gfields, combine);
+        a.merging = true;
+        return a;
     }
 
     /**
@@ -51,10 +156,18 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
 	// some code goes here
-        if(gfield == Aggregator.NO_GROUPING) {
+        if(gfields.length == 0) {
             return Aggregator.NO_GROUPING;
         }
-	    return gfield;
+	    return gfields[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples, none if
+     *         there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
@@ -64,10 +177,10 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 	// some code goes here
-        if(gfield == Aggregator.NO_GROUPING) {
+        if(gfields.length == 0) {
             return null;
         }
-	    return  child.getTupleDesc().getFieldName(gfield);
+	    return  child.getTupleDesc().getFieldName(gfields[0]);
     }
 
     /**
@@ -75,7 +188,14 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
 	// some code goes here
-	    return afield;
+	    return afields[0];
+    }
+
+    /**
+     * @return the aggregate fields
+     * */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -84,7 +204,7 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
 	// some code goes here
-	    return child.getTupleDesc().getFieldName(afield);
+	    return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
@@ -92,7 +212,14 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-	    return aop;
+	    return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate field
+     * */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -105,31 +232,98 @@ public class Aggregate extends Operator {
         child.open();
         super.open();
 
-        if(child.getTupleDesc().getFieldType(afield) == Type.INT_TYPE) {
-            if(gfield == Aggregator.NO_GROUPING) {
-                ag = new IntegerAggregator(gfield, Type.INT_TYPE, afield, aop);
-            } else {
-                ag = new IntegerAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
+        td = getTupleDesc();
+        table = new GroupTable(child.getTupleDesc(), gfields, afields, aops);
+        level = 0;
+        TupleBatch b;
+        int[] rejected = new int[0];
+        while((b = TupleBatch.nextBatch(child)) != null) {
+            if(rejected.length < b.numRows()) {
+                rejected = new int[b.numRows()];
             }
-
-        } else {
-            if(gfield == Aggregator.NO_GROUPING) {
-                ag = new StringAggregator(gfield, Type.INT_TYPE, afield, aop);
-            } else {
-                ag = new StringAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
+            int n = table.mergeBatch(b, rejected);
+            for(int i = 0; i < n; i++) {
+                spill(table.hash(b, rejected[i]), b.getTuple(rejected[i]));
             }
-
         }
+        child.close();
+        endPartitions();
+        out = 0;
+    }
 
+    /** @return the partition of a group hash at the given level, in [0, FANOUT) */
+    private static int partition(int h, int level) {
+        // a different hash per level, so that a partition splits again
+        h += level * 0x61C88647;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % FANOUT;
+    }
 
+    /** Writes t, whose group hash is h and isn't in table, to its partition. */
+    private void spill(int h, Tuple t) throws DbException {
+        if(parts == null) {
+            parts = new SpillFile[FANOUT];
+        }
+        int p = partition(h, level);
+        if(parts[p] == null) {
+            parts[p] = new SpillFile(t.getTupleDesc());
+        }
+        parts[p].add(t);
+    }
 
-        while(child.hasNext()) {
-            Tuple t = child.next();
-            ag.mergeTupleIntoGroup(t);
+    /** Queues the partitions written while filling table. */
+    private void endPartitions() {
+        if(parts == null) {
+            return;
         }
-        child.close();
-        itr = ag.iterator();
-        itr.open();
+        for(SpillFile f : parts) {
+            if(f != null) {
+                pending.push(new Partition(f, level + 1));
+            }
+        }
+        parts = null;
+    }
+
+    /**
+     * @return the next group, aggregating the next pending partition once the
+     *         groups of table are all returned, or null if there are no more
+     */
+    private Tuple nextGroup() throws DbException, TransactionAbortedException {
+        if(table == null) {
+            return null;
+        }
+        while(out >= table.numGroups()) {
+            if(pending.isEmpty()) {
+                return null;
+            }
+            // every group of the partition is in it, and in no other
+            Partition p = pending.pop();
+            table.clear();
+            level = p.level;
+            OpIterator it = p.file.iterator();
+            it.open();
+            while(it.hasNext()) {
+                Tuple t = it.next();
+                int h = table.hash(t);
+                if(!table.merge(t, h)) {
+                    spill(h, t);
+                }
+            }
+            it.close();
+            p.file.delete();
+            endPartitions();
+            out = 0;
+        }
+        if(partial && gfields.length == 0 && table.count(out) == 0) {
+            // the part is empty: nothing to combine
+            out++;
+            return null;
+        }
+        return table.result(out++, td);
     }
 
     /**
@@ -141,26 +335,35 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
-        if(itr.hasNext()) {
-            return itr.next();
+        return nextGroup();
+    }
+
+    /**
+     * The child is always consumed in batches (see open); this returns the
+     * group results as batches too.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        Tuple t = nextGroup();
+        if(t == null) {
+            return null;
+        }
+        TupleBatch b = new TupleBatch(t.getTupleDesc());
+        b.add(t);
+        while(!b.isFull() && (t = nextGroup()) != null) {
+            b.add(t);
         }
-	    return null;
+        return b;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
         close(); // 或许不需要
         open(); // 或许不需要
-        // 使用以下两个可能会性能更好。
-        // itr = ag.iterator();
-        // itr.open();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by the aggregate value columns.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -169,13 +372,18 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
-        if(gfield == Aggregator.NO_GROUPING) {
-            return new TupleDesc(new Type[]{Type.INT_TYPE}, new String[] { aop.toString() + "(" +
-                    child.getTupleDesc().getFieldName(afield) + ")"});
+        TupleDesc ctd = child.getTupleDesc();
+        Type tyArr[] = new Type[gfields.length + afields.length];
+        String str[] = new String[tyArr.length];
+        for(int c = 0; c < gfields.length; c++) {
+            tyArr[c] = ctd.getFieldType(gfields[c]);
+            str[c] = ctd.getFieldName(gfields[c]);
+        }
+        for(int j = 0; j < afields.length; j++) {
+            tyArr[gfields.length + j] = Type.INT_TYPE;
+            str[gfields.length + j] = merging ? ctd.getFieldName(afields[j])
+                    : aops[j].toString() + "(" + ctd.getFieldName(afields[j]) + ")";
         }
-        Type tyArr[] = new Type[] { child.getTupleDesc().getFieldType(gfield), Type.INT_TYPE};
-        String str[] = new String[] {child.getTupleDesc().getFieldName(gfield),  aop.toString() + "(" +
-                    child.getTupleDesc().getFieldName(afield) + ")"};
 	    return new TupleDesc(tyArr, str);
     }
 
@@ -183,8 +391,19 @@ public class Aggregate extends Operator {
 	// some code goes here
         // child.close(); bug!!!
         super.close();
-        itr = null;
-        ag = null;
+        table = null;
+        if(parts != null) {
+            for(SpillFile f : parts) {
+                if(f != null) {
+                    f.delete();
+                }
+            }
+            parts = null;
+        }
+        for(Partition p : pending) {
+            p.file.delete();
+        }
+        pending.clear();
     }
 
     @Override
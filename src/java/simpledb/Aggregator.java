@@ -76,6 +76,14 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every selected row of a batch, as mergeTupleIntoGroup does for
+     * one tuple, reading the fields straight from the column vectors.
+     *
+     * @param b the batch containing an aggregate field and a group-by field
+     */
+    public void mergeBatch(TupleBatch b);
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
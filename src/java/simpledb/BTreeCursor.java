@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * Helper class that searches a B+ Tree File for one predicate after
+ * another, as an index nested loops join does. The cursor remembers the
+ * pages of its last descent and the range of keys below each of them; a
+ * new search climbs back only as far as the lowest of those pages whose
+ * range holds the key, and descends from there. When the keys searched
+ * for ascend, most searches start right at the leaf the last one ended on.
+ */
+class BTreeCursor extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate ipred = null;
+
+	// the pages of the last descent from the root, and for each the range
+	// (lows[i], highs[i]] of the keys below it; a null bound is open
+	ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+	ArrayList<Field> lows = new ArrayList<Field>();
+	ArrayList<Field> highs = new ArrayList<Field>();
+	int internalPagesRead = 0;
+
+	/**
+	 * Constructor for this cursor
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public BTreeCursor(BTreeFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Open this cursor at the root; it returns no tuples until it is
+	 * positioned with seek
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		path.clear();
+		lows.clear();
+		highs.clear();
+		path.add(rootPtr.getRootId());
+		lows.add(null);
+		highs.add(null);
+		ipred = null;
+		it = null;
+		curp = null;
+	}
+
+	/**
+	 * @return the number of internal pages read by the searches so far
+	 */
+	int internalPagesRead() {
+		return internalPagesRead;
+	}
+
+	/** @return true if the range of keys below level d of the path holds key */
+	private boolean covers(int d, Field key) {
+		Field low = lows.get(d);
+		Field high = highs.get(d);
+		if (key == null)
+			return low == null;
+		return (low == null || key.compare(Op.GREATER_THAN, low))
+				&& (high == null || key.compare(Op.LESS_THAN_OR_EQ, high));
+	}
+
+	/**
+	 * Position this cursor on the first tuple that may satisfy ipred; the
+	 * tuples it returns next are those satisfying ipred, in key order.
+	 * 
+	 * @param ipred - the predicate to filter on
+	 */
+	public void seek(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		super.close();
+		this.ipred = ipred;
+		Field key = null;
+		if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			key = ipred.getField();
+		}
+
+		int d = path.size() - 1;
+		while (d > 0 && !covers(d, key))
+			d--;
+		while (path.size() > d + 1) {
+			path.remove(path.size() - 1);
+			lows.remove(lows.size() - 1);
+			highs.remove(highs.size() - 1);
+		}
+
+		// descend as findLeafPage does, to the left-most leaf that may hold key
+		BTreePageId pid = path.get(d);
+		while (pid.pgcateg() != BTreePageId.LEAF) {
+			BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			internalPagesRead++;
+			Iterator<BTreeEntry> iter = page.iterator();
+			if (!iter.hasNext())
+				throw new DbException("seek: Empty internal page, unexpected");
+			Field low = lows.get(lows.size() - 1);
+			Field high = highs.get(highs.size() - 1);
+			BTreeEntry prev = null;
+			BTreeEntry cur = iter.next();
+			if (key != null) {
+				while (iter.hasNext() && cur.getKey().compare(Op.LESS_THAN, key)) {
+					prev = cur;
+					cur = iter.next();
+				}
+			}
+			if (key != null && cur.getKey().compare(Op.LESS_THAN, key)) {
+				pid = cur.getRightChild();
+				low = cur.getKey();
+			} else {
+				pid = cur.getLeftChild();
+				if (prev != null)
+					low = prev.getKey();
+				high = cur.getKey();
+			}
+			path.add(pid);
+			lows.add(low);
+			highs.add(high);
+		}
+		curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		it = curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple satisfying the predicate of the last seek, from the
+	 * current page or from the pages to its right.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field k = t.getField(f.keyField());
+				if (k.compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				}
+				else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ
+						|| (ipred.getOp() == Op.EQUALS && k.compare(Op.GREATER_THAN, ipred.getField()))) {
+					// past the last tuple that can match
+					it = null;
+					return null;
+				}
+			}
+
+			BTreePageId nextp = curp.getRightSiblingId();
+			if (nextp == null) {
+				it = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this cursor back to the first tuple of its last seek
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		if (ipred != null)
+			seek(ipred);
+	}
+
+	/**
+	 * close the cursor
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+		path.clear();
+		lows.clear();
+		highs.clear();
+	}
+}
@@ -14,6 +14,7 @@ public class BTreeScan implements OpIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private int tableid;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -60,6 +61,28 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the transaction this scan is running as a part of
+	 */
+	public TransactionId getTransactionId() {
+		return tid;
+	}
+
+	/**
+	 * @return the index predicate the scanned tuples match, or null if the
+	 *         scan returns all of them
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -74,6 +97,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
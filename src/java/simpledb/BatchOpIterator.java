@@ -0,0 +1,24 @@
+package simpledb;
+
+/**
+ * An OpIterator that can also hand out its results a batch at a time, as
+ * column vectors (see {@link TupleBatch}), instead of one Tuple per call.
+ * <p>
+ * After open() or rewind() a consumer reads either with hasNext()/next()
+ * or with nextBatch(), not a mix of the two.  Operators that only work a
+ * tuple at a time are read in batches with
+ * {@link TupleBatch#nextBatch(OpIterator)}, and a BatchOpIterator can be
+ * handed to a tuple-only consumer through {@link TupleBatch#tuples}.
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /**
+     * Returns the next batch of results.  The batch belongs to the caller;
+     * the iterator does not reuse it.
+     *
+     * @return a batch with at least one selected row, or null if there are
+     *         no more results
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -6,9 +6,26 @@ import java.lang.reflect.Array;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
+/**
+ * Page-level two-phase lock table.  There is no lock manager wide monitor:
+ * each entry of the lock table is its own monitor and doubles as the
+ * condition variable its waiters sleep on, so requests on different pages
+ * never contend and a blocked request is woken exactly when a holder of
+ * its page lets go.
+ * <p>
+ * Deadlocks are detected, not timed out: every request that has to block
+ * adds its edges to a {@link WaitForGraph} and looks for a cycle through
+ * itself.  If there is one, a victim is chosen among the transactions on
+ * the cycle according to the {@link DeadlockVictimPolicy}; if the victim is
+ * somebody else, it is woken up and aborts itself.
+ */
 class LockManager {
     enum LockType {
         SLock, XLock
@@ -19,6 +36,11 @@ class LockManager {
         LockType type;
         PageId obj;
         ArrayList<TransactionId> holders;
+        // transactions blocked on this entry
+        HashSet<TransactionId> waiters;
+        // set once the entry has been dropped from the lock table; anybody
+        // still holding a reference to it must look the page up again
+        boolean removed;
 
         /*
         public boolean isBlocked() {
@@ -34,6 +56,8 @@ class LockManager {
             this.type = t;
             this.obj = obj;
             this.holders = holders;
+            this.waiters = new HashSet<>();
+            this.removed = false;
         }
 
         public void setType(LockType type) {
@@ -64,6 +88,10 @@ class LockManager {
             if (type == LockType.SLock) {
                 if (!holders.contains(tid)) {
                     holders.add(tid);
+                    // whoever waits on this page now waits for tid as well
+                    for (TransactionId waiter : waiters) {
+                        waitForGraph.addEdge(waiter, tid);
+                    }
                 }
                 return tid;
             }
@@ -72,156 +100,245 @@ class LockManager {
     }
 
     private ConcurrentHashMap<PageId, ObjLock> lockTable;
-    private ConcurrentHashMap<TransactionId, ArrayList<PageId>> transactionTable;
+    private ConcurrentHashMap<TransactionId, Set<PageId>> transactionTable;
+
+    private final WaitForGraph waitForGraph;
+    // the entry each blocked transaction sleeps on, so that it can be woken
+    // up when it is chosen as a deadlock victim
+    private final ConcurrentHashMap<TransactionId, ObjLock> waitingOn;
+    // victims that have not noticed yet that they must abort
+    private final Set<TransactionId> victims;
+    private volatile DeadlockVictimPolicy victimPolicy;
 
     public LockManager(int lockTabCap, int transTabCap) {
         this.lockTable = new ConcurrentHashMap<>(lockTabCap);
         this.transactionTable = new ConcurrentHashMap<>(transTabCap);
+        this.waitForGraph = new WaitForGraph();
+        this.waitingOn = new ConcurrentHashMap<>();
+        this.victims = ConcurrentHashMap.newKeySet();
+        this.victimPolicy = DeadlockVictimPolicy.YOUNGEST;
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-        ArrayList<PageId> lockList = getLockList(tid);
-        return lockList != null && lockList.contains(pid);
+    public void setVictimPolicy(DeadlockVictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
     }
 
-    private synchronized void block(PageId what, long start, long timeout)
-            throws TransactionAbortedException {
-        // activate blocking
-        // lockTable.get(what).setBlocked(true);
+    public DeadlockVictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
 
-        if (System.currentTimeMillis() - start > timeout) {
-            // System.out.println(Thread.currentThread().getId() + ": aborted");
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> lockSet = transactionTable.get(tid);
+        return lockSet != null && lockSet.contains(pid);
+    }
+
+    /**
+     * Block tid on lock until a holder releases it.  Must be called with the
+     * monitor of lock held.
+     *
+     * @return a deadlock victim other than tid that must be woken up before
+     *         tid retries, or null if tid did wait
+     * @throws TransactionAbortedException if tid has to abort to break a deadlock
+     */
+    private TransactionId block(TransactionId tid, ObjLock lock)
+            throws TransactionAbortedException {
+        if (victims.remove(tid)) {
             throw new TransactionAbortedException();
         }
 
+        lock.waiters.add(tid);
+        waitingOn.put(tid, lock);
+        waitForGraph.setWaitsFor(tid, lock.getHolders());
         try {
-            wait(timeout);
-            if (System.currentTimeMillis() - start > timeout) {
-                // System.out.println(Thread.currentThread().getId() + ": aborted");
+            List<TransactionId> cycle = waitForGraph.findCycle(tid);
+            if (cycle != null && Collections.disjoint(cycle, victims)) {
+                TransactionId victim = chooseVictim(cycle);
+                if (victim.equals(tid)) {
+                    // System.out.println(Thread.currentThread().getId() + ": aborted");
+                    throw new TransactionAbortedException();
+                }
+                victims.add(victim);
+                // the victim stops waiting as soon as it wakes, so tid does
+                // not wait for it any more
+                waitForGraph.removeEdge(tid, victim);
+                return victim;
+            }
+
+            // no deadlock, or one that is already being broken
+            lock.wait();
+            if (victims.remove(tid)) {
                 throw new TransactionAbortedException();
             }
         } catch (InterruptedException e) {
             /* do nothing */
             e.printStackTrace();
+        } finally {
+            lock.waiters.remove(tid);
+            waitingOn.remove(tid);
+            waitForGraph.removeWaiter(tid);
         }
+        return null;
     }
 
-    private synchronized void updateTransactionTable(TransactionId tid, PageId pid) {
-        if (transactionTable.containsKey(tid)) {
-            if (!transactionTable.get(tid).contains(pid)) {
-                transactionTable.get(tid).add(pid);
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        long victimCost = Long.MAX_VALUE;
+        for (TransactionId t : cycle) {
+            long cost;
+            switch (victimPolicy) {
+                case FEWEST_LOCKS:
+                    Set<PageId> lockSet = transactionTable.get(t);
+                    cost = lockSet == null ? 0 : lockSet.size();
+                    break;
+                case LEAST_LOG:
+                    cost = Database.getLogFile().getLogBytesWritten(t);
+                    break;
+                default:
+                    cost = 0;
+                    break;
+            }
+            if (victim == null || cost < victimCost
+                    || (cost == victimCost && t.getId() > victim.getId())) {
+                victim = t;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    // wake up a deadlock victim, wherever it sleeps
+    private void wakeVictim(TransactionId victim) {
+        ObjLock lock = waitingOn.get(victim);
+        if (lock != null) {
+            synchronized (lock) {
+                lock.notifyAll();
             }
-        } else {
-            // no entry tid
-            ArrayList<PageId> lockList = new ArrayList<PageId>();
-            lockList.add(pid);
-            transactionTable.put(tid, lockList);
         }
     }
 
-    public synchronized void acquireLock(TransactionId tid, PageId pid, LockType reqLock, int maxTimeout)
+    private void updateTransactionTable(TransactionId tid, PageId pid) {
+        transactionTable.compute(tid, (t, lockSet) -> {
+            if (lockSet == null) {
+                lockSet = ConcurrentHashMap.newKeySet();
+            }
+            lockSet.add(pid);
+            return lockSet;
+        });
+    }
+
+    public void acquireLock(TransactionId tid, PageId pid, LockType reqLock)
             throws TransactionAbortedException {
         // boolean isAcquired = false;
-        long start = System.currentTimeMillis();
-        Random rand = new Random();
-        long randomTimeout = rand.nextInt((maxTimeout - 0) + 1) + 0;
         while (true) {
-            if (lockTable.containsKey(pid)) {
+            ObjLock lock = lockTable.get(pid);
+            if (lock == null) {
+                // page is not locked by anybody
+                ArrayList<TransactionId> initialHolders = new ArrayList<>();
+                initialHolders.add(tid);
+                ObjLock fresh = new ObjLock(reqLock, pid, initialHolders);
+                synchronized (fresh) {
+                    if (lockTable.putIfAbsent(pid, fresh) == null) {
+                        updateTransactionTable(tid, pid);
+                        // isAcquired = true;
+                        return;
+                    }
+                }
+                // somebody else created the entry first
+                continue;
+            }
+            TransactionId victim = null;
+            synchronized (lock) {
+                if (lock.removed) {
+                    continue;
+                }
                 // page is locked by some transaction
-                if (lockTable.get(pid).getType() == LockType.SLock) {
+                if (lock.getType() == LockType.SLock) {
                     if (reqLock == LockType.SLock) {
                         updateTransactionTable(tid, pid);
-                        assert lockTable.get(pid).addHolder(tid) != null;
+                        lock.addHolder(tid);
                         // isAcquired = true;
                         return;
                     } else {
                         // request XLock
-                        if (transactionTable.containsKey(tid) && transactionTable.get(tid).contains(pid)
-                                && lockTable.get(pid).getHolders().size() == 1) {
-                            // sanity check
-                            assert lockTable.get(pid).getHolders().get(0) == tid;
+                        if (lock.getHolders().contains(tid) && lock.getHolders().size() == 1) {
                             // this is a combined case when lock on pid hold only by one trans (which is exactly tid)
-                            lockTable.get(pid).tryUpgradeLock(tid);
+                            lock.tryUpgradeLock(tid);
                             // isAcquired = true;
                             return;
                         } else {
                             // all need to do is just blocking
-                            block(pid, start, randomTimeout);
+                            victim = block(tid, lock);
                         }
                     }
                 } else {
                     // already get a Xlock on pid
-                    if (lockTable.get(pid).getHolders().get(0) == tid) {
+                    if (lock.getHolders().get(0).equals(tid)) {
                         // Xlock means only one holder
                         // request xlock or slock on the pid with that tid
                         // sanity check
-                        assert lockTable.get(pid).getHolders().size() == 1;
+                        assert lock.getHolders().size() == 1;
                         // isAcquired = true;
-                         //may be b+ tree bug.
-                        /**
-                        if(reqLock == LockType.SLock) {
-                            lockTable.get(pid).setType(LockType.SLock);
-                            assert  lockTable.get(pid).getHolders().size() == 1 &&
-                                    lockTable.get(pid).getType() == LockType.SLock;
-                        }*/
                         return;
                     } else {
                         // otherwise block
-                        block(pid, start, randomTimeout);
+                        victim = block(tid, lock);
                     }
                 }
-            } else {
-                ArrayList<TransactionId> initialHolders = new ArrayList<>();
-                initialHolders.add(tid);
-                lockTable.put(pid, new ObjLock(reqLock, pid, initialHolders));
-                updateTransactionTable(tid, pid);
-                // isAcquired = true;
-                return;
+            }
+            if (victim != null) {
+                // never hold two entries at once
+                wakeVictim(victim);
             }
         }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
+    public void releaseLock(TransactionId tid, PageId pid) {
 
         // remove from trans table
-        if (transactionTable.containsKey(tid)) {
-            transactionTable.get(tid).remove(pid);
-            if (transactionTable.get(tid).size() == 0) {
-                transactionTable.remove(tid);
-            }
-        }
+        transactionTable.computeIfPresent(tid, (t, lockSet) -> {
+            lockSet.remove(pid);
+            return lockSet.isEmpty() ? null : lockSet;
+        });
 
         // remove from locktable
-        if (lockTable.containsKey(pid)) {
-            lockTable.get(pid).getHolders().remove(tid);
-            if (lockTable.get(pid).getHolders().size() == 0) {
-                // no more threads are waiting here
-                lockTable.remove(pid);
-            } else {
-                // ObjLock lock = lockTable.get(pid);
-                // synchronized (lock) {
-                notifyAll();
-                //}
+        ObjLock lock = lockTable.get(pid);
+        if (lock != null) {
+            synchronized (lock) {
+                lock.getHolders().remove(tid);
+                for (TransactionId waiter : lock.waiters) {
+                    waitForGraph.removeEdge(waiter, tid);
+                }
+                if (lock.getHolders().size() == 0 && !lock.removed) {
+                    // waiters will find the entry gone and start over
+                    lock.removed = true;
+                    lockTable.remove(pid, lock);
+                }
+                lock.notifyAll();
             }
         }
     }
 
-    public synchronized void releaseLocksOnTransaction(TransactionId tid) {
-        if (transactionTable.containsKey(tid)) {
-            PageId[] pidArr = new PageId[transactionTable.get(tid).size()];
-            PageId[] toRelease = transactionTable.get(tid).toArray(pidArr);
+    public void releaseLocksOnTransaction(TransactionId tid) {
+        ArrayList<PageId> toRelease = getLockList(tid);
+        if (toRelease != null) {
             for (PageId pid : toRelease) {
                 releaseLock(tid, pid);
             }
-
         }
+        victims.remove(tid);
     }
 
-    public synchronized ArrayList<PageId> getLockList(TransactionId tid) {
-        return transactionTable.getOrDefault(tid, null);
+    /** @return a snapshot of the pages tid holds locks on, or null if none */
+    public ArrayList<PageId> getLockList(TransactionId tid) {
+        Set<PageId> lockSet = transactionTable.get(tid);
+        if (lockSet == null) {
+            return null;
+        }
+        return new ArrayList<PageId>(lockSet);
     }
 }
 
+
 /**
  * BufferPool manages the reading and writing of pages into memory from
  * disk. Access methods call into it to retrieve pages, and it fetches
@@ -230,6 +347,14 @@ class LockManager {
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * There is no pool-wide monitor.  Each cached page lives in a {@link Frame}
+ * with its own read/write latch and pin count; a cache hit only takes the
+ * latch of its frame in shared mode.  Loading a page that is not cached is
+ * serialized per hash bucket of its PageId, so two transactions missing on
+ * the same page read it only once.  Misses in different buckets take a
+ * frame from a shared count of free frames before they read, so together
+ * they never cache more than numPages pages.
  * 
  * @Threadsafe, all fields are final
  */
@@ -244,26 +369,84 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default working memory of an operator: as many bytes as DEFAULT_PAGES
+    pages of the default size. */
+    public static final long DEFAULT_OPERATOR_MEMORY = (long) DEFAULT_PAGES * DEFAULT_PAGE_SIZE;
+
+    private static long operatorMemory = DEFAULT_OPERATOR_MEMORY;
+
+    /** Number of latches that page loads are striped over. */
+    private static final int NUM_BUCKETS = 64;
+
+    /**
+     * A buffer pool slot holding one page.  The latch is held shared while a
+     * cache hit looks at the frame and exclusively while the frame is
+     * flushed, evicted, discarded or gets a new version of its page.  Pinned
+     * frames are never evicted.
+     */
+    private static class Frame {
+        volatile Page page;
+        final AtomicInteger pins = new AtomicInteger(0);
+        final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+        // cleared under the exclusive latch once the frame has left the pool
+        boolean valid = true;
+        // read ahead of use; its first access is not a second reference
+        volatile boolean prefetched = false;
+
+        Frame(Page page) {
+            this.page = page;
+        }
+    }
+
     // private Page[] pageBuffer;
-    private ConcurrentHashMap<PageId, Page> pageBuffer;
+    private ConcurrentHashMap<PageId, Frame> pageBuffer;
+    private final ReentrantLock[] bucketLatches;
     // private ConcurrentHashMap<TransactionId, Page> tPage;
     // private ArrayList<PageId> pageIdList;
     private LockManager lockMgr;
     // private int currentSize;
     private int maxSize;
+    // frames neither caching a page nor taken by a page being read in
+    private final AtomicInteger freeFrames;
+    private final EvictionPolicy evictionPolicy;
+
+    // statistics, so that replacement policies can be compared on real traces
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong prefetches = new AtomicLong(0);
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, replacing pages
+     * with LRU-2.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LRUKEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and asks the
+     * given policy which page to give up when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the page replacement policy
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
         // some code goes here
         // pageBuffer = new Page[numPages];
         pageBuffer = new ConcurrentHashMap<>();
+        bucketLatches = new ReentrantLock[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            bucketLatches[i] = new ReentrantLock();
+        }
         // pageIdList = new ArrayList<>();
         this.lockMgr = new LockManager(numPages, 2 * numPages);
         // currentSize = 0;
         maxSize = numPages;
+        freeFrames = new AtomicInteger(numPages);
+        this.evictionPolicy = evictionPolicy;
     }
     
     public static int getPageSize() {
@@ -280,6 +463,129 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * @return the number of bytes of tuples, as measured by
+     *         {@link TupleDesc#getSize}, that an operator such as a hash join
+     *         may keep in memory before it spills to a {@link SpillFile}
+     */
+    public static long getOperatorMemory() {
+        return operatorMemory;
+    }
+
+    public static void setOperatorMemory(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("operator memory must be positive");
+        BufferPool.operatorMemory = bytes;
+    }
+
+    public static void resetOperatorMemory() {
+        BufferPool.operatorMemory = DEFAULT_OPERATOR_MEMORY;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return maxSize;
+    }
+
+    /** @return the number of getPage calls that found the page in the pool */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of getPage calls that had to read the page from disk */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the number of pages evicted to make room for other pages */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** @return the number of pages read by {@link #prefetchPage} */
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    /** Reset the hit, miss, eviction and prefetch counters to zero. */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        prefetches.set(0);
+    }
+
+    private ReentrantLock bucketLatch(PageId pid) {
+        return bucketLatches[(pid.hashCode() & 0x7fffffff) % NUM_BUCKETS];
+    }
+
+    /**
+     * @return the page cached in frame f, or null if the frame has left
+     * the pool in the meantime
+     */
+    private Page lookup(Frame f, boolean pin) {
+        f.latch.readLock().lock();
+        try {
+            if (!f.valid) {
+                return null;
+            }
+            if (pin) {
+                f.pins.incrementAndGet();
+            }
+            return f.page;
+        } finally {
+            f.latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Takes a free frame for a page about to be cached, evicting a page if
+     * none is free.
+     *
+     * @throws DbException if every page is dirty or pinned
+     */
+    private void reserveFrame() throws DbException {
+        while (true) {
+            int n = freeFrames.get();
+            if (n <= 0) {
+                evictPage();
+            } else if (freeFrames.compareAndSet(n, n - 1)) {
+                return;
+            }
+        }
+    }
+
+    /** Put page into the pool, replacing any cached version of it. */
+    private void installPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        ReentrantLock bucket = bucketLatch(pid);
+        bucket.lock();
+        try {
+            Frame f = pageBuffer.get(pid);
+            if (f != null) {
+                f.latch.writeLock().lock();
+                try {
+                    if (f.valid) {
+                        f.page = page;
+                        evictionPolicy.pageAccessed(pid);
+                        return;
+                    }
+                } finally {
+                    f.latch.writeLock().unlock();
+                }
+            }
+            reserveFrame();
+            pageBuffer.put(pid, new Frame(page));
+            evictionPolicy.pageLoaded(pid);
+        } finally {
+            bucket.unlock();
+        }
+    }
+
 
     /**
      * Retrieve the specified page with the associated permissions.
@@ -291,6 +597,13 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page is not pinned: once it is clean and the eviction policy
+     * picks it, it may leave the pool while the caller still holds it.
+     * The caller's lock keeps other transactions from changing it, and a
+     * page the caller dirties is put back by {@link #insertTuple} and
+     * {@link #deleteTuple}.  Callers that need the page to stay cached,
+     * e.g. to hand it out again without reading it, use {@link #pinPage}.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -306,24 +619,149 @@ public class BufferPool {
             lockType = LockManager.LockType.XLock;
         }
         Debug.log(pid.toString() + ": before acquire lock\n");
-        lockMgr.acquireLock(tid, pid, lockType, 5000);
+        lockMgr.acquireLock(tid, pid, lockType);
         Debug.log(pid.toString() + ": acquired the lock\n");
 
         DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page pg;
+        return fetchPage(pid, false);
+    }
+
+    private Page fetchPage(PageId pid, boolean pin) throws DbException {
+        while (true) {
+            Frame f = pageBuffer.get(pid);
+            if (f != null) {
+                Page pg = lookup(f, pin);
+                if (pg != null) {
+                    hits.incrementAndGet();
+                    if (f.prefetched) {
+                        // loading it already counted as its first use
+                        f.prefetched = false;
+                    } else {
+                        evictionPolicy.pageAccessed(pid);
+                    }
+                    return pg;
+                }
+                // lost a race with eviction, try again
+                continue;
+            }
+
+            ReentrantLock bucket = bucketLatch(pid);
+            bucket.lock();
+            try {
+                if (pageBuffer.containsKey(pid)) {
+                    // somebody else loaded it while we waited for the bucket
+                    continue;
+                }
+                misses.incrementAndGet();
+                reserveFrame();
+                Page pg;
+                try {
+                    pg = Database
+                            .getCatalog()
+                            .getDatabaseFile(pid.getTableId())
+                            .readPage(pid);
+                } catch (RuntimeException e) {
+                    freeFrames.incrementAndGet();
+                    throw e;
+                }
+                Frame nf = new Frame(pg);
+                if (pin) {
+                    nf.pins.incrementAndGet();
+                }
+                pageBuffer.put(pid, nf);
+                evictionPolicy.pageLoaded(pid);
+                return pg;
+            } finally {
+                bucket.unlock();
+            }
+        }
+    }
+
+    /**
+     * Read a page into the buffer pool ahead of its use, e.g. by a
+     * sequential scan.  No lock is taken: the page is only cached, and
+     * whoever uses it still goes through {@link #getPage}.  Nothing happens
+     * if the page is cached already or if no clean page can be evicted to
+     * make room for it.
+     *
+     * @param pid the ID of the page to read
+     * @return true if the page was read from disk
+     */
+    public boolean prefetchPage(PageId pid) {
         if (pageBuffer.containsKey(pid)) {
-            pg = pageBuffer.get(pid);
-        } else {
-            if (pageBuffer.size() >= maxSize) {
-                evictPage();
+            return false;
+        }
+        ReentrantLock bucket = bucketLatch(pid);
+        bucket.lock();
+        try {
+            if (pageBuffer.containsKey(pid)) {
+                return false;
+            }
+            reserveFrame();
+            Page pg;
+            try {
+                pg = Database
+                        .getCatalog()
+                        .getDatabaseFile(pid.getTableId())
+                        .readPage(pid);
+            } catch (RuntimeException e) {
+                freeFrames.incrementAndGet();
+                throw e;
             }
-            pg = Database
-                    .getCatalog()
-                    .getDatabaseFile(pid.getTableId())
-                    .readPage(pid);
-            pageBuffer.put(pid, pg);
+            Frame nf = new Frame(pg);
+            nf.prefetched = true;
+            pageBuffer.put(pid, nf);
+            evictionPolicy.pageLoaded(pid);
+            prefetches.incrementAndGet();
+            return true;
+        } catch (DbException e) {
+            // every page is dirty or pinned; the reader will wait its turn
+            return false;
+        } catch (RuntimeException e) {
+            // e.g. the page is gone because the file shrank
+            return false;
+        } finally {
+            bucket.unlock();
         }
-        return pg;
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and keep it in the
+     * buffer pool until a matching call to {@link #unpinPage}.  A page can be
+     * pinned several times; it becomes evictable when all pins are gone.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        LockManager.LockType lockType;
+        if (perm == Permissions.READ_ONLY) {
+            lockType = LockManager.LockType.SLock;
+        } else {
+            lockType = LockManager.LockType.XLock;
+        }
+        lockMgr.acquireLock(tid, pid, lockType);
+        return fetchPage(pid, true);
+    }
+
+    /**
+     * Release one pin taken by {@link #pinPage}.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+        Frame f = pageBuffer.get(pid);
+        if (f != null) {
+            f.pins.updateAndGet(n -> n > 0 ? n - 1 : 0);
+        }
+    }
+
+    /** @return the number of outstanding pins on pid, 0 if it is not cached */
+    public int getPinCount(PageId pid) {
+        Frame f = pageBuffer.get(pid);
+        return f == null ? 0 : f.pins.get();
     }
 
     /**
@@ -353,6 +791,14 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Choose how deadlock victims are picked among the transactions of a
+     * wait-for cycle.  The default is {@link DeadlockVictimPolicy#YOUNGEST}.
+     */
+    public void setDeadlockVictimPolicy(DeadlockVictimPolicy policy) {
+        lockMgr.setVictimPolicy(policy);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -384,7 +830,8 @@ public class BufferPool {
         ArrayList<PageId> lockList = lockMgr.getLockList(tid);
         if (lockList != null) {
             for (PageId pid : lockList) {
-                Page pg = pageBuffer.getOrDefault(pid, null);
+                Frame f = pageBuffer.get(pid);
+                Page pg = f == null ? null : f.page;
                 if(pg != null && commit) {
                     pg.setBeforeImage();
                 }
@@ -422,8 +869,7 @@ public class BufferPool {
         ArrayList<Page> affected = tableFile.insertTuple(tid, t);
         for (Page newPg : affected) {
             newPg.markDirty(true, tid);
-            pageBuffer.remove(newPg.getId());
-            pageBuffer.put(newPg.getId(), newPg);
+            installPage(newPg);
         }
 
     }
@@ -452,8 +898,7 @@ public class BufferPool {
         ArrayList<Page> affected = tableFile.deleteTuple(tid, t);
         for (Page newPg : affected) {
             newPg.markDirty(true, tid);
-            pageBuffer.remove(newPg.getId());
-            pageBuffer.put(newPg.getId(), newPg);
+            installPage(newPg);
         }
 
     }
@@ -463,7 +908,7 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
         /**
@@ -473,10 +918,7 @@ public class BufferPool {
             // Page p = pageBuffer.getOrDefault(pid, null);
             flushPage(pid);
         }*/
-        for(Map.Entry<PageId, Page> entry : pageBuffer.entrySet()) {
-            PageId pid = entry.getKey();
-            flushPage(pid);
-        }
+        flushPages(new ArrayList<PageId>(pageBuffer.keySet()));
         /**
         while(len > 0) {
             PageId pid = pageIdList.get(len - 1);
@@ -493,10 +935,24 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        pageBuffer.remove(pid);
+        Frame f = pageBuffer.get(pid);
+        if (f == null) {
+            return;
+        }
+        f.latch.writeLock().lock();
+        try {
+            if (f.valid) {
+                f.valid = false;
+                pageBuffer.remove(pid, f);
+                freeFrames.incrementAndGet();
+                evictionPolicy.pageRemoved(pid);
+            }
+        } finally {
+            f.latch.writeLock().unlock();
+        }
         // pageIdList.remove(pid);
         // currentSize--;
     }
@@ -506,23 +962,10 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page p = pageBuffer.getOrDefault(pid, null);
-        if(p == null) {
-            return;
-        }
-        TransactionId dirtier = p.isDirty();
-        if(dirtier != null) {
-            Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-            Database.getLogFile().force();
-        } else {
-            return;
-        }
-        DbFile df = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
-        df.writePage(p);
-        p.markDirty(false, null);
+        flushPages(Collections.singletonList(pid));
 
 
 
@@ -533,20 +976,66 @@ public class BufferPool {
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
         ArrayList<PageId> pidArr = lockMgr.getLockList(tid);
         if(pidArr == null) {
             return;
         }
-        Iterator<PageId> itr = pidArr.iterator();
-        if(itr == null) {
+        flushPages(pidArr);
+    }
+
+    /**
+     * Write the given pages to disk if they are dirty.  The update records of
+     * all of them are appended to the log first and made durable by a single
+     * log flush, then the pages are written.
+     */
+    private void flushPages(Collection<PageId> pids) throws IOException {
+        LogFile log = Database.getLogFile();
+        ArrayList<Frame> logged = new ArrayList<Frame>();
+        long lsn = 0;
+        for (PageId pid : pids) {
+            Frame f = pageBuffer.get(pid);
+            if (f == null) {
+                continue;
+            }
+            f.latch.writeLock().lock();
+            try {
+                Page p = f.page;
+                TransactionId dirtier = p.isDirty();
+                if (!f.valid || dirtier == null) {
+                    continue;
+                }
+                p.setLSN(log.logWrite(dirtier, p.getBeforeImage(), p));
+                lsn = Math.max(lsn, p.getLSN());
+                logged.add(f);
+            } finally {
+                f.latch.writeLock().unlock();
+            }
+        }
+        if (logged.isEmpty()) {
             return;
         }
-        while(itr.hasNext()) {
-            PageId pid = itr.next();
-            flushPage(pid);
+        // write-ahead: no page goes to disk before the log is durable up
+        // to its pageLSN
+        if (lsn > log.getFlushedLsn()) {
+            log.waitForFlush(lsn);
+        }
+        for (Frame f : logged) {
+            // exclusive, so that the page is written and cleaned exactly once
+            f.latch.writeLock().lock();
+            try {
+                Page p = f.page;
+                if (!f.valid || p.isDirty() == null) {
+                    continue;
+                }
+                DbFile df = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+                df.writePage(p);
+                p.markDirty(false, null);
+            } finally {
+                f.latch.writeLock().unlock();
+            }
         }
     }
 
@@ -554,7 +1043,7 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
         /**
@@ -566,15 +1055,37 @@ public class BufferPool {
 
         }*/
 
-        for(Map.Entry<PageId,Page> entry : pageBuffer.entrySet()) {
-            PageId pid = entry.getKey();
-            Page p = entry.getValue();
-            if(p.isDirty() == null) {
-                // pageBuffer.remove(pid);
-                // currentSize--;
-                discardPage(pid);
+        // NO STEAL: only clean, unpinned pages may leave the pool
+        java.util.function.Predicate<PageId> evictable = pid -> {
+            Frame f = pageBuffer.get(pid);
+            return f != null && f.pins.get() == 0 && f.page.isDirty() == null;
+        };
+        for (int attempt = 0; attempt <= maxSize; attempt++) {
+            PageId victim = evictionPolicy.evict(evictable);
+            if (victim == null) {
+                break;
+            }
+            Frame f = pageBuffer.get(victim);
+            if (f == null) {
+                // discarded concurrently, which made room as well
                 return;
             }
+            // never wait for a latch here: whoever holds it is using the page
+            if (f.latch.writeLock().tryLock()) {
+                try {
+                    if (f.valid && f.pins.get() == 0 && f.page.isDirty() == null) {
+                        f.valid = false;
+                        pageBuffer.remove(victim, f);
+                        freeFrames.incrementAndGet();
+                        evictions.incrementAndGet();
+                        return;
+                    }
+                } finally {
+                    f.latch.writeLock().unlock();
+                }
+            }
+            // the victim got busy after the policy picked it; keep it
+            evictionPolicy.reinstate(victim);
         }
 
         throw new DbException("no clean page!!!");
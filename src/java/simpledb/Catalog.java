@@ -157,6 +157,16 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Every line describes a table, as
+     * <pre>
+     *     name (field type [pk], field type, ...) [storage]
+     * </pre>
+     * where storage is <code>heap</code> (the default) for a {@link HeapFile},
+     * <code>slotted</code> for a {@link SlottedFile}, which stores strings
+     * in the bytes they need, <code>pax</code> for a {@link PaxFile}, which
+     * stores every field in a minipage of its own, or <code>compressed</code>
+     * for a {@link CompressedFile}, which encodes the columns of every page;
+     * the table is read from name.dat either way.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -197,7 +207,22 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                String storage = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                DbFile tabHf;
+                if (storage.equals("") || storage.equals("heap"))
+                    tabHf = new HeapFile(dataFile, t);
+                else if (storage.equals("slotted"))
+                    tabHf = new SlottedFile(dataFile, t);
+                else if (storage.equals("pax"))
+                    tabHf = new PaxFile(dataFile, t);
+                else if (storage.equals("compressed"))
+                    tabHf = new CompressedFile(dataFile, t);
+                else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
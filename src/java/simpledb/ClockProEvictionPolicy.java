@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK-Pro replacement (Jiang, Chen and Zhang, USENIX '05).  Resident pages
+ * are either hot or cold and sit on one circular list together with
+ * non-resident "test" entries that remember recently evicted cold pages.
+ * Three hands sweep the list:
+ * <ul>
+ * <li> the cold hand evicts unreferenced cold pages (they turn into test
+ *      entries) and promotes referenced ones to hot,
+ * <li> the hot hand demotes unreferenced hot pages to cold whenever there
+ *      are more hot pages than the current target allows,
+ * <li> the test hand expires test entries once there are too many of them.
+ * </ul>
+ * A page that is read again while its test entry is still on the clock is
+ * admitted as hot and grows the cold target; an expiring test entry shrinks
+ * it.  Pages touched only once, such as those of a sequential scan, never
+ * get out of the cold set and are replaced before hot pages.
+ * <p>
+ * A hit only sets the reference bit of the page, so {@link #pageAccessed}
+ * takes no lock; the hands move under the monitor of the policy.
+ */
+public class ClockProEvictionPolicy implements EvictionPolicy {
+
+    private static final int HOT = 0;
+    private static final int COLD = 1;
+    private static final int TEST = 2;
+
+    private static class Node {
+        final PageId pid;
+        int status;
+        volatile boolean referenced;
+        Node prev, next;
+
+        Node(PageId pid, int status) {
+            this.pid = pid;
+            this.status = status;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<PageId, Node> nodes;
+
+    // everything below is protected by this
+    private int coldTarget;
+    private int hotCount = 0, coldCount = 0, testCount = 0;
+    private Node handHot, handCold, handTest;
+    // the hot page evictAny took last, which has no test entry
+    private PageId hotVictim;
+
+    /**
+     * Creates a CLOCK-Pro policy for a buffer pool with the given number of
+     * frames.  A quarter of the frames start out reserved for cold pages.
+     */
+    public ClockProEvictionPolicy(int numPages) {
+        this.capacity = Math.max(1, numPages);
+        this.coldTarget = Math.max(1, capacity / 4);
+        this.nodes = new ConcurrentHashMap<PageId, Node>();
+    }
+
+    /** @return the number of frames currently targeted for cold pages */
+    public synchronized int getColdTarget() {
+        return coldTarget;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n == null) {
+            n = new Node(pid, COLD);
+            nodes.put(pid, n);
+            link(n);
+            coldCount++;
+        } else if (n.status == TEST) {
+            // re-referenced within its test period: it deserves to be hot,
+            // and cold pages deserve more room
+            coldTarget = Math.min(coldTarget + 1, Math.max(1, capacity - 1));
+            unlink(n);
+            testCount--;
+            n.status = HOT;
+            n.referenced = false;
+            link(n);
+            hotCount++;
+            while (hotCount > capacity - coldTarget && hotCount > 0) {
+                runHandHot();
+            }
+        } else {
+            n.referenced = true;
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n != null) {
+            n.referenced = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Node n = nodes.remove(pid);
+        if (n == null) {
+            return;
+        }
+        if (n.status == HOT) {
+            hotCount--;
+        } else if (n.status == COLD) {
+            coldCount--;
+        } else {
+            testCount--;
+        }
+        unlink(n);
+    }
+
+    public synchronized void reinstate(PageId pid) {
+        Node n = nodes.get(pid);
+        if (n != null && n.status == TEST) {
+            // back to the cold page it was, where it was on the clock
+            n.status = COLD;
+            testCount--;
+            coldCount++;
+        } else if (n == null) {
+            // a hot victim, or a test entry the test hand expired already
+            boolean hot = pid.equals(hotVictim);
+            n = new Node(pid, hot ? HOT : COLD);
+            nodes.put(pid, n);
+            link(n);
+            if (hot) {
+                hotCount++;
+            } else {
+                coldCount++;
+            }
+        }
+        hotVictim = null;
+    }
+
+    public synchronized PageId evict(java.util.function.Predicate<PageId> evictable) {
+        // every resident page is seen at least twice by the cold hand: once
+        // to clear or promote, once more after the hot hand had a chance to
+        // demote it
+        hotVictim = null;
+        int steps = 2 * (nodes.size() + 1);
+        while (handCold != null && steps-- > 0) {
+            PageId victim = runHandCold(evictable);
+            if (victim != null) {
+                return victim;
+            }
+        }
+        return evictAny(evictable);
+    }
+
+    // insert a node at the head of the clock, i.e. just behind the hot hand
+    private void link(Node n) {
+        if (handHot == null) {
+            n.prev = n;
+            n.next = n;
+            handHot = handCold = handTest = n;
+            return;
+        }
+        n.next = handHot;
+        n.prev = handHot.prev;
+        handHot.prev.next = n;
+        handHot.prev = n;
+    }
+
+    private void unlink(Node n) {
+        if (n.next == n) {
+            handHot = handCold = handTest = null;
+        } else {
+            if (handHot == n) handHot = n.next;
+            if (handCold == n) handCold = n.next;
+            if (handTest == n) handTest = n.next;
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+        }
+        n.prev = n.next = null;
+    }
+
+    private PageId runHandCold(java.util.function.Predicate<PageId> evictable) {
+        Node n = handCold;
+        PageId victim = null;
+        if (n.status == COLD) {
+            if (n.referenced) {
+                n.status = HOT;
+                n.referenced = false;
+                coldCount--;
+                hotCount++;
+            } else if (evictable.test(n.pid)) {
+                n.status = TEST;
+                coldCount--;
+                testCount++;
+                victim = n.pid;
+            }
+        }
+        handCold = handCold.next;
+        while (hotCount > capacity - coldTarget && hotCount > 0) {
+            runHandHot();
+        }
+        while (testCount > capacity) {
+            runHandTest();
+        }
+        return victim;
+    }
+
+    private void runHandHot() {
+        if (handHot == handTest) {
+            runHandTest();
+        }
+        Node n = handHot;
+        if (n.status == HOT) {
+            if (n.referenced) {
+                n.referenced = false;
+            } else {
+                n.status = COLD;
+                hotCount--;
+                coldCount++;
+            }
+        }
+        handHot = handHot.next;
+    }
+
+    private void runHandTest() {
+        Node n = handTest;
+        handTest = handTest.next;
+        if (n.status == TEST) {
+            // the test period ran out without a re-reference
+            nodes.remove(n.pid);
+            unlink(n);
+            testCount--;
+            coldTarget = Math.max(1, coldTarget - 1);
+        }
+    }
+
+    // last resort when the hands found nothing: the first evictable
+    // resident page in clock order, cold pages preferred
+    private PageId evictAny(java.util.function.Predicate<PageId> evictable) {
+        if (handCold == null) {
+            return null;
+        }
+        Node hot = null;
+        Node n = handCold;
+        do {
+            if (n.status == COLD && evictable.test(n.pid)) {
+                n.status = TEST;
+                coldCount--;
+                testCount++;
+                return n.pid;
+            }
+            if (hot == null && n.status == HOT && evictable.test(n.pid)) {
+                hot = n;
+            }
+            n = n.next;
+        } while (n != handCold);
+        if (hot == null) {
+            return null;
+        }
+        nodes.remove(hot.pid);
+        unlink(hot);
+        hotCount--;
+        hotVictim = hot.pid;
+        return hot.pid;
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ColumnScan is a sequential scan of some of the fields of a table stored in
+ * a PaxFile: it returns, for each tuple of the table, just the fields it was
+ * asked for, and only those fields (and the fields of the filters pushed
+ * into it) are read off the pages.  The planner uses it for the tables of a
+ * query that are PaxFiles, with the fields the query refers to.
+ *
+ * @see PaxFile
+ * @see LogicalPlan#physicalPlan
+ */
+public class ColumnScan implements BatchOpIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final int[] columns;
+    // the predicates pushed into the scan, and the same on fields of the table
+    private final ArrayList<Predicate> pushed = new ArrayList<Predicate>();
+    private final ArrayList<Predicate> filters = new ArrayList<Predicate>();
+    private DbFileIterator dbItr;
+
+    /**
+     * Creates a scan of some of the fields of the specified table as a part
+     * of the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be a PaxFile
+     * @param tableAlias
+     *            the alias of this table; the returned tupleDesc has fields
+     *            with name tableAlias.fieldName, as for a SeqScan
+     * @param columns
+     *            the fields of the table to return, in the order to return
+     *            them in
+     */
+    public ColumnScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof PaxFile)) {
+            throw new IllegalArgumentException("table " + tableid + " is not a PaxFile");
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        for (int j : columns) {
+            if (j < 0 || j >= td.numFields())
+                throw new IllegalArgumentException("no field " + j + " in table " + tableid);
+        }
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.columns = columns.clone();
+        this.dbItr = null;
+    }
+
+    /**
+     * @return the name of the table the operator scans, in the catalog of
+     *         the database
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the fields of the table the scan returns, in order
+     */
+    public int[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * Has the scan return only the tuples that pass p, from the next time
+     * it is opened on.  p is on the fields of the scan, as for a Filter
+     * over it; it is tested on the bytes of the minipage of its field.
+     *
+     * @return true, as the scan can always filter its tuples
+     */
+    public boolean pushFilter(Predicate p) {
+        if (!pushed.contains(p)) {
+            pushed.add(p);
+            filters.add(new Predicate(columns[p.getField()], p.getOp(), p.getOperand()));
+        }
+        return true;
+    }
+
+    /** @return the predicates pushed into the scan, on fields of the table */
+    public List<Predicate> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        PaxFile f = (PaxFile) Database.getCatalog().getDatabaseFile(tableid);
+        dbItr = f.iterator(tid, columns, getTupleDesc(), new ArrayList<Predicate>(filters));
+        dbItr.open();
+    }
+
+    /**
+     * @return the TupleDesc of the fields the scan returns, with the names of
+     *         the table prefixed with the tableAlias string from the
+     *         constructor, as for a SeqScan
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        Type[] t = new Type[columns.length];
+        String[] n = new String[columns.length];
+        for (int k = 0; k < columns.length; k++) {
+            t[k] = td.getFieldType(columns[k]);
+            n[k] = tableAlias + "." + td.getFieldName(columns[k]);
+        }
+        return new TupleDesc(t, n);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        return dbItr.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return dbItr.next();
+    }
+
+    /** Copies the next tuples of the scan into the columns of a batch. */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!dbItr.hasNext()) {
+            return null;
+        }
+        TupleBatch b = new TupleBatch(getTupleDesc());
+        while (!b.isFull() && dbItr.hasNext()) {
+            b.add(dbItr.next());
+        }
+        return b;
+    }
+
+    public void close() {
+        dbItr.close();
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
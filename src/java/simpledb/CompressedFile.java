@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * CompressedFile is a DbFile that stores a collection of tuples in no
+ * particular order, like a HeapFile, on CompressedPages: every column of a
+ * page is encoded in the way that takes the fewest bytes for its values, so
+ * a table of small ints, runs of equal values or strings from a small set
+ * takes a fraction of the pages, and of the frames of the buffer pool, of
+ * a heap file.  Pages are found and numbered as in a HeapFile (with
+ * HeapPageIds), one after another in the file.
+ * <p>
+ * Inserts find a page with room through a {@link FreeSpaceMap} whose
+ * entries count free bytes in chunks of {@link #roomUnit()} bytes.  How
+ * many bytes a tuple takes depends on the page it goes to, so a page is
+ * tried if it has any room at all.  Files are best built by
+ * {@link CompressedFileEncoder}, which fills every page.
+ *
+ * @see CompressedPage
+ * @see Catalog#loadSchema
+ */
+public class CompressedFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final DbFileChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private final TupleInserter inserter;
+
+    /**
+     * Constructs a compressed file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file; missing or empty for an empty table
+     */
+    public CompressedFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.channel = new DbFileChannel(f);
+        ToIntFunction<Page> room = p -> room((CompressedPage) p);
+        this.freeSpace = new FreeSpaceMap(this, f, room);
+        this.inserter = new TupleInserter(this, f, channel, freeSpace, room);
+    }
+
+    /**
+     * @return the bytes of free space an entry of the free-space map
+     *         counts as one, so that a whole page fits in an entry
+     */
+    public static int roomUnit() {
+        return (BufferPool.getPageSize() + 254) / 255;
+    }
+
+    /** @return the entry of p in the free-space map */
+    private static int room(CompressedPage p) {
+        return p.getFreeSpace() / roomUnit();
+    }
+
+    /** @return the File backing this file on disk. */
+    public File getFile() {
+        return f;
+    }
+
+    /** @see HeapFile#getId */
+    public int getId() {
+        return f.getAbsolutePath().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pgno = pid.getPageNumber();
+        try {
+            byte[] data = new byte[BufferPool.getPageSize()];
+            if (!channel.read(data, data.length, (long) pgno * BufferPool.getPageSize())) {
+                throw new IllegalArgumentException("pid");
+            }
+            CompressedPage p = new CompressedPage((HeapPageId) pid, data);
+            freeSpace.update(pgno, room(p));
+            return p;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        throw new IllegalArgumentException("file op failed");
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        int pgno = page.getId().getPageNumber();
+        channel.write(page.getPageData(), (long) BufferPool.getPageSize() * pgno);
+        freeSpace.write(pgno, room((CompressedPage) page));
+    }
+
+    /**
+     * Close the file descriptor behind this file.  It is reopened if the
+     * file is used again.
+     */
+    public void close() {
+        channel.close();
+        freeSpace.close();
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (CompressedPage.encode(td, new Tuple[] { t }, BufferPool.getPageSize()) == null) {
+            throw new DbException("tuple too large for a page");
+        }
+        // a page with any room at all may take t
+        return inserter.insertTuple(tid, t, 1);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("CompressedFile: deleteTuple: tuple.tableid != getId");
+        }
+        PageId pid = rid.getPageId();
+        CompressedPage page = (CompressedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        page.markDirty(true, tid);
+        freeSpace.update(pid.getPageNumber(), room(page));
+        ArrayList<Page> mdfPage = new ArrayList<>();
+        mdfPage.add(page);
+        return mdfPage;
+    }
+
+    /** Reads the pages one after another, with read-ahead, as HeapFile does. */
+    private class CompressedFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final List<Predicate> filters;
+        private final ReadAhead readAhead = new ReadAhead(getId());
+        private Iterator<Tuple> itr = null;
+        private int pgNum;
+
+        CompressedFileIterator(TransactionId tid, List<Predicate> filters) {
+            this.tid = tid;
+            this.filters = filters;
+        }
+
+        public void open() {
+            pgNum = -1;
+            itr = Collections.<Tuple>emptyList().iterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (itr == null) {
+                return null;
+            }
+            while (!itr.hasNext()) {
+                int numPages = numPages();
+                if (pgNum + 1 >= numPages) {
+                    return null;
+                }
+                pgNum++;
+                readAhead.pageReached(pgNum, numPages);
+                HeapPageId pid = new HeapPageId(getId(), pgNum);
+                itr = ((CompressedPage) Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_ONLY)).iterator(filters);
+            }
+            return itr.next();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            itr = null;
+            readAhead.reset();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that pass all of
+     * filters, tested on the encoded columns of every page (see
+     * {@link CompressedPage#iterator(List)}).
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> filters) {
+        return new CompressedFileIterator(tid, filters);
+    }
+}
@@ -0,0 +1,127 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * CompressedFileEncoder converts tuples, as HeapFileEncoder accepts them,
+ * to pages of binary data in the format of CompressedPages.  It writes a
+ * heap file with HeapFileEncoder, reads the tuples back off its pages and
+ * puts as many of them as fit, in order, on every compressed page.
+ *
+ * @see CompressedPage
+ * @see HeapFileEncoder
+ */
+
+public class CompressedFileEncoder {
+
+  /** Convert the specified tuple list (with only integer fields) into a
+   * compressed page file; see
+   * {@link HeapFileEncoder#convert(ArrayList, File, int, int)}.
+   */
+  public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
+      File tempHeap = File.createTempFile("tempTable", ".dat");
+      tempHeap.deleteOnExit();
+      HeapFileEncoder.convert(tuples, tempHeap, npagebytes, numFields);
+      fromHeapFile(tempHeap, outFile, npagebytes, Utility.getTypes(numFields));
+      tempHeap.delete();
+  }
+
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields) throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, Utility.getTypes(numFields));
+  }
+
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr)
+      throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, ',');
+  }
+
+  /** Convert the specified input text file into a compressed page file;
+   * see {@link HeapFileEncoder#convert(File, File, int, int, Type[], char)}
+   * for the format of the input file.
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      File tempHeap = File.createTempFile("tempTable", ".dat");
+      tempHeap.deleteOnExit();
+      HeapFileEncoder.convert(inFile, tempHeap, npagebytes, numFields, typeAr, fieldSeparator);
+      fromHeapFile(tempHeap, outFile, npagebytes, typeAr);
+      tempHeap.delete();
+  }
+
+  /** Convert a heap file, with fields of the types in typeAr, into a
+   * compressed page file holding the same tuples in the same order.
+   *
+   * @param heapFile the heap file to read pages from
+   * @param outFile the output file to write data to
+   * @param npagebytes the number of bytes per page in both files
+   * @throws IOException if a file can't be opened, the heap file isn't
+   *   made of whole pages or a tuple doesn't fit on a page by itself
+   */
+  public static void fromHeapFile(File heapFile, File outFile, int npagebytes,
+                 Type[] typeAr) throws IOException {
+      if (heapFile.length() % npagebytes != 0)
+          throw new IOException(heapFile + " is not made of whole pages");
+      TupleDesc td = new TupleDesc(typeAr);
+      int nrecords = (npagebytes * 8) / (td.getSize() * 8 + 1);
+      int nheaderbytes = (nrecords + 7) / 8;
+      byte[] page = new byte[npagebytes];
+      ArrayList<Tuple> pending = new ArrayList<Tuple>();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)));
+      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+      try {
+          for (long n = heapFile.length() / npagebytes; n > 0; n--) {
+              in.readFully(page);
+              for (int i = 0; i < nrecords; i++) {
+                  if (((page[i / 8] >> (i % 8)) & 0x01) == 0)
+                      continue;
+                  Tuple t = new Tuple(td);
+                  int off = nheaderbytes + i * td.getSize();
+                  for (int j = 0; j < typeAr.length; j++) {
+                      t.setField(j, HeapPage.readField(page, off, typeAr[j]));
+                      off += typeAr[j].getLen();
+                  }
+                  pending.add(t);
+              }
+              // write the pages the tuples so far fill
+              while (encode(td, pending, pending.size(), npagebytes) == null)
+                  writePage(out, td, pending, npagebytes);
+          }
+          while (!pending.isEmpty())
+              writePage(out, td, pending, npagebytes);
+      } finally {
+          in.close();
+          out.close();
+      }
+  }
+
+  private static byte[] encode(TupleDesc td, ArrayList<Tuple> tuples, int n, int npagebytes) {
+      return CompressedPage.encode(td, tuples.subList(0, n).toArray(new Tuple[n]), npagebytes);
+  }
+
+  /** Writes a page of as many of the tuples as fit, and removes them. */
+  private static void writePage(OutputStream out, TupleDesc td, ArrayList<Tuple> tuples,
+                 int npagebytes) throws IOException {
+      // the encoding of more tuples is never smaller, so search for the most that fit
+      int fits = 0, fails = 1;
+      while (fails <= tuples.size() && encode(td, tuples, fails, npagebytes) != null) {
+          fits = fails;
+          fails *= 2;
+      }
+      fails = Math.min(fails, tuples.size() + 1);
+      while (fails - fits > 1) {
+          int mid = (fits + fails) >>> 1;
+          if (encode(td, tuples, mid, npagebytes) != null)
+              fits = mid;
+          else
+              fails = mid;
+      }
+      if (fits == 0)
+          throw new IOException("tuple " + tuples.get(0) + " does not fit on a page");
+      out.write(encode(td, tuples, fits, npagebytes));
+      tuples.subList(0, fits).clear();
+  }
+}
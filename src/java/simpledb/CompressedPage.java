@@ -0,0 +1,720 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A page of a CompressedFile: the tuples of the page stored column by
+ * column, as in a PaxPage, but with every column in the encoding that
+ * takes the fewest bytes for its values, chosen each time the page is
+ * encoded:
+ * <ul>
+ * <li>{@link #PLAIN}: the values one after another, ints as 4 bytes and
+ * strings as their length followed by their bytes;
+ * <li>{@link #FOR} (frame of reference, for ints): the smallest value, then
+ * every value less the smallest packed in as few bits as the largest
+ * needs;
+ * <li>{@link #RLE} (run length): every run of equal values as the value and
+ * the slot after the run, which suits sorted and clustered columns;
+ * <li>{@link #DICT} (dictionary, for strings): the distinct values, then the
+ * number of the value of every slot packed in as few bits as the largest
+ * number needs.
+ * </ul>
+ * A page of a table of small ints or of strings from a small set holds
+ * several times the tuples of a HeapPage.
+ * <p>
+ * The format of a page is a header of an int for the number of slots n and
+ * an int for the bytes the page takes, the offset of every column, one int
+ * each, and a bitmap of the slots in use, as in a HeapPage; then the
+ * columns, each a byte for its encoding and its n values.  Empty slots hold
+ * 0 or the empty string in a PLAIN column and the value of the slot before
+ * them in any other, so they cost next to nothing, and deleting a tuple
+ * never makes a page larger.  A page of all zeroes is an empty page.
+ * <p>
+ * Filters are tested on the encoded columns (see {@link #iterator(List)}):
+ * once per value of the dictionary or per run, or on the packed ints of a
+ * frame of reference against the operand less the smallest value.
+ * <p>
+ * Changing a page encodes it again into new bytes (see
+ * {@link CopyOnWritePage#replaceData}); the bytes a page is made from are
+ * never written to, and are its before image until it is changed.
+ *
+ * @see CompressedFile
+ * @see PaxPage
+ */
+public class CompressedPage extends CopyOnWritePage {
+
+    /** The values one after another. */
+    public static final byte PLAIN = 0;
+    /** Ints as their difference from the smallest, bit-packed. */
+    public static final byte FOR = 1;
+    /** Runs of equal values. */
+    public static final byte RLE = 2;
+    /** Strings as numbers into a dictionary, bit-packed. */
+    public static final byte DICT = 3;
+
+    private static final byte[] INT_ENCODINGS = { PLAIN, FOR, RLE };
+    private static final byte[] STRING_ENCODINGS = { PLAIN, RLE, DICT };
+
+    // the decoded header of the bytes of the page, which are never written
+    // to: a change encodes the page into a new array
+    private volatile Image image;
+
+    /**
+     * Create a CompressedPage from a set of bytes of data read from disk,
+     * in the format described above.  The bytes are kept as they are.
+     */
+    public CompressedPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+        if (data.length != BufferPool.getPageSize())
+            throw new IOException("bad page size: " + data.length + " bytes");
+        this.image = new Image(data, td.numFields());
+        if (!image.valid())
+            throw new IOException("corrupt compressed page " + id.getPageNumber());
+    }
+
+    /**
+     * Encodes the tuples of a page with the given TupleDesc, choosing the
+     * encoding of every column, as {@link CompressedFileEncoder} does.
+     *
+     * @param slots
+     *            the tuple in every slot of the page, or null for an empty
+     *            slot
+     * @return the bytes of the page, pageSize of them, or null if the
+     *         tuples don't fit on a page
+     */
+    public static byte[] encode(TupleDesc td, Tuple[] slots, int pageSize) {
+        int n = slots.length;
+        while (n > 0 && slots[n - 1] == null)
+            n--;
+        if (n == 0)
+            return new byte[pageSize];
+        int headerSize = 8 + 4 * td.numFields() + (n + 7) / 8;
+        byte[][] columns = new byte[td.numFields()][];
+        int size = headerSize;
+        for (int j = 0; j < columns.length; j++) {
+            columns[j] = encodeColumn(td.getFieldType(j), slots, n, j);
+            size += columns[j].length;
+            if (size > pageSize)
+                return null;
+        }
+        byte[] b = new byte[pageSize];
+        writeInt(b, 0, n);
+        writeInt(b, 4, size);
+        int bitmap = 8 + 4 * columns.length;
+        for (int i = 0; i < n; i++) {
+            if (slots[i] != null)
+                b[bitmap + i / 8] |= (byte) (1 << (i % 8));
+        }
+        int off = headerSize;
+        for (int j = 0; j < columns.length; j++) {
+            writeInt(b, 8 + 4 * j, off);
+            System.arraycopy(columns[j], 0, b, off, columns[j].length);
+            off += columns[j].length;
+        }
+        return b;
+    }
+
+    /**
+     * @return field j of the first n slots, an empty slot taking blank, or
+     *         the value before it if blank is null
+     */
+    private static Field[] values(Tuple[] slots, int n, int j, Field blank) {
+        Field[] v = new Field[n];
+        Field last = blank;
+        for (int i = 0; i < n && last == null; i++) {
+            if (slots[i] != null)
+                last = slots[i].getField(j);
+        }
+        for (int i = 0; i < n; i++) {
+            v[i] = slots[i] != null ? slots[i].getField(j) : blank != null ? blank : last;
+            last = v[i];
+        }
+        return v;
+    }
+
+    /**
+     * @return field j of the first n slots in the encoding that takes the
+     *         fewest bytes
+     */
+    private static byte[] encodeColumn(Type t, Tuple[] slots, int n, int j) {
+        // a value borrowed from a neighbour is free in the other encodings,
+        // but a long string would be written out again in a PLAIN column
+        Field blank = t == Type.INT_TYPE ? new IntField(0) : new StringField("", Type.STRING_LEN);
+        Field[] plain = values(slots, n, j, blank);
+        Field[] filled = values(slots, n, j, null);
+        byte[] best = null;
+        for (byte encoding : t == Type.INT_TYPE ? INT_ENCODINGS : STRING_ENCODINGS) {
+            byte[] b = encodeColumn(encoding, t, encoding == PLAIN ? plain : filled);
+            if (best == null || b.length < best.length)
+                best = b;
+        }
+        return best;
+    }
+
+    private static byte[] encodeColumn(byte encoding, Type t, Field[] v) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(encoding);
+            switch (encoding) {
+            case PLAIN:
+                for (Field f : v)
+                    writeValue(dos, f);
+                break;
+            case FOR: {
+                long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+                for (Field f : v) {
+                    min = Math.min(min, ((IntField) f).getValue());
+                    max = Math.max(max, ((IntField) f).getValue());
+                }
+                int bits = 64 - Long.numberOfLeadingZeros(max - min);
+                byte[] packed = new byte[packedSize(v.length, bits)];
+                for (int i = 0; i < v.length; i++)
+                    pack(packed, 0, bits, i, ((IntField) v[i]).getValue() - min);
+                dos.writeInt((int) min);
+                dos.writeByte(bits);
+                dos.write(packed);
+                break;
+            }
+            case RLE: {
+                int runs = 1;
+                for (int i = 1; i < v.length; i++)
+                    runs += v[i].equals(v[i - 1]) ? 0 : 1;
+                dos.writeInt(runs);
+                for (int i = 0; i < v.length; i++) {
+                    if (i + 1 == v.length || !v[i + 1].equals(v[i])) {
+                        writeValue(dos, v[i]);
+                        dos.writeInt(i + 1);
+                    }
+                }
+                break;
+            }
+            case DICT: {
+                LinkedHashMap<Field, Integer> codes = new LinkedHashMap<Field, Integer>();
+                for (Field f : v) {
+                    if (!codes.containsKey(f))
+                        codes.put(f, codes.size());
+                }
+                int bits = 32 - Integer.numberOfLeadingZeros(codes.size() - 1);
+                byte[] packed = new byte[packedSize(v.length, bits)];
+                for (int i = 0; i < v.length; i++)
+                    pack(packed, 0, bits, i, codes.get(v[i]));
+                dos.writeInt(codes.size());
+                for (Field f : codes.keySet())
+                    writeValue(dos, f);
+                dos.writeByte(bits);
+                dos.write(packed);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("encoding " + encoding);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new RuntimeException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /** Writes an int as 4 bytes, a string as its length and its bytes. */
+    private static void writeValue(DataOutputStream dos, Field f) throws IOException {
+        if (f.getType() == Type.INT_TYPE) {
+            dos.writeInt(((IntField) f).getValue());
+        } else {
+            String s = ((StringField) f).getValue();
+            dos.writeInt(s.length());
+            dos.writeBytes(s);
+        }
+    }
+
+    /** @return the bytes of n values of the given bits */
+    private static int packedSize(int n, int bits) {
+        return (int) (((long) n * bits + 7) / 8);
+    }
+
+    /** Sets value i of the given bits packed from offset off of b, which must be 0. */
+    private static void pack(byte[] b, int off, int bits, int i, long value) {
+        long pos = (long) i * bits;
+        int start = off + (int) (pos >>> 3);
+        int shift = (int) (pos & 7);
+        long word = value << shift;
+        for (int k = 0; k < (shift + bits + 7) / 8; k++)
+            b[start + k] |= (byte) (word >>> (8 * k));
+    }
+
+    /** @return value i of the given bits packed from offset off of b */
+    private static long unpack(byte[] b, int off, int bits, int i) {
+        if (bits == 0)
+            return 0;
+        long pos = (long) i * bits;
+        int start = off + (int) (pos >>> 3);
+        int shift = (int) (pos & 7);
+        long word = 0;
+        for (int k = 0; k < (shift + bits + 7) / 8; k++)
+            word |= (long) (b[start + k] & 0xFF) << (8 * k);
+        return (word >>> shift) & ((1L << bits) - 1);
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /** The bytes of a page, with the columns decoded as they are needed. */
+    private static class Image {
+        final byte[] b;
+        final int n;
+        final int size;
+        final int bitmap;
+        private final Column[] columns;
+
+        Image(byte[] b, int numFields) {
+            this.b = b;
+            this.n = HeapPage.readInt(b, 0);
+            this.size = HeapPage.readInt(b, 4);
+            this.bitmap = 8 + 4 * numFields;
+            this.columns = new Column[numFields];
+        }
+
+        boolean valid() {
+            if (n == 0)
+                return true;
+            int headerSize = bitmap + (n + 7) / 8;
+            if (n < 0 || size < headerSize || size > b.length)
+                return false;
+            for (int j = 0; j < columns.length; j++) {
+                int off = HeapPage.readInt(b, 8 + 4 * j);
+                if (off < headerSize || off >= size)
+                    return false;
+            }
+            return true;
+        }
+
+        boolean isSlotUsed(int i) {
+            return ((b[bitmap + i / 8] >> (i % 8)) & 0x01) == 1;
+        }
+
+        Column column(int j, Type t) {
+            if (columns[j] == null) {
+                int off = HeapPage.readInt(b, 8 + 4 * j);
+                switch (b[off]) {
+                case PLAIN:
+                    columns[j] = t == Type.INT_TYPE ? new PlainInts(b, off + 1)
+                            : new PlainStrings(b, off + 1, n);
+                    break;
+                case FOR:
+                    columns[j] = new ForInts(b, off + 1);
+                    break;
+                case RLE:
+                    columns[j] = new Runs(b, off + 1, t);
+                    break;
+                case DICT:
+                    columns[j] = new Dictionary(b, off + 1, t);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown encoding " + b[off]);
+                }
+            }
+            return columns[j];
+        }
+    }
+
+    /** The values of a field on a page, in some encoding. */
+    private abstract static class Column {
+        final byte encoding;
+
+        Column(byte encoding) {
+            this.encoding = encoding;
+        }
+
+        /** @return the value of slot i */
+        abstract Field get(int i);
+
+        /** Clears pass[i] for every slot i whose value fails op against operand. */
+        void filter(Predicate.Op op, Field operand, boolean[] pass) {
+            for (int i = 0; i < pass.length; i++) {
+                if (pass[i] && !get(i).compare(op, operand))
+                    pass[i] = false;
+            }
+        }
+    }
+
+    private abstract static class Ints extends Column {
+        Ints(byte encoding) {
+            super(encoding);
+        }
+
+        abstract int value(int i);
+
+        Field get(int i) {
+            return new IntField(value(i));
+        }
+
+        void filter(Predicate.Op op, Field operand, boolean[] pass) {
+            if (operand.getType() != Type.INT_TYPE) {
+                super.filter(op, operand, pass);
+                return;
+            }
+            int v = ((IntField) operand).getValue();
+            for (int i = 0; i < pass.length; i++) {
+                if (pass[i] && !HeapPage.compare(value(i), op, v))
+                    pass[i] = false;
+            }
+        }
+    }
+
+    private static class PlainInts extends Ints {
+        private final byte[] b;
+        private final int off;
+
+        PlainInts(byte[] b, int off) {
+            super(PLAIN);
+            this.b = b;
+            this.off = off;
+        }
+
+        int value(int i) {
+            return HeapPage.readInt(b, off + 4 * i);
+        }
+    }
+
+    private static class ForInts extends Ints {
+        private final byte[] b;
+        private final int base;
+        private final int bits;
+        private final int off;
+
+        ForInts(byte[] b, int off) {
+            super(FOR);
+            this.b = b;
+            this.base = HeapPage.readInt(b, off);
+            this.bits = b[off + 4];
+            this.off = off + 5;
+        }
+
+        int value(int i) {
+            return (int) (base + unpack(b, off, bits, i));
+        }
+
+        /** Compares the packed values with the operand less the base. */
+        void filter(Predicate.Op op, Field operand, boolean[] pass) {
+            if (operand.getType() != Type.INT_TYPE) {
+                super.filter(op, operand, pass);
+                return;
+            }
+            long v = (long) ((IntField) operand).getValue() - base;
+            for (int i = 0; i < pass.length; i++) {
+                if (pass[i] && !HeapPage.compare(unpack(b, off, bits, i), op, v))
+                    pass[i] = false;
+            }
+        }
+    }
+
+    private static class PlainStrings extends Column {
+        private final byte[] b;
+        private final int[] offsets;
+
+        PlainStrings(byte[] b, int off, int n) {
+            super(PLAIN);
+            this.b = b;
+            this.offsets = new int[n];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = off;
+                off += 4 + HeapPage.readInt(b, off);
+            }
+        }
+
+        Field get(int i) {
+            return HeapPage.readField(b, offsets[i], Type.STRING_TYPE);
+        }
+    }
+
+    /** @return the value of type t at offset off of b, and its length in lengthOut[0] */
+    private static Field readValue(byte[] b, int off, Type t, int[] lengthOut) {
+        lengthOut[0] = t == Type.INT_TYPE ? 4 : 4 + HeapPage.readInt(b, off);
+        return HeapPage.readField(b, off, t);
+    }
+
+    private static class Runs extends Column {
+        private final Field[] values;
+        // the slot after every run
+        private final int[] ends;
+
+        Runs(byte[] b, int off, Type t) {
+            super(RLE);
+            int runs = HeapPage.readInt(b, off);
+            off += 4;
+            values = new Field[runs];
+            ends = new int[runs];
+            int[] len = new int[1];
+            for (int r = 0; r < runs; r++) {
+                values[r] = readValue(b, off, t, len);
+                off += len[0];
+                ends[r] = HeapPage.readInt(b, off);
+                off += 4;
+            }
+        }
+
+        Field get(int i) {
+            int r = Arrays.binarySearch(ends, i + 1);
+            return values[r >= 0 ? r : -r - 1];
+        }
+
+        /** Tests every run once. */
+        void filter(Predicate.Op op, Field operand, boolean[] pass) {
+            int start = 0;
+            for (int r = 0; r < values.length; r++) {
+                if (!values[r].compare(op, operand)) {
+                    for (int i = start; i < ends[r] && i < pass.length; i++)
+                        pass[i] = false;
+                }
+                start = ends[r];
+            }
+        }
+    }
+
+    private static class Dictionary extends Column {
+        private final byte[] b;
+        private final Field[] dict;
+        private final int bits;
+        private final int off;
+
+        Dictionary(byte[] b, int off, Type t) {
+            super(DICT);
+            this.b = b;
+            dict = new Field[HeapPage.readInt(b, off)];
+            off += 4;
+            int[] len = new int[1];
+            for (int k = 0; k < dict.length; k++) {
+                dict[k] = readValue(b, off, t, len);
+                off += len[0];
+            }
+            this.bits = b[off];
+            this.off = off + 1;
+        }
+
+        Field get(int i) {
+            return dict[(int) unpack(b, off, bits, i)];
+        }
+
+        /** Tests every value of the dictionary once, then compares codes. */
+        void filter(Predicate.Op op, Field operand, boolean[] pass) {
+            boolean[] ok = new boolean[dict.length];
+            for (int k = 0; k < dict.length; k++)
+                ok[k] = dict[k].compare(op, operand);
+            for (int i = 0; i < pass.length; i++) {
+                if (pass[i] && !ok[(int) unpack(b, off, bits, i)])
+                    pass[i] = false;
+            }
+        }
+    }
+
+    /** @return the page as it is now; it stays as it is no matter how long it is read */
+    private Image image() {
+        byte[] b = snapshot();
+        Image im = image;
+        if (im.b != b) {
+            im = new Image(b, td.numFields());
+            image = im;
+        }
+        return im;
+    }
+
+    /** Decodes the tuple in slot i of im, which must be used. */
+    private Tuple readTuple(Image im, int i) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        for (int j = 0; j < td.numFields(); j++)
+            t.setField(j, im.column(j, td.getFieldType(j)).get(i));
+        return t;
+    }
+
+    /** @return the tuples in the first n slots of im, null for an empty slot */
+    private Tuple[] readSlots(Image im, int n) {
+        Tuple[] slots = new Tuple[n];
+        for (int i = 0; i < im.n; i++) {
+            if (im.isSlotUsed(i))
+                slots[i] = readTuple(im, i);
+        }
+        return slots;
+    }
+
+    /** @return the first empty slot of im, which may be the slot after the last */
+    private static int emptySlot(Image im) {
+        int i = 0;
+        while (i < im.n && im.isSlotUsed(i))
+            i++;
+        return i;
+    }
+
+    /** @return the number of slots of the page, used or not */
+    public int getNumSlots() {
+        return image().n;
+    }
+
+    /** @return the number of tuples on the page */
+    public int getNumTuples() {
+        Image im = image();
+        int used = 0;
+        for (int i = 0; i < im.n; i++)
+            used += im.isSlotUsed(i) ? 1 : 0;
+        return used;
+    }
+
+    /** @return the bytes of the page not taken by its tuples */
+    public int getFreeSpace() {
+        Image im = image();
+        return im.b.length - im.size;
+    }
+
+    /**
+     * @return the encoding of field j on this page, or -1 if the page is
+     *         empty
+     */
+    public int getEncoding(int j) {
+        Image im = image();
+        return im.n == 0 ? -1 : im.column(j, td.getFieldType(j)).encoding;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        Image im = image();
+        return i >= 0 && i < im.n && im.isSlotUsed(i);
+    }
+
+    /**
+     * Decodes the tuple in slot i alone, as a lookup by RecordId needs.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        Image im = image();
+        return i >= 0 && i < im.n && im.isSlotUsed(i) ? readTuple(im, i) : null;
+    }
+
+    /** @return true if t fits on the page, encoded with the tuples on it */
+    public boolean hasRoomFor(Tuple t) {
+        Image im = image();
+        int slot = emptySlot(im);
+        Tuple[] slots = readSlots(im, Math.max(im.n, slot + 1));
+        slots[slot] = t;
+        return encode(td, slots, im.b.length) != null;
+    }
+
+    /**
+     * Adds the specified tuple to the page, in its first empty slot, and
+     * encodes the page again;  the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page has no room for the tuple or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("td is mismatch");
+        Image im = image();
+        int slot = emptySlot(im);
+        Tuple[] slots = readSlots(im, Math.max(im.n, slot + 1));
+        slots[slot] = t;
+        byte[] b = encode(td, slots, im.b.length);
+        if (b == null)
+            throw new DbException("page is full");
+        write(b);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page and encode the page again;
+     * the other tuples keep their slots.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !getId().equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        Image im = image();
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= im.n || !im.isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        Tuple[] slots = readSlots(im, im.n);
+        slots[slot] = null;
+        // no column gets larger in any encoding, see encodeColumn
+        byte[] b = encode(td, slots, im.b.length);
+        if (b == null)
+            throw new DbException("page is full");
+        write(b);
+    }
+
+    /** Makes b the bytes of the page, keeping the ones before as the before image. */
+    private void write(byte[] b) {
+        replaceData(b);
+        image = new Image(b, td.numFields());
+    }
+
+    protected CompressedPage pageOf(byte[] data) throws IOException {
+        return new CompressedPage(pid, data);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public CompressedPage getBeforeImage() {
+        return (CompressedPage) super.getBeforeImage();
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return iterator(Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that pass all of
+     * filters, as it was when the iterator was created.  The filters are
+     * tested on the encoded columns of their fields before any tuple is
+     * decoded.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> filters) {
+        final Image im = image();
+        final boolean[] pass = new boolean[im.n];
+        for (int i = 0; i < im.n; i++)
+            pass[i] = im.isSlotUsed(i);
+        for (Predicate p : filters) {
+            int f = p.getField();
+            im.column(f, td.getFieldType(f)).filter(p.getOp(), p.getOperand(), pass);
+        }
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < pass.length && !pass[i])
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return next < pass.length;
+            }
+
+            public Tuple next() {
+                if (next >= pass.length)
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(im, next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * The state a SlottedPage, PaxPage or CompressedPage shares: the bytes the
+ * page is made of, its before image, and whether and by whom it is dirty.
+ * <p>
+ * Like a HeapPage, the page keeps the bytes it is read from and writes its
+ * first change to a copy, keeping the bytes as its before image.  Bytes
+ * handed out to be read (see {@link #snapshot}) are not written to again;
+ * the next change copies them first.  A page of all zeroes is an empty
+ * page in every format.
+ *
+ * @see SlottedPage
+ * @see PaxPage
+ * @see CompressedPage
+ */
+public abstract class CopyOnWritePage implements TuplePage {
+
+    protected final HeapPageId pid;
+    protected final TupleDesc td;
+    // not written to while shared (see beforeWrite)
+    protected byte[] data;
+    private boolean shared = true;
+    // null while the page holds its before image, i.e. until the first write
+    private byte[] oldData;
+    private volatile boolean dirty = false;
+    private volatile TransactionId dirtier = null;
+    private volatile long lsn = 0;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Keeps the bytes of a page as they are; the subclass checks them.
+     */
+    protected CopyOnWritePage(HeapPageId id, byte[] data) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = data;
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * page.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; //all 0
+    }
+
+    /** @return a page of the same class and id made of the given bytes */
+    protected abstract CopyOnWritePage pageOf(byte[] data) throws IOException;
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Called before every change to the bytes of the page; see
+     * HeapPage.beforeWrite.
+     */
+    protected void beforeWrite() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = data;
+                shared = true;
+            }
+            if (shared) {
+                data = data.clone();
+                shared = false;
+            }
+        }
+    }
+
+    /**
+     * Makes b, which nothing else holds, the bytes of the page instead of
+     * changing them in place, keeping the ones before as the before image.
+     */
+    protected void replaceData(byte[] b) {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null)
+                oldData = data;
+            data = b;
+            shared = false;
+        }
+    }
+
+    /**
+     * @return the bytes of the page, which stay as they are until the page
+     *         is changed no matter how long they are read from
+     */
+    protected byte[] snapshot() {
+        synchronized(oldDataLock)
+        {
+            shared = true;
+            return data;
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, to
+     * write it to disk or pass it back to the constructor.
+     */
+    public byte[] getPageData() {
+        synchronized(oldDataLock)
+        {
+            return data.clone();
+        }
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public CopyOnWritePage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                if (oldData != null) {
+                    oldDataRef = oldData;
+                } else {
+                    oldDataRef = data;
+                    shared = true;
+                }
+            }
+            return pageOf(oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /** Makes the current contents of the page its before image. */
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            oldData = null;
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.dirtier = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return dirty ? dirtier : null;
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+}
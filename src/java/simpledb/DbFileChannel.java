@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The open file behind a DbFile.  One FileChannel is kept per file and all
+ * I/O is positional, so concurrent readers and writers do not share a file
+ * pointer and need no locking here.
+ * <p>
+ * The channel is opened on first use and reopened if it has been closed,
+ * so a DbFile that outlives {@link #close} keeps working.
+ */
+class DbFileChannel {
+
+    private final File f;
+    private volatile FileChannel channel;
+
+    DbFileChannel(File f) {
+        this.f = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen()) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null || !ch.isOpen()) {
+                    ch = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Read exactly len bytes at the given file offset into buf.
+     *
+     * @return false if the file ends before that
+     */
+    boolean read(byte[] buf, int len, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining()) {
+            int n;
+            try {
+                n = channel().read(bb, position + bb.position());
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                continue; // closed by somebody else; reopen
+            }
+            if (n < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Write all of data at the given file offset. */
+    void write(byte[] data, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        while (bb.hasRemaining()) {
+            try {
+                channel().write(bb, position + bb.position());
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by somebody else; reopen
+            }
+        }
+    }
+
+    /** @return the current size of the file in bytes */
+    long size() throws IOException {
+        return channel().size();
+    }
+
+    /** Map size bytes of the file, starting at position, read-only. */
+    MappedByteBuffer map(long position, long size) throws IOException {
+        return channel().map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /** Append data at the end of the file; callers serialize appends. */
+    void append(byte[] data) throws IOException {
+        write(data, channel().size());
+    }
+
+    /** Release the file descriptor. */
+    synchronized void close() {
+        FileChannel ch = channel;
+        channel = null;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nothing useful to do about it
+            }
+        }
+    }
+}
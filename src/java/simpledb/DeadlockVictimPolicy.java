@@ -0,0 +1,17 @@
+package simpledb;
+
+/**
+ * Decides which transaction of a wait-for cycle the lock manager aborts to
+ * break a deadlock.  Ties are always broken in favor of aborting the
+ * youngest transaction.
+ *
+ * @see BufferPool#setDeadlockVictimPolicy
+ */
+public enum DeadlockVictimPolicy {
+    /** Abort the transaction that started last; it has done the least work. */
+    YOUNGEST,
+    /** Abort the transaction holding the fewest page locks. */
+    FEWEST_LOCKS,
+    /** Abort the transaction that has written the fewest bytes of log. */
+    LEAST_LOG
+}
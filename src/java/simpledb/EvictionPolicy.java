@@ -0,0 +1,59 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which page the BufferPool gives up when it runs out
+ * of frames.  The BufferPool reports every page it loads, every cache hit and
+ * every page it drops; the policy keeps whatever access history it needs per
+ * {@link PageId} and picks a victim on request.
+ * <p>
+ * Implementations must be safe to call from many threads at once.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called after a page has been read from disk (or otherwise installed)
+     * into the buffer pool.
+     *
+     * @param pid the page that became resident
+     */
+    public void pageLoaded(PageId pid);
+
+    /**
+     * Called on every buffer pool hit.  This is on the fast path of
+     * {@link BufferPool#getPage} and should be as cheap as possible.
+     *
+     * @param pid the page that was requested
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page is dropped from the buffer pool without going
+     * through {@link #evict}, e.g. by {@link BufferPool#discardPage}.
+     *
+     * @param pid the page that is no longer resident
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose a resident page to evict.  The returned page is no longer
+     * considered resident by the policy, so the caller must remove it from
+     * the buffer pool.
+     *
+     * @param evictable tells whether a candidate may be evicted right now
+     *                  (clean pages only, since we run in NO STEAL mode)
+     * @return the victim, or null if no resident page is evictable
+     */
+    public PageId evict(java.util.function.Predicate<PageId> evictable);
+
+    /**
+     * Called when the buffer pool keeps the page {@link #evict} just
+     * returned, because it was pinned, dirtied or latched in the meantime.
+     * The page is resident again, with the history it had before; unlike
+     * {@link #pageLoaded}, this is not a reference to it.
+     *
+     * @param pid the victim that stays in the buffer pool
+     */
+    public void reinstate(PageId pid);
+}
@@ -0,0 +1,265 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exchange gathers the tuples of several independent pipelines, each run
+ * by a worker thread of its own, into one stream, in no particular order.
+ * It is what runs a plan in parallel: typically every pipeline is a copy of
+ * the same Filter, Project or partial Aggregate over a SeqScan, and the
+ * scans share a {@link PageMorsels}, so that together they read the table
+ * once.
+ * <p>
+ * Workers hand tuples over in chunks through a bounded queue, so they can
+ * only get so far ahead of the consumer.  They read pages as the
+ * transaction of their scans; locks belong to the transaction, not to a
+ * thread, and are released with it as usual.  Closing the exchange stops
+ * the workers and waits until they have closed their pipelines.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Tuples handed over at a time. */
+    public static final int CHUNK = 256;
+
+    /** Chunks queued per pipeline before its worker waits. */
+    public static final int QUEUED = 4;
+
+    private static final int DEFAULT_PARALLELISM = 1;
+    private static int parallelism = DEFAULT_PARALLELISM;
+
+    private static final ExecutorService WORKERS;
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        WORKERS = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                5, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "exchange-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /** Marks the end of the tuples of one pipeline. */
+    private static final Object DONE = new Object();
+
+    private OpIterator[] children;
+    private transient BlockingQueue<Object> queue;
+    private transient Future<?>[] workers;
+    private transient volatile boolean cancelled;
+    private transient int running;
+    private transient Tuple[] chunk;
+    private transient int chunkPos;
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            the pipelines to run in parallel, all with the same
+     *            TupleDesc
+     */
+    public Exchange(OpIterator[] children) {
+        if (children.length == 0)
+            throw new IllegalArgumentException("no pipelines");
+        this.children = children.clone();
+    }
+
+    /**
+     * @return how many pipelines the planner runs a parallel scan in; by
+     *         default 1, i.e. plans are serial
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of pipelines the planner runs a parallel scan in; 1
+     * turns parallel plans off.
+     */
+    public static void setParallelism(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        parallelism = n;
+    }
+
+    public static void resetParallelism() {
+        parallelism = DEFAULT_PARALLELISM;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return children[0].getTupleDesc();
+    }
+
+    /** Hands the morsels of the scans under it out again from the start. */
+    private static void resetMorsels(OpIterator it) {
+        if (it instanceof SeqScan) {
+            PageMorsels m = ((SeqScan) it).getMorsels();
+            if (m != null)
+                m.reset();
+        } else if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren())
+                resetMorsels(child);
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        for (OpIterator child : children)
+            resetMorsels(child);
+        queue = new ArrayBlockingQueue<Object>(QUEUED * children.length);
+        cancelled = false;
+        running = children.length;
+        chunk = null;
+        workers = new Future<?>[children.length];
+        for (int i = 0; i < children.length; i++) {
+            final OpIterator child = children[i];
+            workers[i] = WORKERS.submit(() -> run(child));
+        }
+        super.open();
+    }
+
+    /** Queues o, unless the exchange is closed first. */
+    private void handOver(Object o) throws InterruptedException {
+        while (!cancelled) {
+            if (queue.offer(o, 10, TimeUnit.MILLISECONDS))
+                return;
+        }
+    }
+
+    /** The work of a worker: runs child, queueing its tuples. */
+    private void run(OpIterator child) {
+        boolean opened = false;
+        try {
+            child.open();
+            opened = true;
+            Tuple[] buf = new Tuple[CHUNK];
+            int n = 0;
+            while (!cancelled && child.hasNext()) {
+                buf[n++] = child.next();
+                if (n == CHUNK) {
+                    handOver(buf);
+                    buf = new Tuple[CHUNK];
+                    n = 0;
+                }
+            }
+            if (n > 0)
+                handOver(Arrays.copyOf(buf, n));
+            handOver(DONE);
+        } catch (Throwable e) {
+            try {
+                handOver(e);
+            } catch (InterruptedException ie) {
+                // closed anyway
+            }
+        } finally {
+            if (opened)
+                child.close();
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the next tuple of any of
+     * the pipelines, passing on the first error one of them hits.
+     *
+     * @return The next tuple, or null once all pipelines are done
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (true) {
+            if (chunk != null && chunkPos < chunk.length)
+                return chunk[chunkPos++];
+            chunk = null;
+            if (running == 0)
+                return null;
+            Object o;
+            try {
+                o = queue.take();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for tuples");
+            }
+            if (o == DONE) {
+                running--;
+            } else if (o instanceof Tuple[]) {
+                chunk = (Tuple[]) o;
+                chunkPos = 0;
+            } else {
+                running = 0;
+                rethrow((Throwable) o);
+            }
+        }
+    }
+
+    /** Throws e, which a worker hit, on the thread that waited for it. */
+    private static void rethrow(Throwable e) throws DbException,
+            TransactionAbortedException {
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        throw new DbException("pipeline failed: " + e);
+    }
+
+    /**
+     * Runs tasks on the worker threads and waits until all of them are
+     * done, passing on the first error any of them hits.
+     */
+    static void runAll(List<Callable<Void>> tasks) throws DbException,
+            TransactionAbortedException {
+        List<Future<Void>> done;
+        try {
+            done = WORKERS.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted while waiting for workers");
+        }
+        for (Future<Void> f : done) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for workers");
+            } catch (ExecutionException e) {
+                rethrow(e.getCause());
+            }
+        }
+    }
+
+    public void close() {
+        super.close();
+        if (workers == null)
+            return;
+        cancelled = true;
+        for (Future<?> w : workers) {
+            try {
+                w.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // run reports its errors through the queue
+            }
+        }
+        workers = null;
+        queue = null;
+        chunk = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /** @return the pipelines */
+    @Override
+    public OpIterator[] getChildren() {
+        return children.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.children = children.clone();
+    }
+}
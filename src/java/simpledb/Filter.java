@@ -5,12 +5,14 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
     private Predicate p;
     private OpIterator child;
+    // true if the scan under the filter applies p itself
+    private transient boolean pushed = false;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -36,13 +38,43 @@ public class Filter extends Operator {
         return child.getTupleDesc();
     }
 
+    /**
+     * Pushes q into the SeqScan or ColumnScan at the bottom of it, through any filters
+     * that are pushed too, so that the scan tests it on the bytes of its
+     * pages before decoding tuples.
+     *
+     * @return true if the scan takes q
+     */
+    private static boolean pushDown(OpIterator it, Predicate q) {
+        if (it instanceof SeqScan) {
+            return ((SeqScan) it).pushFilter(q);
+        }
+        if (it instanceof ColumnScan) {
+            return ((ColumnScan) it).pushFilter(q);
+        }
+        if (it instanceof Filter) {
+            Filter f = (Filter) it;
+            return pushDown(f.child, f.p) && pushDown(f.child, q);
+        }
+        return false;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        pushed = pushDown(child, p);
         child.open();
         super.open();
     }
 
+    /**
+     * @return true if the predicate is applied by the scan under the filter
+     *         rather than by the filter
+     */
+    public boolean isPushedDown() {
+        return pushed;
+    }
+
     public void close() {
         // some code goes here
         child.close();
@@ -68,13 +100,31 @@ public class Filter extends Operator {
         // some code goes here
         while(child.hasNext()) {
             Tuple t = child.next();
-            if(p.filter(t)) {
+            if(pushed || p.filter(t)) {
                 return t;
             }
         }
         return null;
     }
 
+    /**
+     * Evaluates the predicate over whole batches of the child, narrowing
+     * their selection vectors, unless the scan under the filter has applied
+     * it already; batches with no rows left are skipped.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch b;
+        while ((b = TupleBatch.nextBatch(child)) != null) {
+            if (!pushed) {
+                p.filter(b);
+            }
+            if (b.numRows() > 0) {
+                return b;
+            }
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * The free-space map of a HeapFile or another file of HeapPageIds: one byte per page of the
+ * file, the room the page has (capped at 255), so that an insert goes
+ * straight to a page with room instead of reading every page.  Room is
+ * counted in units the file chooses: empty slots for a HeapFile or PaxFile,
+ * chunks of free bytes for a SlottedFile or CompressedFile.
+ * <p>
+ * The map is kept in a fork next to the file, named after it plus
+ * {@link #SUFFIX}, and loaded on first use.  Its entries follow the pages:
+ * a page written to or read from the file updates its entry, and pages
+ * are only written after their update records are in the log, so recovery,
+ * which writes pages back through the file, brings the map along.  If the
+ * fork is missing, of the wrong size or older than the file (a crash
+ * between writing a page and its entry, or a file replaced behind our
+ * back) the map is rebuilt from the pages once.  Updates made before the
+ * map is loaded, such as deletes on pages in the buffer pool, are kept and
+ * applied once it is.
+ * <p>
+ * Entries are hints: an insert that finds its page full after all
+ * corrects the entry and asks again.
+ */
+public class FreeSpaceMap {
+
+    /** Appended to the name of a heap file to name its map. */
+    public static final String SUFFIX = ".fsm";
+
+    private static final int MAX_FREE = 255;
+
+    private final DbFile file;
+    private final File dataFile;
+    private final ToIntFunction<Page> room;
+    private final File forkFile;
+    private final DbFileChannel fork;
+
+    private boolean loaded = false;
+    private int numPages = 0;
+    private byte[] free = new byte[0];
+    // the number of entries in the fork
+    private int written = 0;
+    // no page before this one has room
+    private int first = 0;
+    // updates made before the map is loaded, of pages deletes have made room on
+    private final HashMap<Integer, Integer> pending = new HashMap<Integer, Integer>();
+
+    /**
+     * @param file
+     *            the file whose pages the map covers
+     * @param dataFile
+     *            the file on disk file is stored in, one page after another
+     * @param room
+     *            gives the room a page of the file has, in the units of the
+     *            entries
+     */
+    public FreeSpaceMap(DbFile file, File dataFile, ToIntFunction<Page> room) {
+        this.file = file;
+        this.dataFile = dataFile;
+        this.room = room;
+        this.forkFile = new File(dataFile.getPath() + SUFFIX);
+        this.fork = new DbFileChannel(forkFile);
+    }
+
+    /** @return the file the map is kept in */
+    public File getForkFile() {
+        return forkFile;
+    }
+
+    private void load() throws IOException {
+        // rebuilding reads the pages from disk, which updates them again
+        HashMap<Integer, Integer> changed = new HashMap<Integer, Integer>(pending);
+        pending.clear();
+        numPages = pagesOnDisk();
+        free = new byte[Math.max(16, numPages)];
+        written = numPages;
+        if (!(forkFile.length() == numPages
+                && forkFile.lastModified() >= dataFile.lastModified()
+                && fork.read(free, numPages, 0))) {
+            for (int i = 0; i < numPages; i++) {
+                Page p = file.readPage(new HeapPageId(file.getId(), i));
+                free[i] = (byte) Math.min(MAX_FREE, room.applyAsInt(p));
+            }
+            fork.write(Arrays.copyOf(free, numPages), 0);
+        }
+        loaded = true;
+        first = 0;
+        // pages changed in the buffer pool have more room than on disk
+        for (Map.Entry<Integer, Integer> e : changed.entrySet()) {
+            update(e.getKey(), e.getValue());
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return the number of a page that has room for a tuple, or -1 if
+     *         none has
+     */
+    public int pageWithRoom() throws IOException {
+        return pageWithRoom(1);
+    }
+
+    /**
+     * @return the number of a page whose entry is at least need, or -1 if
+     *         none is
+     */
+    public synchronized int pageWithRoom(int need) throws IOException {
+        if (!loaded) {
+            load();
+        }
+        // pages with less room than need may still take smaller tuples
+        int firstFree = -1;
+        for (int i = first; i < numPages; i++) {
+            int n = free[i] & 0xFF;
+            if (n != 0 && firstFree < 0) {
+                firstFree = i;
+            }
+            if (n >= Math.max(1, need)) {
+                first = firstFree;
+                return i;
+            }
+        }
+        first = firstFree < 0 ? numPages : firstFree;
+        return -1;
+    }
+
+    /**
+     * @return the entry of page pgno, its empty slots for a HeapFile, or -1
+     *         if the map doesn't cover it
+     */
+    public synchronized int emptySlots(int pgno) throws IOException {
+        if (!loaded) {
+            load();
+        }
+        return pgno < numPages ? free[pgno] & 0xFF : -1;
+    }
+
+    /**
+     * Records that page pgno has room n, in memory only; see
+     * {@link #write}.
+     */
+    public synchronized void update(int pgno, int n) {
+        if (!loaded) {
+            pending.put(pgno, n);
+            return;
+        }
+        if (pgno >= free.length) {
+            free = Arrays.copyOf(free, Math.max(2 * free.length, pgno + 1));
+        }
+        numPages = Math.max(numPages, pgno + 1);
+        free[pgno] = (byte) Math.min(MAX_FREE, n);
+        if (n > 0 && pgno < first) {
+            first = pgno;
+        }
+    }
+
+    /**
+     * Records that page pgno, just written to the file, has room n, and
+     * writes its entry to the fork, after those of any pages added since
+     * the last write.
+     */
+    public synchronized void write(int pgno, int n) throws IOException {
+        if (!loaded) {
+            // the fork is older than the file now, and will be rebuilt
+            return;
+        }
+        update(pgno, n);
+        if (written < numPages) {
+            fork.write(Arrays.copyOfRange(free, written, numPages), written);
+            written = numPages;
+        }
+        fork.write(new byte[] { free[pgno] }, pgno);
+    }
+
+    /** @return the number of pages in the file on disk */
+    private int pagesOnDisk() {
+        return (int) (dataFile.length() / BufferPool.getPageSize());
+    }
+
+    /** Releases the file descriptor of the fork. */
+    public void close() {
+        fork.close();
+    }
+}
@@ -0,0 +1,421 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * The groups of an {@link Aggregate}, {@link IntegerAggregator} or
+ * {@link StringAggregator} and their running aggregates; those of an
+ * Aggregate are held in at most {@link BufferPool#getOperatorMemory()}
+ * bytes.
+ * <p>
+ * A group is keyed on any number of int and string fields and keeps, for
+ * each aggregate, one running long (a sum, min or max; counts are shared by
+ * all of a group's aggregates).  Keys and totals live in parallel primitive
+ * arrays indexed by group number, found through an open addressing table.
+ * Once the budget is used up no new group is added: merging a tuple of an
+ * unknown group fails, and the caller is left to deal with it.
+ */
+public class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_GROUPS = 16;
+
+    private final int[] gfields;
+    private final int[] afields;
+    private final Aggregator.Op[] ops;
+    private final boolean[] intKey;
+    private final int capacity;
+
+    private int numGroups = 0;
+    private int[] hashes;
+    private int[][] intKeys;
+    private String[][] strKeys;
+    private long[] counts;
+    private long[][] accs;
+    // linear probing table: group number + 1, or 0 for an empty slot
+    private int[] slots;
+
+    /**
+     * Creates an empty table.  With no group fields, the table has a single
+     * group, which exists even before any tuple is merged.
+     *
+     * @param td
+     *            the descriptor of the tuples merged
+     * @param gfields
+     *            the fields grouped on, possibly none
+     * @param afields
+     *            the fields aggregated; only COUNT applies to string fields
+     * @param ops
+     *            the aggregate of each of afields
+     */
+    public GroupTable(TupleDesc td, int[] gfields, int[] afields, Aggregator.Op[] ops) {
+        this(keyTypes(td, gfields), gfields, afields, ops, BufferPool.getOperatorMemory());
+    }
+
+    /**
+     * Creates an empty table that holds as many groups as fit in memory
+     * bytes.
+     *
+     * @param keyTypes
+     *            the type of each of gfields
+     * @param memory
+     *            the bytes the groups may take, or Long.MAX_VALUE for no
+     *            limit
+     * @see #GroupTable(TupleDesc, int[], int[], Aggregator.Op[])
+     */
+    public GroupTable(Type[] keyTypes, int[] gfields, int[] afields, Aggregator.Op[] ops,
+            long memory) {
+        this.gfields = gfields;
+        this.afields = afields;
+        this.ops = ops;
+        intKey = new boolean[gfields.length];
+        long groupSize = 4 + 8 + 8 + 8 * afields.length; // hash, 2 slots, count, totals
+        for (int c = 0; c < gfields.length; c++) {
+            intKey[c] = keyTypes[c] == Type.INT_TYPE;
+            groupSize += keyTypes[c].getLen();
+        }
+        capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, memory / groupSize));
+
+        int n = Math.min(INITIAL_GROUPS, capacity);
+        hashes = new int[n];
+        intKeys = new int[gfields.length][];
+        strKeys = new String[gfields.length][];
+        for (int c = 0; c < gfields.length; c++) {
+            if (intKey[c])
+                intKeys[c] = new int[n];
+            else
+                strKeys[c] = new String[n];
+        }
+        counts = new long[n];
+        accs = new long[afields.length][n];
+        slots = new int[2 * Integer.highestOneBit(2 * n - 1)];
+        clear();
+    }
+
+    private static Type[] keyTypes(TupleDesc td, int[] gfields) {
+        Type[] types = new Type[gfields.length];
+        for (int c = 0; c < gfields.length; c++)
+            types[c] = td.getFieldType(gfields[c]);
+        return types;
+    }
+
+    /** @return the number of groups the memory budget holds */
+    public int capacity() {
+        return capacity;
+    }
+
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /** @return the number of tuples merged into group g */
+    public long count(int g) {
+        return counts[g];
+    }
+
+    /** Removes all groups, keeping the memory allocated for them. */
+    public void clear() {
+        numGroups = 0;
+        Arrays.fill(slots, 0);
+        if (gfields.length == 0)
+            newGroup(0);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the hash of the group of t */
+    public int hash(Tuple t) {
+        int h = 0;
+        for (int c = 0; c < gfields.length; c++) {
+            Field f = t.getField(gfields[c]);
+            h = 31 * h + (intKey[c] ? ((IntField) f).getValue()
+                    : ((StringField) f).getValue().hashCode());
+        }
+        return mix(h);
+    }
+
+    /** @return the hash of the group of row r of b */
+    public int hash(TupleBatch b, int r) {
+        int h = 0;
+        for (int c = 0; c < gfields.length; c++) {
+            h = 31 * h + (intKey[c] ? b.getInt(gfields[c], r)
+                    : b.getString(gfields[c], r).hashCode());
+        }
+        return mix(h);
+    }
+
+    /** Adds a group with empty totals and returns its number. */
+    private int newGroup(int h) {
+        if (numGroups == counts.length) {
+            int n = Math.min(2 * numGroups, capacity);
+            hashes = Arrays.copyOf(hashes, n);
+            for (int c = 0; c < gfields.length; c++) {
+                if (intKey[c])
+                    intKeys[c] = Arrays.copyOf(intKeys[c], n);
+                else
+                    strKeys[c] = Arrays.copyOf(strKeys[c], n);
+            }
+            counts = Arrays.copyOf(counts, n);
+            for (int j = 0; j < afields.length; j++)
+                accs[j] = Arrays.copyOf(accs[j], n);
+        }
+        int g = numGroups++;
+        hashes[g] = h;
+        counts[g] = 0;
+        for (int j = 0; j < afields.length; j++) {
+            if (ops[j] == Aggregator.Op.MIN)
+                accs[j][g] = Integer.MAX_VALUE;
+            else if (ops[j] == Aggregator.Op.MAX)
+                accs[j][g] = Integer.MIN_VALUE;
+            else
+                accs[j][g] = 0;
+        }
+        return g;
+    }
+
+    /** Doubles the slots once they are half full. */
+    private void maybeGrow() {
+        if (2 * numGroups <= slots.length)
+            return;
+        slots = new int[2 * slots.length];
+        int mask = slots.length - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int i = hashes[g] & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = g + 1;
+        }
+    }
+
+    /** @return the slot of the group of t, or the empty slot it belongs in */
+    private int probe(Tuple t, int h) {
+        int mask = slots.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int g = slots[i] - 1;
+            if (g < 0)
+                return i;
+            if (hashes[g] != h)
+                continue;
+            boolean same = true;
+            for (int c = 0; same && c < gfields.length; c++) {
+                Field f = t.getField(gfields[c]);
+                same = intKey[c] ? intKeys[c][g] == ((IntField) f).getValue()
+                        : strKeys[c][g].equals(((StringField) f).getValue());
+            }
+            if (same)
+                return i;
+        }
+    }
+
+    /** @return the slot of the group of row r of b, or the empty slot it belongs in */
+    private int probe(TupleBatch b, int r, int h) {
+        int mask = slots.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int g = slots[i] - 1;
+            if (g < 0)
+                return i;
+            if (hashes[g] != h)
+                continue;
+            boolean same = true;
+            for (int c = 0; same && c < gfields.length; c++) {
+                same = intKey[c] ? intKeys[c][g] == b.getInt(gfields[c], r)
+                        : strKeys[c][g].equals(b.getString(gfields[c], r));
+            }
+            if (same)
+                return i;
+        }
+    }
+
+    private void accumulate(int g, int j, int v) {
+        switch (ops[j]) {
+        case MIN:
+            if (v < accs[j][g])
+                accs[j][g] = v;
+            break;
+        case MAX:
+            if (v > accs[j][g])
+                accs[j][g] = v;
+            break;
+        case SUM:
+        case AVG:
+            accs[j][g] += v;
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Merges t into its group, adding the group if there is room for it.
+     *
+     * @param h
+     *            the hash of the group of t, see {@link #hash(Tuple)}
+     * @return false if t belongs to a new group and the table is full
+     */
+    public boolean merge(Tuple t, int h) {
+        int g = 0;
+        if (gfields.length > 0) {
+            int i = probe(t, h);
+            g = slots[i] - 1;
+            if (g < 0) {
+                if (numGroups == capacity)
+                    return false;
+                g = newGroup(h);
+                for (int c = 0; c < gfields.length; c++) {
+                    Field f = t.getField(gfields[c]);
+                    if (intKey[c])
+                        intKeys[c][g] = ((IntField) f).getValue();
+                    else
+                        strKeys[c][g] = ((StringField) f).getValue();
+                }
+                slots[i] = g + 1;
+                maybeGrow();
+            }
+        }
+        counts[g]++;
+        for (int j = 0; j < afields.length; j++) {
+            if (ops[j] != Aggregator.Op.COUNT)
+                accumulate(g, j, ((IntField) t.getField(afields[j])).getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Merges every selected row of b into its group, as {@link #merge} does.
+     *
+     * @param rejected
+     *            receives the rows of b (indexes into its columns) that
+     *            belong to new groups for which there was no room
+     * @return the number of rows rejected
+     */
+    public int mergeBatch(TupleBatch b, int[] rejected) {
+        int n = b.numRows();
+        int[] groups = new int[n];
+        int nrejected = 0;
+        for (int i = 0; i < n; i++) {
+            int r = b.row(i);
+            int g = 0;
+            if (gfields.length > 0) {
+                int h = hash(b, r);
+                int s = probe(b, r, h);
+                g = slots[s] - 1;
+                if (g < 0) {
+                    if (numGroups == capacity) {
+                        rejected[nrejected++] = r;
+                        groups[i] = -1;
+                        continue;
+                    }
+                    g = newGroup(h);
+                    for (int c = 0; c < gfields.length; c++) {
+                        if (intKey[c])
+                            intKeys[c][g] = b.getInt(gfields[c], r);
+                        else
+                            strKeys[c][g] = b.getString(gfields[c], r);
+                    }
+                    slots[s] = g + 1;
+                    maybeGrow();
+                }
+            }
+            counts[g]++;
+            groups[i] = g;
+        }
+        // then one aggregate at a time, straight off its column
+        for (int j = 0; j < afields.length; j++) {
+            if (ops[j] == Aggregator.Op.COUNT)
+                continue;
+            int[] values = b.getIntColumn(afields[j]);
+            for (int i = 0; i < n; i++) {
+                if (groups[i] >= 0)
+                    accumulate(groups[i], j, values[b.row(i)]);
+            }
+        }
+        return nrejected;
+    }
+
+    /**
+     * @return group g as a tuple of td: its group fields, then its
+     *         aggregates
+     */
+    public Tuple result(int g, TupleDesc td) {
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < gfields.length; c++) {
+            if (intKey[c])
+                t.setField(c, new IntField(intKeys[c][g]));
+            else
+                t.setField(c, new StringField(strKeys[c][g], Type.STRING_LEN));
+        }
+        long n = counts[g];
+        for (int j = 0; j < afields.length; j++) {
+            long v;
+            switch (ops[j]) {
+            case COUNT:
+                v = n;
+                break;
+            case AVG:
+                v = n == 0 ? 0 : accs[j][g] / n;
+                break;
+            case MIN:
+            case MAX:
+                v = n == 0 ? 0 : accs[j][g];
+                break;
+            default:
+                v = accs[j][g];
+                break;
+            }
+            t.setField(gfields.length + j, new IntField((int) v));
+        }
+        return t;
+    }
+
+    /**
+     * @return an iterator over the groups as tuples of td (see
+     *         {@link #result}), those added until it is done included
+     */
+    public OpIterator iterator(TupleDesc td) {
+        return new GroupIterator(td);
+    }
+
+    private class GroupIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+        private int next = -1;
+
+        GroupIterator(TupleDesc td) {
+            this.td = td;
+        }
+
+        public void open() {
+            next = 0;
+        }
+
+        public boolean hasNext() {
+            return next >= 0 && next < numGroups;
+        }
+
+        public Tuple next() throws NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return result(next++, td);
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            next = -1;
+        }
+    }
+}
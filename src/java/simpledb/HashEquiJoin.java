@@ -5,7 +5,7 @@ import java.util.*;
 /**
  * The Join operator implements the relational join operation.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
@@ -50,51 +50,272 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /**
+     * Number of partitions that a build input too big for
+     * {@link BufferPool#getOperatorMemory()} is split into.
+     */
+    public final static int FANOUT = 16;
+
+    /**
+     * Times a partition is split again before it is taken to be a single
+     * skewed key, which no hash function can split; such a partition is
+     * joined a memory load of build tuples at a time instead.
+     */
+    public final static int MAX_LEVELS = 4;
+
+    /** A pair of partitions of the two inputs still to be joined. */
+    private static class Partition {
+        final SpillFile build, probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+    }
+
+    // State of the tuple at a time path.  The build input (child1, or a
+    // partition of it) is read into map; if it doesn't fit, both inputs are
+    // split into FANOUT partitions on the hash of the join field.  Partition
+    // 0 of the build input stays in map as long as it fits, so its probe
+    // tuples are joined right away, and the others are written to spill files
+    // and joined pairwise, one level down, once the probe input is done.
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
+    transient private int mapTuples = 0;
+    transient private int buildTuples = 0;           // read by the current join
+    transient private int level = 0;                 // partitioning level of the current join
+    transient private OpIterator probeIt = null;     // probe input of the current join
+    transient private SpillFile[] buildParts = null; // set once the current join is partitioned
+    transient private SpillFile[] probeParts = null;
+    transient private boolean resident = false;      // is build partition 0 in map
+    transient private OpIterator chunkSource = null; // skewed build input read a load at a time
+    transient private Tuple chunkNext = null;
+    transient private Partition current = null;      // partition being joined, if below level 0
+    transient private OpIterator currentBuild = null;
+    transient private LinkedList<Partition> pending = new LinkedList<Partition>();
+
+    /** @return how many build tuples fit in the operator memory budget */
+    private int capacity() {
+        long n = BufferPool.getOperatorMemory() / child1.getTupleDesc().getSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, n));
+    }
+
+    /** @return the partition of key at the given level, in [0, FANOUT) */
+    private static int partition(Field key, int level) {
+        // a different hash per level, so that a partition splits again
+        int h = key.hashCode() + level * 0x61C88647;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % FANOUT;
+    }
+
+    private static void spill(SpillFile[] parts, int p, Tuple t) throws DbException {
+        if (parts[p] == null)
+            parts[p] = new SpillFile(t.getTupleDesc());
+        parts[p].add(t);
+    }
+
+    private void insert(Tuple t) {
+        Field key = t.getField(pred.getField1());
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+        mapTuples++;
+    }
+
+    /**
+     * Starts joining build with probe: reads the tuples of pre and then of
+     * build into map, partitioning them if they don't fit.
+     */
+    private void startJoin(Iterator<Tuple> pre, OpIterator build, OpIterator probe, int level)
+            throws DbException, TransactionAbortedException {
+        map.clear();
+        mapTuples = 0;
+        this.level = level;
+        probeIt = probe;
+        buildParts = probeParts = null;
+        resident = true;
+        chunkSource = null;
+        buildTuples = 0;
+        int cap = capacity();
+        int f1 = pred.getField1();
+        while (true) {
+            Tuple t;
+            if (pre != null && pre.hasNext())
+                t = pre.next();
+            else if (build.hasNext())
+                t = build.next();
+            else
+                break;
+            buildTuples++;
+            if (buildParts == null) {
+                if (mapTuples < cap) {
+                    insert(t);
+                    continue;
+                }
+                if (level >= MAX_LEVELS) {
+                    chunkSource = build;
+                    chunkNext = t;
+                    return;
+                }
+                // keep partition 0 of what was read and spill the rest
+                buildParts = new SpillFile[FANOUT];
+                probeParts = new SpillFile[FANOUT];
+                ArrayList<Tuple> all = new ArrayList<Tuple>(mapTuples);
+                for (ArrayList<Tuple> l : map.values())
+                    all.addAll(l);
+                map.clear();
+                mapTuples = 0;
+                for (Tuple u : all) {
+                    int p = partition(u.getField(f1), level);
+                    if (p == 0)
+                        insert(u);
+                    else
+                        spill(buildParts, p, u);
+                }
+            }
+            int p = partition(t.getField(f1), level);
+            if (p == 0 && resident) {
+                if (mapTuples < cap) {
+                    insert(t);
+                    continue;
+                }
+                // partition 0 doesn't fit either
+                for (ArrayList<Tuple> l : map.values())
+                    for (Tuple u : l)
+                        spill(buildParts, 0, u);
+                map.clear();
+                mapTuples = 0;
+                resident = false;
+            }
+            spill(buildParts, p, t);
+        }
+    }
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /** Reads the next memory load of a skewed build input into map. */
+    private void loadChunk() throws DbException, TransactionAbortedException {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        mapTuples = 0;
+        insert(chunkNext);
+        chunkNext = null;
+        int cap = capacity();
+        while (chunkSource.hasNext()) {
+            Tuple t = chunkSource.next();
+            if (mapTuples == cap) {
+                chunkNext = t;
+                return;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            insert(t);
+        }
+        chunkSource = null;
+    }
+
+    /**
+     * Queues the partitions of the join that just finished, discards its
+     * own input if it was a partition, and starts the next pending join.
+     *
+     * @return false if there are no joins left
+     */
+    private boolean nextJoin() throws DbException, TransactionAbortedException {
+        if (buildParts != null) {
+            for (int p = 0; p < FANOUT; p++) {
+                if (buildParts[p] != null && probeParts[p] != null) {
+                    // if every tuple hashed alike, splitting again won't help
+                    boolean skewed = buildParts[p].numTuples() == buildTuples;
+                    pending.push(new Partition(buildParts[p], probeParts[p],
+                            skewed ? MAX_LEVELS : level + 1));
+                } else if (buildParts[p] != null) {
+                    buildParts[p].delete();
+                }
+            }
+            buildParts = probeParts = null;
+        }
+        endPartition();
+        map.clear();
+        if (pending.isEmpty()) {
+            probeIt = null;
+            return false;
+        }
+        current = pending.pop();
+        currentBuild = current.build.iterator();
+        currentBuild.open();
+        OpIterator probe = current.probe.iterator();
+        probe.open();
+        startJoin(null, currentBuild, probe, current.level);
+        return true;
+    }
+
+    private void endPartition() {
+        if (current != null) {
+            currentBuild.close();
+            probeIt.close();
+            current.build.delete();
+            current.probe.delete();
+            current = null;
+            currentBuild = null;
         }
-        return cnt > 0;
+    }
 
+    /** Throws away all spill files and the hash table. */
+    private void resetPartitions() {
+        endPartition();
+        for (SpillFile[] parts : new SpillFile[][] { buildParts, probeParts }) {
+            if (parts != null)
+                for (SpillFile f : parts)
+                    if (f != null)
+                        f.delete();
+        }
+        for (Partition p : pending) {
+            p.build.delete();
+            p.probe.delete();
+        }
+        pending.clear();
+        buildParts = probeParts = null;
+        probeIt = null;
+        chunkSource = null;
+        chunkNext = null;
+        map.clear();
+        mapTuples = 0;
+        listIt = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        mapLoaded = false;
+        resetBatches();
         super.open();
     }
 
     public void close() {
         super.close();
+        resetPartitions();
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.mapLoaded = false;
+        resetBatches();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        resetPartitions();
         child1.rewind();
         child2.rewind();
+        this.mapLoaded = false;
+        resetBatches();
     }
 
     transient Iterator<Tuple> listIt = null;
+    transient private boolean mapLoaded = false;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -130,33 +351,186 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    /**
+     * Joins child1 and child2 by hashing child1, which is read once, and
+     * probing with child2, which is read once too: if child1 doesn't fit in
+     * memory both are partitioned to spill files (see startJoin) rather than
+     * child2 being rescanned.
+     */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        if (!mapLoaded) {
+            // loaded here rather than in open so nextBatch can have child1
+            mapLoaded = true;
+            startJoin(null, child1, child2, 0);
+        }
+        int f2 = pred.getField2();
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
+            if (probeIt == null) {
+                return null;
+            }
+            if (probeIt.hasNext()) {
+                t2 = probeIt.next();
+                Field key = t2.getField(f2);
+                if (buildParts != null) {
+                    int p = partition(key, level);
+                    if (p != 0 || !resident) {
+                        // no build tuples, no matches
+                        if (buildParts[p] != null)
+                            spill(probeParts, p, t2);
+                        continue;
+                    }
+                }
+                ArrayList<Tuple> l = map.get(key);
+                if (l != null)
+                    listIt = l.iterator();
+                continue;
+            }
+            if (chunkSource != null) {
+                loadChunk();
+                probeIt.rewind();
+                continue;
+            }
+            nextJoin();
         }
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+    // State of nextBatch.  child1 is copied into build and hashed into
+    // buckets/chain, which link the build rows with the same hash; child2 is
+    // then probed a batch at a time.  If child1 doesn't fit in memory,
+    // spilled is set and the join is left to the tuple at a time path.
+    transient private TupleBatch build = null;
+    transient private int[] buckets = null;  // first build row per bucket, or -1
+    transient private int[] chain = null;    // next build row in the bucket, or -1
+    transient private boolean buildDone = false;
+    transient private boolean spilled = false;
+    transient private TupleBatch probe = null;
+    transient private int probePos = 0;      // selected row of probe being joined
+    transient private int match = -1;        // next build row to check against it
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+    private void resetBatches() {
+        build = null;
+        buckets = null;
+        chain = null;
+        buildDone = false;
+        spilled = false;
+        probe = null;
+        probePos = 0;
+        match = -1;
+    }
 
-            return processList();
+    private static int hash(int v) {
+        int h = v * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
 
-        }
+    private static int hash(TupleBatch b, int field, boolean intKey, int r) {
+        return intKey ? hash(b.getInt(field, r)) : hash(b.getString(field, r).hashCode());
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    private boolean loadBuild() throws DbException, TransactionAbortedException {
+        if (buildDone)
+            return false;
+        buildDone = true;
+        int cap = capacity();
+        TupleBatch b = new TupleBatch(child1.getTupleDesc(),
+                Math.min(cap, TupleBatch.DEFAULT_SIZE));
+        TupleBatch in;
+        while (b.numRows() <= cap && (in = TupleBatch.nextBatch(child1)) != null) {
+            for (int i = 0; i < in.numRows(); i++) {
+                b.appendRow(in, in.row(i));
+            }
         }
+        int n = b.numRows();
+        if (n > cap) {
+            // partition it; the rest of child1 is still read a batch at a time
+            ArrayList<Tuple> read = new ArrayList<Tuple>(n);
+            for (int r = 0; r < n; r++) {
+                read.add(b.getTuple(r));
+            }
+            OpIterator rest = child1 instanceof BatchOpIterator
+                    ? TupleBatch.tuples((BatchOpIterator) child1) : child1;
+            spilled = true;
+            mapLoaded = true;
+            startJoin(read.iterator(), rest, child2, 0);
+            return false;
+        }
+        if (n == 0)
+            return false;
+        int f1 = pred.getField1();
+        boolean intKey = b.getTupleDesc().getFieldType(f1) == Type.INT_TYPE;
+        int mask = Integer.highestOneBit(n) * 2 - 1;
+        buckets = new int[mask + 1];
+        Arrays.fill(buckets, -1);
+        chain = new int[n];
+        // insert backwards so every chain lists its rows in input order
+        for (int r = n - 1; r >= 0; r--) {
+            int h = hash(b, f1, intKey, r) & mask;
+            chain[r] = buckets[h];
+            buckets[h] = r;
+        }
+        build = b;
+        return true;
+    }
 
-        return null;
+    /**
+     * Joins a batch of child2 at a time against the hashed rows of child1,
+     * comparing keys straight from the column vectors, and copies matching
+     * pairs into the output batch.  If child1 turns out not to fit in
+     * memory, the batches are filled from the partitioned join of fetchNext.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(comboTD);
+        if (build == null)
+            loadBuild();
+        if (spilled) {
+            Tuple t;
+            while (!out.isFull() && (t = fetchNext()) != null) {
+                out.add(t);
+            }
+            return out.numRows() > 0 ? out : null;
+        }
+        int f1 = pred.getField1();
+        int f2 = pred.getField2();
+        int width1 = child1.getTupleDesc().numFields();
+        boolean intKey = child1.getTupleDesc().getFieldType(f1) == Type.INT_TYPE;
+        while (!out.isFull()) {
+            if (build == null)
+                break;
+            if (match >= 0) {
+                int pr = probe.row(probePos);
+                while (match >= 0 && !out.isFull()) {
+                    boolean eq = intKey
+                            ? build.getInt(f1, match) == probe.getInt(f2, pr)
+                            : build.getString(f1, match).equals(probe.getString(f2, pr));
+                    if (eq) {
+                        int o = out.addRow();
+                        out.copyRow(build, match, o, 0);
+                        out.copyRow(probe, pr, o, width1);
+                    }
+                    match = chain[match];
+                }
+                if (match < 0)
+                    probePos++;
+                continue;
+            }
+            if (probe == null || probePos == probe.numRows()) {
+                probe = TupleBatch.nextBatch(child2);
+                probePos = 0;
+                if (probe == null) {
+                    build = null;
+                }
+                continue;
+            }
+            int pr = probe.row(probePos);
+            match = buckets[hash(probe, f2, intKey, pr) & (buckets.length - 1)];
+            if (match < 0)
+                probePos++;
+        }
+        return out.numRows() > 0 ? out : null;
     }
 
     @Override
@@ -4,6 +4,7 @@ import javax.xml.crypto.Data;
 import java.io.*;
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.function.ToIntFunction;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -20,6 +21,10 @@ public class HeapFile implements DbFile {
     private File f;
     private TupleDesc td;
     private boolean flag = false;
+    private final DbFileChannel channel;
+    private volatile MappedSegments mapped = null;
+    private final FreeSpaceMap freeSpace;
+    private final TupleInserter inserter;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -32,6 +37,10 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.f = f;
         this.td = td;
+        this.channel = new DbFileChannel(f);
+        ToIntFunction<Page> room = p -> ((HeapPage) p).getNumEmptySlots();
+        this.freeSpace = new FreeSpaceMap(this, f, room);
+        this.inserter = new TupleInserter(this, f, channel, freeSpace, room);
     }
 
     /**
@@ -76,30 +85,21 @@ public class HeapFile implements DbFile {
         // some code goes here
         int tableId = pid.getTableId();
         int pgno = pid.getPageNumber();
-        RandomAccessFile file = null;
         try {
-            file = new RandomAccessFile(f, "r");
-            if((pgno + 1)*BufferPool.getPageSize() > file.length()) {
-                file.close();
-                throw new IllegalArgumentException("pid");
-            }
-            file.seek((pgno * BufferPool.getPageSize()));
             byte[] data = new byte[BufferPool.getPageSize()];
-            int readSize = file.read(data, 0, BufferPool.getPageSize());
-            if(readSize != BufferPool.getPageSize()) {
-                throw new IllegalArgumentException("readSize != pageSize");
+            long position = (long) pgno * BufferPool.getPageSize();
+            MappedSegments m = mapped;
+            boolean found = m != null ? m.read(data, data.length, position)
+                    : channel.read(data, data.length, position);
+            if(!found) {
+                throw new IllegalArgumentException("pid");
             }
             HeapPage hp = new HeapPage((HeapPageId) pid, data);
+            freeSpace.update(pgno, hp.getNumEmptySlots());
             return hp;
 
         }catch (IOException e) {
             e.printStackTrace();
-        }finally {
-            try{
-                file.close();
-            }catch (IOException e){
-                e.printStackTrace();
-            }
         }
         throw new IllegalArgumentException("file op failed");
 
@@ -110,13 +110,45 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         int pgno = page.getId().getPageNumber();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BufferPool.getPageSize() * pgno);
         byte[] data = page.getPageData();
-        rf.write(data, 0, BufferPool.getPageSize());
+        channel.write(data, (long) BufferPool.getPageSize() * pgno);
+        freeSpace.write(pgno, ((HeapPage) page).getNumEmptySlots());
 
     }
 
+    /**
+     * Serve page reads from a memory mapping of the file instead of read
+     * calls.  Meant for tables that are loaded once (e.g. with
+     * {@link HeapFileEncoder#convert}) and then mostly scanned.  Pages are
+     * still read through the BufferPool as usual; updates are still
+     * written through the file channel and show up in the mapping.  The
+     * file must not be truncated or replaced while it is mapped.
+     *
+     * @param on true to map the file, false to go back to read calls
+     */
+    public void setMemoryMapped(boolean on) {
+        mapped = on ? new MappedSegments(channel) : null;
+    }
+
+    /** @return true if page reads are served from a memory mapping */
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Close the file descriptor behind this file.  It is reopened if the
+     * file is used again.
+     */
+    public void close() {
+        channel.close();
+        freeSpace.close();
+    }
+
+    /** @return the map of the free space of the pages of this file */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -131,61 +163,8 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        ArrayList<Page> mdPage = new ArrayList<>();
-        HeapPage page = null;
-        PageId pid = null;
-        for(int i = 0; i < numPages(); i++) {
-            pid = new HeapPageId(getId(), i);
-            page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            int numEmptySlots = page.getNumEmptySlots();
-            if(numEmptySlots == 0) {
-                Database.getBufferPool().releasePage(tid, pid);
-                continue;
-            }
-            page.insertTuple(t);
-            page.markDirty(true, tid);
-            mdPage.add(page);
-            return mdPage;
-        }
-        // 需要处理当A tax在调用appenPageToEnd的时候， B tax阻塞在该调用上。
-        // 看起来没啥问题，实则在A添加完后就有一个新的空页，B也能用，B不应该在去添加。
-        int oldPageNum = numPages();
-        synchronized (this) {
-            if(oldPageNum == numPages()) {
-                appendPageToEnd();
-            }
-        }
-
-        pid = new HeapPageId(getId(), numPages() - 1);
-        // RecordId rid = new RecordId(pid, );
-        page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        page.insertTuple(t);
-        page.markDirty(true, tid);
-        mdPage.add(page);
-        return mdPage;
-
-
-    }
-
-    private synchronized void appendPageToEnd() {
-        int pLen = numPages();
-        RandomAccessFile file = null;
-        try {
-            file = new RandomAccessFile(f, "rw");
-            file.seek(pLen * BufferPool.getPageSize());
-            byte[] data = new byte[BufferPool.getPageSize()];
-            Arrays.fill(data, (byte)0);
-            file.write(data, 0, BufferPool.getPageSize());
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try{
-                file.close();
-            } catch(IOException e){
-                e.printStackTrace();
-            }
-
-        }
+        // only pages the free-space map says have room are read
+        return inserter.insertTuple(tid, t, 1);
     }
 
     // see DbFile.java for javadocs
@@ -202,6 +181,7 @@ public class HeapFile implements DbFile {
 
             page.deleteTuple(t);
             page.markDirty(true, tid);
+            freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
             mdfPage.add(page);
             return mdfPage;
         }
@@ -213,31 +193,67 @@ public class HeapFile implements DbFile {
         private TransactionId tid;
         private int pgNum;
         private HeapFile hf;
+        private final ReadAhead readAhead;
+        // if set, only the pages of the morsels claimed are read, and end is
+        // the end of the current one
+        private final PageMorsels morsels;
+        private int end;
+        // only tuples that pass all of these are returned
+        private final List<Predicate> filters;
 
         public HeapFileIterator(TransactionId tid, HeapFile hf) {
+            this(tid, hf, null, Collections.<Predicate>emptyList());
+        }
+
+        public HeapFileIterator(TransactionId tid, HeapFile hf, PageMorsels morsels,
+                List<Predicate> filters) {
             this.tid = tid;
             pgNum = 0;
             this.hf = hf;
+            this.readAhead = new ReadAhead(hf.getId());
+            this.morsels = morsels;
+            this.filters = filters;
             // open();
         }
 
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            if(pgNum >= 0 && pgNum < hf.numPages()) {
+        private void readPage() throws DbException, TransactionAbortedException {
+            int numPages = hf.numPages();
+            if(pgNum >= 0 && pgNum < numPages) {
+               readAhead.pageReached(pgNum, numPages);
                HeapPageId pid = new HeapPageId(hf.getId(), pgNum);
                HeapPage hp  = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-               itr = hp.iterator();
+               itr = hp.iterator(filters);
                return;
             }
             throw new DbException("open itr failed");
             // Database.getBufferPool().getPage(tid, )
         }
 
+        /** Moves to the first page of the next morsel, if one is left. */
+        private boolean claim() {
+            int first = morsels.claim();
+            if(first < 0) {
+                return false;
+            }
+            pgNum = first;
+            end = morsels.end(first);
+            return true;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            if(morsels != null && !claim()) {
+                itr = null;
+                return;
+            }
+            readPage();
+        }
+
         @Override
         public void close() {
             pgNum = 0;
             itr = null;
+            readAhead.reset();
         }
 
         @Override
@@ -245,18 +261,17 @@ public class HeapFile implements DbFile {
             if(itr == null) {
                return false;
             }
-            if(!itr.hasNext()) {
-
-                if(pgNum >= 0 && pgNum < hf.numPages() - 1) {
+            // skip over empty pages
+            while(!itr.hasNext()) {
+                int last = morsels == null ? hf.numPages() : end;
+                if(pgNum >= 0 && pgNum < last - 1) {
                     pgNum++;
-                    open();
-                    if(itr.hasNext()) {
-                        return true;
-                    } else {
-                        return false;
-                    }
+                    readPage();
+                } else if(morsels != null && claim()) {
+                    readPage();
+                } else {
+                    return false;
                 }
-                return false;
             }
             return true;
         }
@@ -285,5 +300,33 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid, this);
     }
 
+    /**
+     * Returns an iterator over the tuples of the pages of morsels that it
+     * claims, as a part of a parallel scan of this file; the morsels must be
+     * of this file.
+     */
+    public DbFileIterator iterator(TransactionId tid, PageMorsels morsels) {
+        return iterator(tid, morsels, Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that pass all of
+     * filters, which are tested on the bytes of the pages (see
+     * {@link HeapPage#iterator(List)}), so that the tuples that don't pass
+     * are never decoded.
+     *
+     * @param morsels
+     *            the morsels of this file to read the pages of, as in
+     *            {@link #iterator(TransactionId, PageMorsels)}, or null to
+     *            read the whole file
+     */
+    public DbFileIterator iterator(TransactionId tid, PageMorsels morsels,
+            List<Predicate> filters) {
+        if(morsels != null && morsels.getFile() != this) {
+            throw new IllegalArgumentException("morsels of another file");
+        }
+        return new HeapFileIterator(tid, this, morsels, filters);
+    }
+
 }
 
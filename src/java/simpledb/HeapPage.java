@@ -11,17 +11,24 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    // the bytes of the page, header first; tuples are decoded from them on
+    // demand.  Not written to while shared (see beforeWrite).
+    private byte[] data;
+    private boolean shared;
+    private final int headerSize;
+    // the offset of every field within a tuple
+    private final int[] fieldOffsets;
+    // null while the page holds its before image, i.e. until the first write
     byte[] oldData;
     private boolean isDirty;
     private TransactionId tid;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private volatile long lsn = 0;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -38,30 +45,25 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * The page keeps data as it is, without copying or decoding it: tuples
+     * are only decoded when they are asked for, and data is never written
+     * to; the first change to the page is made to a copy, and data becomes
+     * the before image of the page (see {@link #getBeforeImage}).
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
         this.isDirty = false;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        if (data.length < headerSize + numSlots * td.getSize())
+            throw new IOException("short page: " + data.length + " bytes");
+        this.data = data;
+        this.shared = true;
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -97,7 +99,13 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                if (oldData != null) {
+                    oldDataRef = oldData;
+                } else {
+                    // not changed since: share the bytes until the next write
+                    oldDataRef = data;
+                    shared = true;
+                }
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -108,10 +116,47 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * Makes the current contents of the page its before image.  Nothing is
+     * copied here: the bytes are kept as they are by the next write (see
+     * {@link #beforeWrite}).
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /**
+     * Called before every change to the bytes of the page: the first change
+     * since the before image was set keeps the bytes as the before image
+     * and goes to a copy, as do changes to bytes that are shared with a
+     * before image or an iterator.
+     */
+    private void beforeWrite() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = data;
+                shared = true;
+            }
+            if (shared) {
+                data = data.clone();
+                shared = false;
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of the page, which stay as they are until the page
+     *         is changed no matter how long they are read from
+     */
+    private byte[] snapshot() {
+        synchronized(oldDataLock)
+        {
+            shared = true;
+            return data;
         }
     }
 
@@ -124,38 +169,84 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the offset of slot i in the bytes of the page */
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
+    }
+
+    static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    /** Decodes a field of type t serialized at offset off of b. */
+    static Field readField(byte[] b, int off, Type t) {
+        if (t == Type.INT_TYPE)
+            return new IntField(readInt(b, off));
+        int len = Math.min(Math.max(readInt(b, off), 0), Type.STRING_LEN);
+        return new StringField(new String(b, off + 4, len), Type.STRING_LEN);
+    }
+
+    /** Decodes the tuple in slot i of b, which must be used. */
+    private Tuple readTuple(byte[] b, int i) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        int off = slotOffset(i);
+        for (int j = 0; j < fieldOffsets.length; j++)
+            t.setField(j, readField(b, off + fieldOffsets[j], td.getFieldType(j)));
+        return t;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Tests p on the tuple in slot i of b without decoding it.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private boolean matches(byte[] b, int i, Predicate p) {
+        int f = p.getField();
+        return matches(b, slotOffset(i) + fieldOffsets[f], td.getFieldType(f), p);
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Tests p on the field of type t serialized at offset off of b: int
+     * fields are compared in place, other fields are decoded alone.
+     */
+    static boolean matches(byte[] b, int off, Type t, Predicate p) {
+        Field operand = p.getOperand();
+        if (t != Type.INT_TYPE || operand.getType() != Type.INT_TYPE)
+            return readField(b, off, t).compare(p.getOp(), operand);
+        return compare(readInt(b, off), p.getOp(), ((IntField) operand).getValue());
+    }
+
+    /** @return value op v, as IntField.compare would tell */
+    static boolean compare(long value, Predicate.Op op, long v) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return value == v;
+        case NOT_EQUALS:
+            return value != v;
+        case GREATER_THAN:
+            return value > v;
+        case GREATER_THAN_OR_EQ:
+            return value >= v;
+        case LESS_THAN:
+            return value < v;
+        case LESS_THAN_OR_EQ:
+            return value <= v;
+        default:
+            return false;
         }
+    }
 
-        return t;
+    /**
+     * Decodes the tuple in slot i alone, as a lookup by RecordId needs.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots)
+            throw new NoSuchElementException("no slot " + i);
+        byte[] b = snapshot();
+        return isSlotUsed(b, i) ? readTuple(b, i) : null;
     }
 
     /**
@@ -170,64 +261,11 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        // the page is kept serialized; the copy is the caller's to change
+        synchronized(oldDataLock)
+        {
+            return data.clone();
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -254,43 +292,20 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        // int tupleId = equalIndex(t);
-        System.out.println("delete page tuple");
-        int tupleId = t.getRecordId().getTupleNumber();
-        if(t.getRecordId().getPageId() != getId()) {
-            System.out.println("1 error");
-            throw new DbException("tuple is not on this page");
-        }
-        if(tuples[tupleId] == null) {
-            System.out.println("2 error");
+        RecordId rid = t.getRecordId();
+        if(rid == null || !getId().equals(rid.getPageId())) {
             throw new DbException("tuple is not on this page");
         }
-        if(!isSlotUsed(tupleId)) {
-            System.out.println("3 error");
+        int tupleId = rid.getTupleNumber();
+        if(tupleId < 0 || tupleId >= numSlots || !isSlotUsed(tupleId)) {
             throw new DbException("tuple slot is already empty");
         }
-        tuples[tupleId] = null;
-        System.out.println("markslot befor");
+        beforeWrite();
         markSlotUsed(tupleId, false);
-        System.out.println("markslot after");
-        // isDirty = true;
-        System.out.println("delete page after");
-
+        // empty slots are all zeroes
+        Arrays.fill(data, slotOffset(tupleId), slotOffset(tupleId + 1), (byte) 0);
     }
-/**
-    private int equalIndex(Tuple t) {
-        for(int i = 0; i < numSlots; ++i) {
-            // tuple 没有实现equals函数导致了bug的出现。
-            if(isSlotUsed(i)) {
-                assert (tuples[i] != null);
-                if(tuples[i].equals(t)) {
-                    return i;
-                }
-            }
-        }
-        return -1;
-    }
-*/
+
     private int findEmptySlot() {
         for(int i = 0; i < numSlots; ++i) {
             if(!isSlotUsed(i)) {
@@ -300,6 +315,11 @@ public class HeapPage implements Page {
         return -1;
     }
 
+    /** @return true if the page has an empty slot */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
      *  that it is now stored on this page.
@@ -318,10 +338,21 @@ public class HeapPage implements Page {
         if(index == -1) {
             throw new DbException("page is full, not empty slot");
         }
-        RecordId rid = new RecordId(pid, index);
-        t.setRecordId(rid);
-        tuples[index] = t;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new DbException("can't serialize tuple: " + e);
+        }
+        beforeWrite();
+        System.arraycopy(baos.toByteArray(), 0, data, slotOffset(index), td.getSize());
         markSlotUsed(index, true);
+        t.setRecordId(new RecordId(pid, index));
 
     }
 
@@ -349,19 +380,28 @@ public class HeapPage implements Page {
 
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
-        // int detbit = 1;
-        int cnt = 0;
-        for(int i = 0; i < numSlots; ++i) {
-            if(!isSlotUsed(i)) {
-                cnt++;
-            }
+        byte[] b = data;
+        int used = 0;
+        for (int i = 0; i < numSlots / 8; i++) {
+            used += Integer.bitCount(b[i] & 0xFF);
+        }
+        for (int i = numSlots / 8 * 8; i < numSlots; i++) {
+            used += isSlotUsed(b, i) ? 1 : 0;
         }
-        return cnt;
+        return numSlots - used;
     }
 
     /**
@@ -369,27 +409,29 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
+        return isSlotUsed(data, i);
+    }
+
+    private static boolean isSlotUsed(byte[] b, int i) {
         int quot = i / 8;
         int remainder = i % 8;
-        int flag = (header[quot] >> remainder) & 0x01;
+        int flag = (b[quot] >> remainder) & 0x01;
         return flag == 1;
     }
 
     /**
-     * Abstraction to fill or clear a slot on this page.
+     * Abstraction to fill or clear a slot on this page; see beforeWrite.
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        System.out.println("mark before");
         int quot = i / 8;
         int remainder = (i % 8);
         if(value) {
-            header[quot] = (byte) (header[quot] | (0x1 << remainder));
+            data[quot] = (byte) (data[quot] | (0x1 << remainder));
         } else {
-            header[quot] = (byte) (header[quot] & (~(0x1 << remainder)));
+            data[quot] = (byte) (data[quot] & (~(0x1 << remainder)));
         }
-        System.out.println("mark after");
 
     }
 
@@ -400,14 +442,51 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> l = new ArrayList<Tuple>();
-        for(int i = 0; i < numSlots; ++i) {
-            if(isSlotUsed(i)) {
-                l.add(tuples[i]);
+        return iterator(Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that pass all of
+     * filters.  The filters are tested on the bytes of the page, and only
+     * the tuples that pass them are decoded, one at a time as the iterator
+     * gets to them.  The iterator returns the tuples of the page as it was
+     * when it was created, whatever changes are made to it after.
+     */
+    public Iterator<Tuple> iterator(final List<Predicate> filters) {
+        final byte[] b = snapshot();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            /** @return the first slot from i on holding a tuple that passes */
+            private int advance(int i) {
+                for (; i < numSlots; i++) {
+                    if (!isSlotUsed(b, i))
+                        continue;
+                    boolean pass = true;
+                    for (int k = 0; pass && k < filters.size(); k++)
+                        pass = matches(b, i, filters.get(k));
+                    if (pass)
+                        return i;
+                }
+                return numSlots;
             }
-        }
-        return l.iterator();
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (next >= numSlots)
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(b, next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
-
@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A join that looks up the matches of every outer tuple in a B+ tree on the
+ * inner table's join field, instead of scanning the inner table.
+ * <p>
+ * The inner child must be a SeqScan or BTreeScan of a BTreeFile keyed on
+ * the join field, possibly under Filters (see {@link #canProbe}); it
+ * describes the inner relation but is never opened.  The filters, and the
+ * index predicate of a BTreeScan, are applied to what the index returns.
+ * <p>
+ * Outer tuples are read in batches of BATCH_SIZE and each batch is sorted
+ * on the join field, so the index is searched for ascending keys: one
+ * {@link BTreeCursor} serves the whole join, and a search only descends
+ * from the deepest page of the previous search whose keys hold its own, in
+ * the common case the very leaf the previous one ended on.  The output is
+ * ordered by outer join field within each batch, not by outer tuple.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Outer tuples sorted and probed at a time. */
+    public static final int BATCH_SIZE = 4096;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    private transient BTreeFile index;
+    private transient TransactionId tid;
+    private transient ArrayList<Predicate> filters;
+    private transient ArrayList<Tuple> batch;
+    private transient int batchPos;
+    private transient Tuple outer;
+    private transient BTreeCursor probe;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The inner relation, a scan of an index on its join field
+     * @throws IllegalArgumentException
+     *             if the inner relation can't be probed; see canProbe
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canProbe(child2, p)) {
+            throw new IllegalArgumentException("no index on the inner join field");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the SeqScan or BTreeScan at the bottom of a chain of Filters,
+     *         or null if inner is anything else
+     */
+    private static OpIterator baseScan(OpIterator inner, List<Predicate> filters) {
+        while (inner instanceof Filter) {
+            if (filters != null) {
+                filters.add(((Filter) inner).getPredicate());
+            }
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        if (inner instanceof BTreeScan) {
+            IndexPredicate ipred = ((BTreeScan) inner).getIndexPredicate();
+            if (filters != null && ipred != null) {
+                BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                        ((BTreeScan) inner).getTableId());
+                filters.add(new Predicate(f.keyField(), ipred.getOp(), ipred.getField()));
+            }
+            return inner;
+        }
+        return inner instanceof SeqScan ? inner : null;
+    }
+
+    /** @return the id of the table scan, a SeqScan or BTreeScan, reads */
+    private static int tableId(OpIterator scan) {
+        return scan instanceof BTreeScan ? ((BTreeScan) scan).getTableId()
+                : ((SeqScan) scan).getTableId();
+    }
+
+    /**
+     * @return true if inner is a (filtered) scan of a BTreeFile keyed on the
+     *         second field of p, and the index can answer p's operator
+     */
+    public static boolean canProbe(OpIterator inner, JoinPredicate p) {
+        switch (p.getOperator()) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            break;
+        default:
+            return false;
+        }
+        OpIterator scan = baseScan(inner, null);
+        if (scan == null) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId(scan));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2();
+    }
+
+    /** @return op with its operands swapped: a op b iff b flip(op) a */
+    static Predicate.Op flip(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        filters = new ArrayList<Predicate>();
+        OpIterator scan = baseScan(child2, filters);
+        index = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId(scan));
+        tid = scan instanceof BTreeScan ? ((BTreeScan) scan).getTransactionId()
+                : ((SeqScan) scan).getTransactionId();
+        child1.open();
+        probe = index.cursor(tid);
+        probe.open();
+        batch = new ArrayList<Tuple>();
+        batchPos = 0;
+        outer = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        child1.close();
+        batch = null;
+        outer = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        batch.clear();
+        batchPos = 0;
+        outer = null;
+    }
+
+    /** @return the number of internal index pages read by the searches */
+    public int internalPagesRead() {
+        return probe == null ? 0 : probe.internalPagesRead();
+    }
+
+    /**
+     * Reads the next batch of outer tuples and sorts it on the join field.
+     *
+     * @return false if the outer child has no more tuples
+     */
+    private boolean loadBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < BATCH_SIZE && child1.hasNext()) {
+            batch.add(child1.next());
+        }
+        Collections.sort(batch, new SortOrder(new int[] { pred.getField1() },
+                new boolean[] { true }, child1.getTupleDesc()));
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Returns the next inner tuple found in the index for the current outer
+     * tuple, moving on to the next outer tuple when there are no more.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null) {
+                while (probe.hasNext()) {
+                    Tuple inner = probe.next();
+                    if (passes(inner)) {
+                        return merge(outer, inner);
+                    }
+                }
+                outer = null;
+            }
+            if (batchPos == batch.size() && !loadBatch()) {
+                return null;
+            }
+            outer = batch.get(batchPos++);
+            probe.seek(new IndexPredicate(
+                    flip(pred.getOperator()), outer.getField(pred.getField1())));
+        }
+    }
+
+    private boolean passes(Tuple inner) {
+        for (Predicate p : filters) {
+            if (!p.filter(inner)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
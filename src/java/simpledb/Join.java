@@ -13,7 +13,16 @@ public class Join extends Operator {
     private TupleDesc td;
     private OpIterator child1;
     private OpIterator child2;
-    private Tuple leftTuple;
+
+    /**
+     * Outer tuples held in memory at once.  The inner child is scanned once
+     * per block of this many outer tuples rather than once per outer tuple.
+     */
+    public static final int BLOCK_SIZE = 4096;
+
+    private ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private Tuple rightTuple;
+    private int blockPos;  // next outer tuple to compare to rightTuple
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -72,7 +81,7 @@ public class Join extends Operator {
         // some code goes here
         child1.open();
         child2.open();
-        leftTuple = child1.hasNext() ? child1.next() : null;
+        loadBlock();
         super.open();
     }
 
@@ -80,7 +89,8 @@ public class Join extends Operator {
         // some code goes here
         child1.close();
         child2.close();
-        leftTuple = null;
+        block.clear();
+        rightTuple = null;
         super.close();
     }
 
@@ -90,14 +100,31 @@ public class Join extends Operator {
         child2.rewind();
         // close();
         // open();
-       leftTuple = child1.hasNext() ? child1.next() : null;
+        loadBlock();
+    }
+
+    /**
+     * Read the next block of outer tuples.
+     *
+     * @return false if child1 is exhausted
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < BLOCK_SIZE && child1.hasNext()) {
+            block.add(child1.next());
+        }
+        rightTuple = null;
+        blockPos = 0;
+        return !block.isEmpty();
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
      * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * the simplest is a nested loops join.  This one is a block nested loops
+     * join: every inner tuple is compared to a block of BLOCK_SIZE outer
+     * tuples, so the output is not ordered by outer tuple.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -113,28 +140,31 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        while(leftTuple != null) {
-            while(child2.hasNext()) {
-                Tuple rightTuple = child2.next();
-                if(p.filter(leftTuple, rightTuple)) {
-                    Tuple newTuple = new Tuple(td);
-                    for(int i = 0; i < child1.getTupleDesc().numFields(); ++i) {
-                        newTuple.setField(i, leftTuple.getField(i));
+        while(!block.isEmpty()) {
+            if(rightTuple != null) {
+                while(blockPos < block.size()) {
+                    Tuple leftTuple = block.get(blockPos++);
+                    if(p.filter(leftTuple, rightTuple)) {
+                        Tuple newTuple = new Tuple(td);
+                        for(int i = 0; i < child1.getTupleDesc().numFields(); ++i) {
+                            newTuple.setField(i, leftTuple.getField(i));
+                        }
+                        for(int i = child1.getTupleDesc().numFields(); i < td.numFields(); i++) {
+                            newTuple.setField(i, rightTuple.getField(i - child1.getTupleDesc().numFields()));
+                        }
+                        return newTuple;
                     }
-                    for(int i = child1.getTupleDesc().numFields(); i < td.numFields(); i++) {
-                        newTuple.setField(i, rightTuple.getField(i - child1.getTupleDesc().numFields()));
-                    }
-                    return newTuple;
                 }
+                rightTuple = null;
             }
-            if(child1.hasNext()) {
-                leftTuple = child1.next();
+            if(child2.hasNext()) {
+                rightTuple = child2.next();
+                blockPos = 0;
+            } else if(loadBlock()) {
                 child2.rewind();
             } else {
-                // leftTuple = null;
                 return null;
             }
-
         }
         return null;
     }
@@ -14,6 +14,30 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /**
+     * The join algorithms the optimizer chooses between; each has its own
+     * cost in {@link #estimateJoinCost(JoinMethod, LogicalJoinNode, int, int,
+     * double, double, boolean)}.
+     */
+    public enum JoinMethod {
+        /** Block nested loops, see {@link Join} */
+        NESTED_LOOPS,
+        /** See {@link HashEquiJoin} */
+        HASH,
+        /** See {@link SortMergeJoin} */
+        SORT_MERGE,
+        /** See {@link IndexNestedLoopJoin} */
+        INDEX_NESTED_LOOPS,
+        /** See {@link ParallelHashJoin} */
+        PARALLEL_HASH
+    }
+
+    /**
+     * What handing work to each worker of a parallel join costs, in
+     * predicate applications.
+     */
+    public static final double WORKER_COST = 1000;
+
     /**
      * Constructor
      * 
@@ -34,6 +58,11 @@ public class JoinOptimizer {
      * inner/outer here -- because OpIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The join algorithm is the one orderJoins chose for lj.  A join that was
+     * not costed is run as a hash join if it is an equality and with nested
+     * loops otherwise; so is an index nested loops join whose inner plan
+     * turns out not to be an indexed table.
      * 
      * @param lj
      *            The join being considered
@@ -68,7 +97,29 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        JoinMethod m = lj.method;
+        if (m == null) {
+            m = lj.p == Predicate.Op.EQUALS ? JoinMethod.HASH : JoinMethod.NESTED_LOOPS;
+        }
+        if (m == JoinMethod.INDEX_NESTED_LOOPS && !IndexNestedLoopJoin.canProbe(plan2, p)) {
+            m = lj.p == Predicate.Op.EQUALS ? JoinMethod.HASH : JoinMethod.NESTED_LOOPS;
+        }
+        switch (m) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case INDEX_NESTED_LOOPS:
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+            break;
+        case PARALLEL_HASH:
+            j = new ParallelHashJoin(p, plan1, plan2, Exchange.getParallelism());
+            break;
+        default:
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -107,12 +158,176 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            JoinMethod m = chooseJoinMethod(j, card1, card2, cost1, cost2, true);
+            return estimateJoinCost(m, j, card1, card2, cost1, cost2, true);
+        }
+    }
+
+    /**
+     * @return the cheapest algorithm for join j, by
+     *         {@link #estimateJoinCost(JoinMethod, LogicalJoinNode, int, int,
+     *         double, double, boolean)}
+     */
+    public JoinMethod chooseJoinMethod(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
+        JoinMethod best = JoinMethod.NESTED_LOOPS;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (JoinMethod m : JoinMethod.values()) {
+            double c = estimateJoinCost(m, j, card1, card2, cost1, cost2, innerIsTable);
+            if (c < bestCost) {
+                best = m;
+                bestCost = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of running a join with a particular algorithm.  As
+     * with {@link #estimateJoinCost(LogicalJoinNode, int, int, double,
+     * double)}, reading data costs what a scan of it costs, and a predicate
+     * application, hashing or moving a tuple costs about 1.
+     * <ul>
+     * <li>NESTED_LOOPS scans the inner side once per block of
+     * {@link Join#BLOCK_SIZE} outer tuples and compares every pair.
+     * <li>HASH reads each side once.  If the outer side doesn't fit in
+     * {@link BufferPool#getOperatorMemory()}, all but one partition of both
+     * sides is written to disk and read back once more.
+     * <li>SORT_MERGE scans each side once and sorts both.  A side that
+     * doesn't fit in {@link BufferPool#getOperatorMemory()} is written to
+     * disk in sorted runs and read back once per merge pass, as by
+     * {@link OrderBy}.
+     * <li>INDEX_NESTED_LOOPS descends the inner table's B+ tree for every
+     * outer tuple and reads the leaf pages holding its matches, but for an
+     * equality no more than the whole index per sorted batch of outer
+     * tuples; it only applies if the inner side is a base table with an
+     * index on its join field.
+     * <li>PARALLEL_HASH reads each side once, like HASH, but the hashing and
+     * probing are shared by {@link Exchange#getParallelism()} workers, at
+     * {@link #WORKER_COST} each.  It only applies if the outer side fits in
+     * memory, there is more than one worker and the plan is read-only (see
+     * {@link LogicalPlan#isReadOnly()}).
+     * </ul>
+     *
+     * @param m
+     *            The join algorithm
+     * @param innerIsTable
+     *            Is the right-hand side of the join a base table (possibly
+     *            filtered), as opposed to the result of other joins?
+     * @return the estimated cost, or infinity if m can't run join j
+     */
+    public double estimateJoinCost(JoinMethod m, LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, boolean innerIsTable) {
+        boolean equi = j.p == Predicate.Op.EQUALS;
+        switch (m) {
+        case NESTED_LOOPS: {
+            double blocks = Math.max(1, Math.ceil((double) card1 / Join.BLOCK_SIZE));
+            return cost1 + blocks * cost2 + card1 + (double) card1 * card2;
+        }
+        case HASH: {
+            if (!equi)
+                return Double.POSITIVE_INFINITY;
+            double fits = BufferPool.getOperatorMemory() / (double) tupleSize(j.t1Alias);
+            double spilled = card1 <= fits ? 0
+                    : 1 - Math.min(fits, (double) card1 / HashEquiJoin.FANOUT) / card1;
+            return cost1 + cost2 + card1 + card2
+                    + spilled * (2 * (cost1 + cost2) + card1 + card2);
+        }
+        case PARALLEL_HASH: {
+            int dop = Exchange.getParallelism();
+            double fits = BufferPool.getOperatorMemory() / (double) tupleSize(j.t1Alias);
+            if (!equi || dop < 2 || card1 > fits || !p.isReadOnly())
+                return Double.POSITIVE_INFINITY;
+            return cost1 + cost2 + (double) (card1 + card2) / dop + dop * WORKER_COST;
         }
+        case SORT_MERGE:
+            if (!equi)
+                return Double.POSITIVE_INFINITY;
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1 + card2
+                    + spillCost(card1, tupleSize(j.t1Alias), cost1)
+                    + spillCost(card2, tupleSize(j.t2Alias), cost2);
+        case INDEX_NESTED_LOOPS:
+            if (!innerIsTable)
+                return Double.POSITIVE_INFINITY;
+            return indexJoinCost(j, card1, card2, cost1, cost2);
+        default:
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @return the size of the tuples of the table behind alias, or of an int
+     *         if there is no such table
+     */
+    private int tupleSize(String alias) {
+        Integer tableId = alias == null ? null : p.getTableId(alias);
+        if (tableId == null)
+            return Type.INT_TYPE.getLen();
+        return Database.getCatalog().getTupleDesc(tableId).getSize();
+    }
+
+    private static double sortCost(int card) {
+        return card < 2 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * @return the cost of the runs an {@link OrderBy} writes and reads back
+     *         to sort card tuples of tupleSize bytes, read at cost: nothing
+     *         if they fit in operator memory, and writing and reading them
+     *         once per pass over the runs otherwise
+     */
+    private static double spillCost(int card, int tupleSize, double cost) {
+        long memory = BufferPool.getOperatorMemory();
+        double runs = Math.ceil((double) card * tupleSize / memory);
+        if (runs <= 1)
+            return 0;
+        long fanIn = Math.max(2, memory / BufferPool.getPageSize() - 1);
+        int passes = 1;
+        for (; runs > fanIn; runs = Math.ceil(runs / fanIn))
+            passes++;
+        return passes * 2 * (cost + card);
+    }
+
+    private double indexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        if (j.p == Predicate.Op.NOT_EQUALS || j.p == Predicate.Op.LIKE || j.t2Alias == null)
+            return Double.POSITIVE_INFINITY;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return Double.POSITIVE_INFINITY;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        TupleDesc td = f.getTupleDesc();
+        int field;
+        try {
+            field = td.fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != field)
+            return Double.POSITIVE_INFINITY;
+
+        int pages = Math.max(1, ((BTreeFile) f).numPages());
+        double pageCost = cost2 / pages;
+        double height = TableStats.indexHeight(pages, td.getFieldType(field));
+        double tuplesPerPage = Math.max(1.0, BufferPool.getPageSize() * 8.0 / (td.getSize() * 8 + 1));
+        double matches;
+        if (card1 == 0)
+            matches = 0;
+        else if (j.p == Predicate.Op.EQUALS && isPkey(j.t2Alias, j.f2PureName))
+            matches = 1; // at most one inner tuple per key
+        else
+            matches = (double) estimateTableJoinCardinality(j.p, j.t1Alias,
+                    j.t2Alias, j.f1PureName, j.f2PureName, card1, card2, false,
+                    false, null, null) / card1;
+        double pagesPerProbe = height + Math.ceil(matches / tuplesPerPage);
+        double pagesRead = card1 * pagesPerProbe;
+        if (j.p == Predicate.Op.EQUALS) {
+            // each sorted batch of outer keys walks the index left to right,
+            // reading a page at most about once
+            double batches = Math.ceil((double) card1 / IndexNestedLoopJoin.BATCH_SIZE);
+            pagesRead = Math.min(pagesRead, batches * pages);
+        }
+        return cost1 + pagesRead * pageCost + card1 * (1 + matches);
     }
 
     /**
@@ -244,6 +459,8 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+        if (joins.isEmpty())
+            return new Vector<LogicalJoinNode>();
         PlanCache planCache = new PlanCache();
         Set<Set<LogicalJoinNode>> nodeSets  = null;
         for(int i=0;i<joins.size()+1;++i){
@@ -341,6 +558,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // which side, if any, is the subplan rather than a base table
+        boolean leftIsSubplan = false, rightIsSubplan = false;
 
 
         if (news.isEmpty()) { // base case -- both are base relations // {1} {2} {3] - 掉
@@ -372,6 +591,7 @@ public class JoinOptimizer {
 
             // estimate cost of right subtree
             if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
+                leftIsSubplan = true;
                 t1cost = prevBestCost; // left side just has cost of whatever
                                        // left
                 // subtree is
@@ -388,6 +608,7 @@ public class JoinOptimizer {
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
+                rightIsSubplan = true;
                 t2cost = prevBestCost; // left side just has cost of whatever
                                        // left
                 // subtree is
@@ -406,13 +627,28 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1;
+        JoinMethod m1 = null;
+        if (j instanceof LogicalSubplanJoinNode) {
+            cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        } else {
+            m1 = chooseJoinMethod(j, t1card, t2card, t1cost, t2cost, !rightIsSubplan);
+            cost1 = estimateJoinCost(m1, j, t1card, t2card, t1cost, t2cost, !rightIsSubplan);
+        }
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2;
+        JoinMethod m2 = null;
+        if (j2 instanceof LogicalSubplanJoinNode) {
+            cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        } else {
+            m2 = chooseJoinMethod(j2, t2card, t1card, t2cost, t1cost, !leftIsSubplan);
+            cost2 = estimateJoinCost(m2, j2, t2card, t1card, t2cost, t1cost, !leftIsSubplan);
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
+            m1 = m2;
             cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
@@ -427,7 +663,8 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        // a copy, since j is costed again for other subsets
+        cc.plan.addElement(m1 == null ? j : j.withMethod(m1)); // prevbest is left -- add new join to end
         return cc;
     }
 
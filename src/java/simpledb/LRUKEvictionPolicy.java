@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum, SIGMOD '93).  For every page
+ * we remember the times of its last K references; the victim is the page
+ * whose K-th most recent reference lies furthest in the past.  Pages that
+ * have been referenced fewer than K times have an infinite backward
+ * K-distance and go first (least recently used among them), so a page that
+ * a sequential scan touches once cannot push out pages that are used over
+ * and over, such as B+ tree internal pages.
+ * <p>
+ * History is retained for a bounded number of pages after they leave the
+ * pool, so that a page that is re-read soon after eviction keeps its credit.
+ * <p>
+ * Time is a logical clock that ticks on every reference.  Hits only touch
+ * the history of the accessed page; the whole table is locked only while a
+ * victim is chosen.
+ */
+public class LRUKEvictionPolicy implements EvictionPolicy {
+
+    /** Access history of one page. */
+    private class History {
+        // circular buffer of the last k reference times
+        final long[] times = new long[k];
+        int count = 0;
+        int next = 0;
+        boolean resident; // protected by the policy
+
+        synchronized void reference(long now) {
+            times[next] = now;
+            next = (next + 1) % k;
+            count++;
+        }
+
+        /** @return the time of the most recent reference */
+        synchronized long last() {
+            return times[(next + k - 1) % k];
+        }
+
+        /** @return the time of the K-th most recent reference, or -1 if there are fewer than K */
+        synchronized long kth() {
+            if (count < k) {
+                return -1;
+            }
+            return times[next];
+        }
+    }
+
+    private final int k;
+    private final int retainedHistory;
+    private final AtomicLong clock = new AtomicLong(0);
+    private final ConcurrentHashMap<PageId, History> history;
+    // pages that left the pool, oldest first; protected by this
+    private final LinkedHashSet<PageId> nonResident = new LinkedHashSet<PageId>();
+
+    /**
+     * Creates an LRU-K policy.
+     *
+     * @param k number of references remembered per page (2 is the usual choice)
+     * @param retainedHistory number of non-resident pages whose history is kept
+     */
+    public LRUKEvictionPolicy(int k, int retainedHistory) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        this.retainedHistory = retainedHistory;
+        this.history = new ConcurrentHashMap<PageId, History>();
+    }
+
+    /**
+     * Creates an LRU-2 policy for a buffer pool of the given size, retaining
+     * the history of as many evicted pages as the pool has frames.
+     */
+    public LRUKEvictionPolicy(int numPages) {
+        this(2, numPages);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public void pageLoaded(PageId pid) {
+        History h;
+        synchronized (this) {
+            h = history.get(pid);
+            if (h == null) {
+                h = new History();
+                history.put(pid, h);
+            } else {
+                nonResident.remove(pid);
+            }
+            h.resident = true;
+        }
+        h.reference(clock.incrementAndGet());
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = history.get(pid);
+        if (h != null) {
+            h.reference(clock.incrementAndGet());
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = history.get(pid);
+        if (h == null || !h.resident) {
+            return;
+        }
+        h.resident = false;
+        nonResident.add(pid);
+        trimHistory();
+    }
+
+    public synchronized void reinstate(PageId pid) {
+        History h = history.get(pid);
+        if (h == null) {
+            // forgotten already: no references, so it goes first again
+            h = new History();
+            history.put(pid, h);
+        } else {
+            nonResident.remove(pid);
+        }
+        h.resident = true;
+    }
+
+    public synchronized PageId evict(java.util.function.Predicate<PageId> evictable) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, History> e : history.entrySet()) {
+            History h = e.getValue();
+            if (!h.resident) {
+                continue;
+            }
+            long kth = h.kth();
+            long last = h.last();
+            // -1 (fewer than k references) sorts before every real time,
+            // ties are broken by plain LRU
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                if (!evictable.test(e.getKey())) {
+                    continue;
+                }
+                victim = e.getKey();
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        if (victim != null) {
+            history.get(victim).resident = false;
+            nonResident.add(victim);
+            trimHistory();
+        }
+        return victim;
+    }
+
+    // drop the oldest non-resident histories beyond the retention limit
+    private void trimHistory() {
+        Iterator<PageId> it = nonResident.iterator();
+        while (nonResident.size() > retainedHistory && it.hasNext()) {
+            PageId pid = it.next();
+            it.remove();
+            history.remove(pid);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * In-memory tail of the log.  Records are appended to a ring buffer and
+ * written to the log file in large sequential chunks when the buffer fills
+ * up or somebody needs the bytes on disk (a force, or a read of the log).
+ * <p>
+ * Bytes in the buffer belong at file offsets
+ * [{@link #getWrittenOffset}, {@link #getEndOffset}); everything before
+ * that has been handed to the file channel (but is not necessarily synced).
+ * <p>
+ * Not thread safe; the LogFile monitor protects it.
+ */
+class LogBuffer {
+
+    private final byte[] ring;
+    private int head = 0;   // index of the first unwritten byte
+    private int size = 0;   // number of unwritten bytes
+    private FileChannel channel;
+    private long writtenOffset;
+    private long channelWrites = 0;
+
+    /**
+     * @param capacity size of the ring in bytes
+     * @param channel file the log is written to
+     * @param offset file offset at which the next appended byte belongs
+     */
+    LogBuffer(int capacity, FileChannel channel, long offset) {
+        this.ring = new byte[capacity];
+        reset(channel, offset);
+    }
+
+    /**
+     * Point the buffer at a (possibly new) file.  Unwritten bytes are dropped,
+     * so callers {@link #drain} first if they care about them.
+     */
+    void reset(FileChannel channel, long offset) {
+        this.channel = channel;
+        this.writtenOffset = offset;
+        this.head = 0;
+        this.size = 0;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /** @return file offset of the first byte not yet written to the channel */
+    long getWrittenOffset() {
+        return writtenOffset;
+    }
+
+    /** @return file offset just past the last appended byte */
+    long getEndOffset() {
+        return writtenOffset + size;
+    }
+
+    /** @return number of writes issued to the file channel */
+    long getChannelWrites() {
+        return channelWrites;
+    }
+
+    /** Append len bytes of b, starting at off, to the log. */
+    void append(byte[] b, int off, int len) throws IOException {
+        if (len > ring.length - size) {
+            drain();
+        }
+        if (len > ring.length) {
+            // bigger than the whole ring: no point in copying it
+            writeFully(ByteBuffer.wrap(b, off, len));
+            return;
+        }
+        int tail = (head + size) % ring.length;
+        int first = Math.min(len, ring.length - tail);
+        System.arraycopy(b, off, ring, tail, first);
+        System.arraycopy(b, off + first, ring, 0, len - first);
+        size += len;
+    }
+
+    /** Write every buffered byte to the file channel. */
+    void drain() throws IOException {
+        if (size == 0) {
+            return;
+        }
+        while (size > 0) {
+            // at most two chunks: up to the end of the ring, then from its start
+            int len = Math.min(size, ring.length - head);
+            writeFully(ByteBuffer.wrap(ring, head, len));
+            head = (head + len) % ring.length;
+            size -= len;
+        }
+        head = 0;
+    }
+
+    // positional writes, so the RandomAccessFile position used for reading
+    // the log is left alone
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            writtenOffset += channel.write(buf, writtenOffset);
+        }
+        channelWrites++;
+    }
+}
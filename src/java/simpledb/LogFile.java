@@ -3,7 +3,10 @@ package simpledb;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.lang.reflect.*;
 
 /**
@@ -16,9 +19,9 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
+writes from happening); many of the methods in BufferPool latch the
+frames they work on (for similar reasons.)  Problem is that BufferPool
+writes log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
@@ -70,6 +73,29 @@ for each active transaction.
 
 </ul>
 
+<p> Log sequence numbers (LSNs) are byte positions in the log that keep
+growing when the log is truncated, so they can be compared across
+checkpoints.  <p>
+
+<u> Log buffer: </u> <p>
+
+Records are serialized in memory and appended to a {@link LogBuffer},
+which writes them to the log file in large sequential chunks through a
+FileChannel when it fills up, when the log is forced, or before the log
+is read back (rollback, truncation).  BufferPool stamps every page with
+the LSN of the last update record written for it (its pageLSN) and only
+waits for the log when that LSN is not durable yet.  <p>
+
+<u> Group commit: </u> <p>
+
+A committing transaction appends its COMMIT record and then waits until
+the log is durable up to that record.  The fsyncs are done by a single
+log-flusher thread, so all transactions that commit while an fsync is in
+progress are made durable by the next one.  The flusher can also be told
+to wait up to a batch window for more committers, unless a full batch is
+already waiting (see {@link #setGroupCommit}).  The flusher is started on
+demand and exits when the log has been idle for a while.
+
 */
 
 public class LogFile {
@@ -83,16 +109,61 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Default number of committers that make the flusher stop waiting for more. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+    /** How long an idle flusher thread lingers before it exits. */
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+    /** Size of the in-memory log tail. */
+    static final int LOG_BUFFER_SIZE = 1 << 18;
+
+    /** A byte array stream that lets us at its buffer without a copy. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    // pages whose full image has been logged since the last checkpoint;
+    // later updates to them are logged as deltas. protected by this
+    private final HashSet<PageId> fullImageLogged = new HashSet<PageId>();
+    private long deltaRecords = 0; // protected by this
+
+    // the record being built and the log tail; protected by this
+    private final RecordBuffer recordBytes = new RecordBuffer();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final LogBuffer logBuffer;
+
     long currentOffset = -1;//protected by this
+    long lsnBase = 0; // LSN of file offset 0, grows on truncation //protected by this
+
+    // group commit state, protected by flushLock
+    private final Object flushLock = new Object();
+    private long flushedLsn = 0;
+    private long requestedLsn = 0;
+    private int flushWaiters = 0;
+    private Thread flusher = null;
+    private IOException flusherError = null;
+    private int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private long groupCommitWindowMicros = 0;
+    private long commitCount = 0;
+    private long fsyncCount = 0;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // bytes of UPDATE records written per live transaction; read without
+    // the log monitor by the lock manager when it picks deadlock victims
+    ConcurrentHashMap<Long,Long> tidToLogBytes = new ConcurrentHashMap<Long,Long>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,6 +179,7 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        logBuffer = new LogBuffer(LOG_BUFFER_SIZE, raf.getChannel(), 0);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -133,9 +205,30 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            lsnBase = 0;
+            logBuffer.reset(raf.getChannel(), currentOffset);
+            fullImageLogged.clear();
         }
     }
 
+    // start building a record of the given type
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        return record;
+    }
+
+    // finish the record with the offset of its start (every record ends
+    // with one, so the log can be read backwards) and append it to the
+    // log buffer; returns the LSN just past the record
+    private long endRecord() throws IOException {
+        record.writeLong(currentOffset);
+        logBuffer.append(recordBytes.array(), 0, recordBytes.size());
+        currentOffset += recordBytes.size();
+        return getCurrentLsn();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -159,12 +252,11 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD); // 设置log type(int类型);
-                raf.writeLong(tid.getId()); // tax id (long)
-                raf.writeLong(currentOffset); // log结束有个, 本log record开始的offset(offset)
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId()); // 设置log type(int类型), tax id (long)
+                endRecord(); // log结束有个, 本log record开始的offset(offset)
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
             }
         }
     }
@@ -174,31 +266,42 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId()); // 和abort差不多
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitLsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId()); // 和abort差不多
+            commitLsn = endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLogBytes.remove(tid.getId());
+        }
+        // outside the monitor, so that others can append while we wait
+        waitForFlush(commitLsn);
+        synchronized (flushLock) {
+            commitCount++;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The first update
+        of a page after a checkpoint logs both images in full; later ones
+        only log the byte ranges that differ (a DELTA record), unless that
+        would not be much smaller.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN just past the new record; the log must be flushed
+        up to it before the page is written
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -208,18 +311,43 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);  // 多了两个数据
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageDelta delta = null;
+        if (!fullImageLogged.add(after.getId())) {
+            delta = PageDelta.diff(before, after);
+            if (delta != null && delta.encodedSize() > BufferPool.getPageSize()) {
+                delta = null; // changed too much to be worth it
+            }
+        }
+        if (delta != null) {
+            delta.write(beginRecord(DELTA_RECORD, tid.getId()));
+            deltaRecords++;
+        } else {
+            DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
+            writePageData(out,before);  // 多了两个数据
+            writePageData(out,after);
+        }
+        long start = currentOffset;
+        long lsn = endRecord();
+        tidToLogBytes.merge(tid.getId(), currentOffset - start, Long::sum);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
+    }
+
+    /** @return the number of update records logged as deltas */
+    public synchronized long getDeltaRecordCount() {
+        return deltaRecords;
+    }
+
+    /**
+     * @return the number of bytes of update records tid has written to the
+     *         log so far
+     */
+    public long getLogBytesWritten(TransactionId tid) {
+        return tidToLogBytes.getOrDefault(tid.getId(), 0L);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -234,16 +362,16 @@ public class LogFile {
         String pageClassName = p.getClass().getName();
         String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        out.writeUTF(idClassName);
 
-        raf.writeInt(pageInfo.length);
+        out.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.writeInt(pageInfo[i]);
         }
         byte[] pageData = p.getPageData(); // 实际的data
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
@@ -308,11 +436,9 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());  // 和commit等差不多
-        raf.writeLong(currentOffset);
+        beginRecord(BEGIN_RECORD, tid.getId());  // 和commit等差不多
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
@@ -324,33 +450,34 @@ public class LogFile {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
+                long startCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages(); // 检查点刷新所以page
-                startCpOffset = raf.getFilePointer(); // 得到当前offset
-                raf.writeInt(CHECKPOINT_RECORD); // 设置类型（int）
-                raf.writeLong(-1); //no tid , but leave space for convenience （无id）
+                startCpOffset = currentOffset; // 得到当前offset
+                // 设置类型（int）
+                DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience （无id）
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size()); // 写size
+                out.writeInt(keys.size()); // 写size
                 while (els.hasNext()) {
                     Long key = els.next();
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key); // 写tid
+                    out.writeLong(key); // 写tid
                     //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key)); // 写begin开始时的offset。
+                    out.writeLong(tidToFirstLogRecord.get(key)); // 写begin开始时的offset。
                 }
+                endRecord(); // 写入当前offset
+                // recovery starts at this checkpoint, so the next update of
+                // every page needs a full image to redo from
+                fullImageLogged.clear();
 
                 //once the CP is written, make sure the CP location at the
                 // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                logBuffer.drain();
                 raf.seek(0);  // 定位到开头，因为开头存的checkpoint的offset
                 raf.writeLong(startCpOffset); // 写入offset
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset); // 写入当前offset
-                currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
         }
@@ -362,6 +489,8 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        long oldLsn = getCurrentLsn();
+        logBuffer.drain();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -391,8 +520,8 @@ public class LogFile {
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
+        DataOutputStream logNew = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(newFile), LOG_BUFFER_SIZE));
         logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
 
         raf.seek(minLogRecord);
@@ -402,7 +531,7 @@ public class LogFile {
             try {
                 int type = raf.readInt();
                 long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+                long newStart = logNew.size();
 
                 Debug.log("NEW START = " + newStart);
 
@@ -417,6 +546,9 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case DELTA_RECORD:
+                    PageDelta.read(raf).write(logNew);
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -443,6 +575,7 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        logNew.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
@@ -451,6 +584,10 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        logBuffer.reset(raf.getChannel(), currentOffset);
+        // keep LSNs growing, and make the rewritten log durable
+        lsnBase = oldLsn - currentOffset;
+        force();
         //print();
     }
 
@@ -478,6 +615,7 @@ public class LogFile {
             throws NoSuchElementException, IOException {
         long tidIng2 = tid;
         long recordBegin = tidToFirstLogRecord.get(tid); // 获得tax的begin record的开始offset。
+        logBuffer.drain();
         raf.seek(currentOffset - LONG_SIZE);
         assert (currentOffset - LONG_SIZE == raf.length() - LONG_SIZE);
         long lastOffset = raf.readLong();
@@ -495,6 +633,14 @@ public class LogFile {
                         Database.getBufferPool().discardPage(before.getId());
                     }
                     break;
+                case DELTA_RECORD:
+                    tidIng1 = raf.readLong();
+                    PageDelta delta = PageDelta.read(raf);
+                    if(tidIng1 == tidIng2) {
+                        delta.apply(false);
+                        Database.getBufferPool().discardPage(delta.getPageId());
+                    }
+                    break;
                 default:
                     break;
             }
@@ -531,6 +677,12 @@ public class LogFile {
                 recoveryUndecided = false;
                 // some code goes here
                 currentOffset = raf.length();
+                lsnBase = 0;
+                logBuffer.reset(raf.getChannel(), currentOffset);
+                fullImageLogged.clear();
+                synchronized (flushLock) {
+                    flushedLsn = currentOffset;
+                }
                 if(currentOffset - LONG_SIZE <= 0) {
                     return;
                 }
@@ -584,6 +736,9 @@ public class LogFile {
                             Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after); // redo
                            // Database.getBufferPool().discardPage(after.getId());
 
+                            break;
+                        case DELTA_RECORD:
+                            PageDelta.read(raf).apply(true); // redo
                             break;
                         case BEGIN_RECORD:
                             unFinished.put(tidIng1,HeadOffset);
@@ -634,8 +789,173 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** @return the LSN just past the last record appended to the log */
+    public synchronized long getCurrentLsn() {
+        return lsnBase + currentOffset;
+    }
+
+    /** @return the LSN up to which the log is known to be on disk */
+    public long getFlushedLsn() {
+        synchronized (flushLock) {
+            return flushedLsn;
+        }
+    }
+
+    /**
+     * Configure group commit.
+     *
+     * @param batchSize number of waiting committers after which the flusher
+     *                  syncs without waiting out the window
+     * @param windowMicros how long the flusher waits for more committers
+     *                     before it syncs; 0 only batches the commits that
+     *                     arrive while the previous sync is running
+     */
+    public void setGroupCommit(int batchSize, long windowMicros) {
+        synchronized (flushLock) {
+            this.groupCommitBatch = Math.max(1, batchSize);
+            this.groupCommitWindowMicros = Math.max(0, windowMicros);
+        }
+    }
+
+    /** @return the number of transactions committed through this log */
+    public long getCommitCount() {
+        synchronized (flushLock) {
+            return commitCount;
+        }
+    }
+
+    /** @return the number of fsyncs of this log */
+    public long getFsyncCount() {
+        synchronized (flushLock) {
+            return fsyncCount;
+        }
+    }
+
+    /** @return average number of commits made durable by one fsync */
+    public double getCommitsPerFsync() {
+        synchronized (flushLock) {
+            return fsyncCount == 0 ? 0.0 : (double) commitCount / fsyncCount;
+        }
+    }
+
+    /** @return number of writes the log buffer issued to the log file */
+    public synchronized long getLogFileWrites() {
+        return logBuffer.getChannelWrites();
+    }
+
+    /** Force the whole log to disk now, in the calling thread. */
+    public void force() throws IOException {
+        while (true) {
+            FileChannel ch;
+            long target;
+            synchronized (this) {
+                logBuffer.drain();
+                ch = logBuffer.getChannel();
+                target = getCurrentLsn();
+            }
+            try {
+                ch.force(true);
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    if (logBuffer.getChannel() == ch) {
+                        throw e;
+                    }
+                }
+                // the log was truncated under us; sync the new file
+                continue;
+            }
+            synchronized (flushLock) {
+                if (target > flushedLsn) {
+                    flushedLsn = target;
+                }
+                fsyncCount++;
+                flushLock.notifyAll();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Block until the log is on disk up to lsn.  The fsync is done by the
+     * flusher thread, together with those of everybody else waiting.
+     *
+     * @param lsn the LSN that must be durable, e.g. as returned by
+     *            {@link #logWrite}
+     */
+    public void waitForFlush(long lsn) throws IOException {
+        if (Thread.holdsLock(this)) {
+            // e.g. flushAllPages() during a checkpoint; the flusher could
+            // not get at the log, so sync it ourselves
+            if (getFlushedLsn() < lsn) {
+                force();
+            }
+            return;
+        }
+        synchronized (flushLock) {
+            if (flushedLsn >= lsn) {
+                return;
+            }
+            if (lsn > requestedLsn) {
+                requestedLsn = lsn;
+            }
+            if (flusher == null) {
+                flusherError = null;
+                flusher = new Thread(this::runFlusher, "log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushWaiters++;
+            flushLock.notifyAll();
+            try {
+                while (flushedLsn < lsn) {
+                    if (flusherError != null) {
+                        throw new IOException("log flush failed", flusherError);
+                    }
+                    flushLock.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted while waiting for log flush", e);
+            } finally {
+                flushWaiters--;
+            }
+        }
+    }
+
+    private void runFlusher() {
+        try {
+            while (true) {
+                synchronized (flushLock) {
+                    long idleSince = System.currentTimeMillis();
+                    while (requestedLsn <= flushedLsn) {
+                        if (System.currentTimeMillis() - idleSince >= FLUSHER_IDLE_MILLIS) {
+                            flusher = null;
+                            return;
+                        }
+                        flushLock.wait(FLUSHER_IDLE_MILLIS);
+                    }
+                    // give more committers a chance to join this fsync
+                    long deadline = System.nanoTime() + groupCommitWindowMicros * 1000;
+                    long remaining;
+                    while (flushWaiters < groupCommitBatch
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        flushLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                }
+                force();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (flushLock) {
+                flusherError = e;
+                flusher = null;
+                flushLock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            synchronized (flushLock) {
+                flusher = null;
+                flushLock.notifyAll();
+            }
+        }
     }
 
 }
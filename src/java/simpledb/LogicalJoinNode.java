@@ -23,6 +23,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The join algorithm picked by the optimizer, or null if none was. */
+    public JoinOptimizer.JoinMethod method;
+
     public LogicalJoinNode() {
     }
 
@@ -62,6 +65,14 @@ public class LogicalJoinNode {
         LogicalJoinNode j2 = new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
         return j2;
     }
+
+    /** Return a copy of this LogicalJoinNode to be run with the given
+     * join algorithm. */
+    public LogicalJoinNode withMethod(JoinOptimizer.JoinMethod m) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.method = m;
+        return j2;
+    }
     
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -12,9 +13,7 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, group by fields and aggregates.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,12 +28,15 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private ArrayList<String> groupByFields = new ArrayList<String>();
+    private ArrayList<String> aggOps = new ArrayList<String>();
+    private ArrayList<String> aggFields = new ArrayList<String>();
+    private boolean hasOrderBy = false;
+    private ArrayList<String> oByFields = new ArrayList<String>();
+    private ArrayList<Boolean> oByAsc = new ArrayList<Boolean>();
+    private int limit = -1;
+    private boolean readOnly = true;
     private String query;
 //    private Query owner;
 
@@ -186,36 +188,74 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Each call adds another aggregate, computed over the same
+        groups as the others.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
+        aggOps.add(op);
+        aggFields.add(afield);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a GROUP BY field to the query.  Groups are formed on all the
+        fields added, in the order they were added.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields added
+        later break ties among tuples that are equal on the ones added before.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAsc.add(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT: only the first n tuples of the result are returned.
+        @param n the maximum number of tuples to return
+     */
+    public void setLimit(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("negative limit");
+        limit = n;
+    }
+
+    /** @return the LIMIT of the query, or -1 if there is none */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Say whether the tuples of the plan are only read, as for a SELECT,
+        or feed an Insert or Delete.  Only read-only plans are run in
+        parallel: workers would scan pages the statement is changing.
+        @param readOnly false if the plan feeds an Insert or Delete
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /** @return true unless the plan feeds an Insert or Delete */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +311,128 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Build the predicate of a filter over tuples of the given TupleDesc.
+     * @throws ParsingException if the filter's field isn't in td
+     */
+    private Predicate filterPredicate(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Field f;
+        Type ftyp;
+        int id;
+        try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
+            id = td.fieldNameToIndex(lf.fieldQuantifiedName);
+            ftyp = td.getFieldType(id);
+        } catch (java.util.NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            f = new IntField(new Integer(lf.c).intValue());
+        else
+            f = new StringField(lf.c, Type.STRING_LEN);
+        return new Predicate(id, lf.p, f);
+    }
+
+    /** Build the scan and filters of the only table of a query without
+        joins once per worker of a parallel plan (see {@link Exchange}),
+        the scans sharing the morsels of the table.
+        @return the pipelines, or null if the query isn't read-only or
+        doesn't have a single table with enough pages to be worth running
+        in parallel
+     * @throws ParsingException 
+    */
+    private OpIterator[] parallelPipelines(TransactionId t) throws ParsingException {
+        if (!readOnly || tables.size() != 1 || !joins.isEmpty() || Exchange.getParallelism() < 2)
+            return null;
+        LogicalScanNode table = tables.firstElement();
+        DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(file instanceof HeapFile))
+            return null;
+        PageMorsels morsels = new PageMorsels((HeapFile) file);
+        int dop = Math.min(Exchange.getParallelism(), morsels.numMorsels());
+        if (dop < 2)
+            return null;
+        OpIterator[] pipelines = new OpIterator[dop];
+        for (int i = 0; i < dop; i++) {
+            OpIterator p = new SeqScan(t, table.alias, morsels);
+            for (LogicalFilterNode lf : filters)
+                p = new Filter(filterPredicate(lf, p.getTupleDesc()), p);
+            pipelines[i] = p;
+        }
+        return pipelines;
+    }
+
+    /** Choose the access path of a table stored in a B+ tree: the filter
+        on the key of the tree that is cheapest to answer by searching it,
+        if that's cheaper than scanning the whole table.
+        @return the filter, or null if the table is best scanned
+     * @throws ParsingException 
+    */
+    private LogicalFilterNode indexFilter(LogicalScanNode table, TupleDesc td, TableStats s) throws ParsingException {
+        if (s == null || !(Database.getCatalog().getDatabaseFile(table.t) instanceof BTreeFile))
+            return null;
+        LogicalFilterNode best = null;
+        double bestCost = s.estimateScanCost();
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias))
+                continue;
+            Predicate p = filterPredicate(lf, td);
+            double cost = s.estimateIndexScanCost(p.getField(), p.getOp(), p.getOperand());
+            if (cost < bestCost) {
+                best = lf;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /** The fields of a table the query refers to, for a scan that reads only
+        those (see {@link ColumnScan}): the fields of the table in the select
+        list, filters, joins, GROUP BY and ORDER BY, in the order of the
+        table.
+        @return the fields, or null if the query needs all of them
+    */
+    private int[] referencedColumns(LogicalScanNode table) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.addAll(aggFields);
+        names.addAll(groupByFields);
+        names.addAll(oByFields);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.tableAlias + "." + lf.fieldPureName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        boolean[] used = new boolean[td.numFields()];
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || parts[0].equals("null") || parts[1].equals("*"))
+                return null;
+            if (!parts[0].equals(table.alias))
+                continue;
+            try {
+                used[td.fieldNameToIndex(parts[1])] = true;
+            } catch (NoSuchElementException e) {
+                // reported when the plan is built
+                return null;
+            }
+        }
+        int n = 0;
+        for (boolean u : used)
+            n += u ? 1 : 0;
+        if (n == td.numFields())
+            return null;
+        // a query that needs no field of the table still needs its tuples
+        used[0] |= n == 0;
+        int[] columns = new int[Math.max(n, 1)];
+        for (int j = 0, k = 0; j < used.length; j++)
+            if (used[j])
+                columns[k++] = j;
+        return columns;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -283,7 +445,7 @@ public class LogicalPlan {
      *    query plan should be given.
      *  @throws ParsingException if the logical plan is not valid
      *  @return A OpIterator representing this plan.
-     */ 
+     */
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         HashMap<String,String> equivMap = new HashMap<String,String>();
@@ -292,9 +454,15 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                int[] columns = referencedColumns(table);
+                // a PAX table is read for just the fields the query needs
+                if (file instanceof PaxFile && columns != null)
+                    ss = new ColumnScan(t, file.getId(), table.alias, columns);
+                else
+                    ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -306,6 +474,20 @@ public class LogicalPlan {
 
         }
 
+        // a filter on the key of a B+ tree may be answered by searching it
+        HashSet<LogicalFilterNode> indexed = new HashSet<LogicalFilterNode>();
+        for (LogicalScanNode table : tables) {
+            OpIterator scan = subplanMap.get(table.alias);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            LogicalFilterNode lf = indexFilter(table, scan.getTupleDesc(), s);
+            if (lf != null) {
+                Predicate p = filterPredicate(lf, scan.getTupleDesc());
+                subplanMap.put(table.alias, new BTreeScan(t, table.t, table.alias,
+                        new IndexPredicate(p.getOp(), p.getOperand())));
+                indexed.add(lf);
+            }
+        }
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -314,31 +496,15 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (java.util.NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
-
-            Predicate p = null;
-            try {
-                p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
-            } catch (NoSuchElementException e) {
-                throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
-            }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            Predicate p = filterPredicate(lf, subplan.getTupleDesc());
+            if (!indexed.contains(lf))
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
-            
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the field of the table, which a scan of some fields renumbers
+            int field = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName);
+            double sel= s.estimateSelectivity(field, lf.p, p.getOperand());
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -414,7 +580,13 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int a = 0;
+                while (a < aggOps.size() && !(aggOps.get(a).equals(si.aggOp)
+                        && aggFields.get(a).equals(si.fname)))
+                    a++;
+                if (a == aggOps.size())
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") not computed");
+                outFields.add(groupByFields.size() + a);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +598,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,20 +635,57 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[afields.length];
+                for (int j = 0; j < afields.length; j++) {
+                    afields[j] = td.fieldNameToIndex(aggFields.get(j));
+                    aops[j] = getAggOp(aggOps.get(j));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int c = 0; c < gfields.length; c++)
+                    gfields[c] = td.fieldNameToIndex(groupByFields.get(c));
+                OpIterator[] pipelines = parallelPipelines(t);
+                boolean partial = pipelines != null;
+                for (Aggregator.Op op : aops)
+                    partial &= op != Aggregator.Op.AVG;
+                if (partial) {
+                    // every worker aggregates its part, and the parts are combined
+                    for (int i = 0; i < pipelines.length; i++)
+                        pipelines[i] = Aggregate.partial(pipelines[i], afields, gfields, aops);
+                    aggNode = Aggregate.merging(new Exchange(pipelines), gfields.length, aops);
+                } else {
+                    if (pipelines != null)
+                        node = new Exchange(pipelines);
+                    aggNode = new Aggregate(node, afields, gfields, aops);
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
+        } else {
+            OpIterator[] pipelines = parallelPipelines(t);
+            if (pipelines != null)
+                node = new Exchange(pipelines);
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAsc.get(i);
+            }
+            // a top-n that fits in memory keeps only n tuples
+            if (limit >= 0 && (long) limit * node.getTupleDesc().getSize()
+                    <= BufferPool.getOperatorMemory())
+                node = new TopN(fields, ascs, limit, node);
+            else
+                node = new OrderBy(fields, ascs, node);
+        }
+        if (limit >= 0 && !(node instanceof TopN)) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -38,4 +38,10 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         return j2;
     }
 
+    public LogicalSubplanJoinNode withMethod(JoinOptimizer.JoinMethod m) {
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        j2.method = m;
+        return j2;
+    }
+
 }
@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * A read-only memory mapping of a file, in segments of at most
+ * {@link #SEGMENT_SIZE} bytes since a single MappedByteBuffer cannot cover
+ * more than 2 GB.  Segments are mapped on first use and remapped when the
+ * file has grown past the end of their mapping.
+ * <p>
+ * Writes still go through the file channel; they show up in the mapping
+ * because both go through the operating system's page cache.
+ */
+class MappedSegments {
+
+    /** Bytes per mapped segment. */
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final DbFileChannel channel;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedSegments(DbFileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Copy len bytes at the given file offset into buf.
+     *
+     * @return false if the file ends before that
+     */
+    boolean read(byte[] buf, int len, long position) throws IOException {
+        int seg = (int) (position / SEGMENT_SIZE);
+        int off = (int) (position % SEGMENT_SIZE);
+        if (off + len > SEGMENT_SIZE) {
+            // straddles two segments; rare enough to just read it
+            return channel.read(buf, len, position);
+        }
+        ByteBuffer mapping = segment(seg, off + len);
+        if (mapping == null) {
+            return false;
+        }
+        // a private cursor, so concurrent readers don't share a position
+        ByteBuffer view = mapping.duplicate();
+        view.position(off);
+        view.get(buf, 0, len);
+        return true;
+    }
+
+    // the mapping of segment seg, covering at least its first minLength
+    // bytes, or null if the file is not that long
+    private MappedByteBuffer segment(int seg, int minLength) throws IOException {
+        MappedByteBuffer[] segs = segments;
+        if (seg < segs.length && segs[seg] != null && segs[seg].capacity() >= minLength) {
+            return segs[seg];
+        }
+        synchronized (this) {
+            segs = segments;
+            if (seg < segs.length && segs[seg] != null && segs[seg].capacity() >= minLength) {
+                return segs[seg];
+            }
+            long start = seg * SEGMENT_SIZE;
+            long length = Math.min(SEGMENT_SIZE, channel.size() - start);
+            if (length < minLength) {
+                return null;
+            }
+            MappedByteBuffer[] grown = java.util.Arrays.copyOf(segs, Math.max(segs.length, seg + 1));
+            grown[seg] = channel.map(start, length);
+            segments = grown;
+            return grown[seg];
+        }
+    }
+}
@@ -4,21 +4,34 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It is an external merge sort.  The child is read into memory up to
+ * {@link BufferPool#getOperatorMemory()} bytes of tuples at a time; if it
+ * all fits it is sorted and returned from memory.  Otherwise every memory
+ * load is sorted and written to a {@link SpillFile} as a run, and the runs
+ * are merged with a loser tree, one page of read buffer per run: first in
+ * groups into longer runs if there are too many to merge at once, then on
+ * the fly as tuples are fetched.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private SortOrder order;
+
+    // the sorted child, if it fit in memory
+    private transient Tuple[] sorted;
+    private transient int numSorted, pos;
+    // otherwise the sorted runs and their merge
+    private transient ArrayList<SpillFile> runs;
+    private transient Merge merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,67 +40,320 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param ascs
+     *            for each field, true if it is sorted in ascending order.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child) {
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.order = new SortOrder(orderbyFields, ascs, td);
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
     }
-    
+
+    /** @return for each sort field, true if it is sorted ascending */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /** @return how many tuples of the child fit in the memory budget */
+    private int capacity() {
+        long n = BufferPool.getOperatorMemory() / td.getSize();
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE / order.numKeys(), n));
+    }
+
+    /** @return how many runs can be merged at once, a page of buffer each */
+    private int fanIn() {
+        long n = BufferPool.getOperatorMemory() / BufferPool.getPageSize() - 1;
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE, n));
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        runs = new ArrayList<SpillFile>();
+        int cap = capacity();
+        int k = order.numKeys();
+        Tuple[] buf = new Tuple[Math.min(cap, 1024)];
+        long[] keys = new long[buf.length * k];
+        int n = 0;
+        while (child.hasNext()) {
+            if (n == cap) {
+                writeRun(buf, keys, n);
+                n = 0;
+            } else if (n == buf.length) {
+                buf = Arrays.copyOf(buf, (int) Math.min(cap, 2L * n));
+                keys = Arrays.copyOf(keys, buf.length * k);
+            }
+            buf[n] = child.next();
+            order.encode(buf[n], keys, n * k);
+            n++;
+        }
+        if (runs.isEmpty()) {
+            int[] idx = sort(buf, keys, n);
+            sorted = new Tuple[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = buf[idx[i]];
+            }
+            numSorted = n;
+            pos = 0;
+        } else {
+            if (n > 0) {
+                writeRun(buf, keys, n);
+            }
+            sorted = null;
+            mergeRuns();
+        }
         super.open();
     }
 
+    /** Sorts buf[0..n) and writes it out as a run. */
+    private void writeRun(Tuple[] buf, long[] keys, int n) throws DbException {
+        int[] idx = sort(buf, keys, n);
+        SpillFile run = new SpillFile(td);
+        for (int i = 0; i < n; i++) {
+            run.add(buf[idx[i]]);
+            buf[idx[i]] = null;
+        }
+        runs.add(run);
+    }
+
+    /**
+     * Merges the runs in groups until few enough are left to merge at
+     * once, and starts the final merge.
+     */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        int fanIn = fanIn();
+        while (runs.size() > fanIn) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int from = 0; from < runs.size(); from += fanIn) {
+                List<SpillFile> group = runs.subList(from, Math.min(from + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile out = new SpillFile(td);
+                Merge m = new Merge(group);
+                Tuple t;
+                while ((t = m.next()) != null) {
+                    out.add(t);
+                }
+                m.close();
+                for (SpillFile run : group) {
+                    run.delete();
+                }
+                merged.add(out);
+            }
+            runs = merged;
+        }
+        merge = new Merge(runs);
+    }
+
+    /**
+     * Sorts buf[0..n), whose keys are encoded in keys, with a stable
+     * bottom-up merge sort.
+     *
+     * @return the indexes of buf in sorted order
+     */
+    private int[] sort(Tuple[] buf, long[] keys, int n) {
+        int k = order.numKeys();
+        int[] idx = new int[n];
+        for (int i = 0; i < n; i++) {
+            idx[i] = i;
+        }
+        int[] tmp = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, o = lo;
+                while (i < mid && j < hi) {
+                    int a = idx[i], b = idx[j];
+                    if (order.compare(keys, b * k, buf[b], keys, a * k, buf[a]) < 0)
+                        tmp[o++] = idx[j++];
+                    else
+                        tmp[o++] = idx[i++];
+                }
+                while (i < mid)
+                    tmp[o++] = idx[i++];
+                while (j < hi)
+                    tmp[o++] = idx[j++];
+                System.arraycopy(tmp, lo, idx, lo, hi - lo);
+            }
+        }
+        return idx;
+    }
+
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        if (runs != null) {
+            for (SpillFile run : runs) {
+                run.delete();
+            }
+            runs = null;
+        }
+        sorted = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (merge != null) {
+            merge.rewind();
+        }
+        pos = 0;
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (merge != null) {
+            return merge.next();
+        }
+        if (sorted != null && pos < numSorted) {
+            return sorted[pos++];
         } else
             return null;
     }
 
+    /**
+     * A k-way merge of sorted runs.  tree is a loser tree over the runs:
+     * tree[0] holds the run whose head comes next, and every other node the
+     * run that lost the comparison there, so replacing the head of the
+     * winner takes one comparison per level.
+     */
+    private class Merge {
+        private final OpIterator[] inputs;
+        private final Tuple[] heads;  // null once a run is exhausted
+        private final long[] keys;    // encoded keys of heads
+        private final int[] tree;
+
+        Merge(List<SpillFile> runs) throws DbException, TransactionAbortedException {
+            int k = runs.size();
+            inputs = new OpIterator[k];
+            heads = new Tuple[k];
+            keys = new long[k * order.numKeys()];
+            tree = new int[k];
+            for (int i = 0; i < k; i++) {
+                inputs[i] = runs.get(i).iterator();
+                inputs[i].open();
+            }
+            start();
+        }
+
+        private void start() throws DbException, TransactionAbortedException {
+            for (int i = 0; i < inputs.length; i++) {
+                advance(i);
+            }
+            // -1 stands for a run that beats every other, so that each
+            // leaf finds a free node on its way up
+            Arrays.fill(tree, -1);
+            for (int i = inputs.length - 1; i >= 0; i--) {
+                adjust(i);
+            }
+        }
+
+        private void advance(int i) throws DbException, TransactionAbortedException {
+            if (inputs[i].hasNext()) {
+                heads[i] = inputs[i].next();
+                order.encode(heads[i], keys, i * order.numKeys());
+            } else {
+                heads[i] = null;
+            }
+        }
+
+        /** @return true if the head of run a comes before that of run b */
+        private boolean beats(int a, int b) {
+            if (a < 0 || b < 0)
+                return a < 0;
+            if (heads[a] == null || heads[b] == null)
+                return heads[b] == null && heads[a] != null;
+            int k = order.numKeys();
+            int c = order.compare(keys, a * k, heads[a], keys, b * k, heads[b]);
+            // runs hold consecutive parts of the input, so ties go to the
+            // earlier run and the sort stays stable
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Replays the matches on the way from leaf s to the root. */
+        private void adjust(int s) {
+            for (int t = (s + inputs.length) / 2; t > 0; t /= 2) {
+                if (beats(tree[t], s)) {
+                    int loser = s;
+                    s = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = s;
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            advance(w);
+            adjust(w);
+            return t;
+        }
+
+        void rewind() throws DbException, TransactionAbortedException {
+            for (OpIterator in : inputs) {
+                in.rewind();
+            }
+            start();
+        }
+
+        void close() {
+            for (OpIterator in : inputs) {
+                in.close();
+            }
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -99,25 +365,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
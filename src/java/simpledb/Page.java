@@ -56,4 +56,17 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN just past the last log record written for this page
+     * (its pageLSN), or 0 if nothing has been logged for it since it was
+     * read in.  The page may not be written to disk before the log is
+     * durable up to this LSN.
+     */
+    public long getLSN();
+
+    /**
+     * Set the pageLSN, after an update record for this page was logged.
+     */
+    public void setLSN(long lsn);
 }
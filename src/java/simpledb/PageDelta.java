@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+
+/**
+ * The bytes a transaction changed on one page, as logged by a DELTA
+ * record: for every changed byte range its offset, the bytes of the before
+ * image and the bytes of the after image.  Inserting or deleting a tuple
+ * changes a header byte and one slot, so the record is a few dozen bytes
+ * instead of two whole pages.
+ * <p>
+ * Applying a delta patches the page as it is on disk: redo installs the
+ * after bytes, undo the before bytes.  Redo is only correct on top of the
+ * page state the delta was taken against, which is why LogFile logs a full
+ * image for the first update of a page after every checkpoint.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /** Changed runs closer together than this are merged into one range. */
+    static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final ArrayList<int[]> ranges; // {offset, length}
+    private final byte[][] beforeBytes;
+    private final byte[][] afterBytes;
+
+    private PageDelta(PageId pid, ArrayList<int[]> ranges, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.ranges = ranges;
+        this.beforeBytes = before;
+        this.afterBytes = after;
+    }
+
+    /**
+     * Compute the delta between two images of the same page.
+     *
+     * @return the delta, or null if the images differ in length
+     */
+    static PageDelta diff(Page before, Page after) {
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        if (a.length != b.length) {
+            return null;
+        }
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend over the run, bridging short gaps of equal bytes
+            for (int j = end; j < a.length && j < end + MERGE_GAP; j++) {
+                if (a[j] != b[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] { start, end - start });
+            i = end;
+        }
+        byte[][] beforeRuns = new byte[ranges.size()][];
+        byte[][] afterRuns = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int off = ranges.get(r)[0], len = ranges.get(r)[1];
+            beforeRuns[r] = java.util.Arrays.copyOfRange(b, off, off + len);
+            afterRuns[r] = java.util.Arrays.copyOfRange(a, off, off + len);
+        }
+        return new PageDelta(after.getId(), ranges, beforeRuns, afterRuns);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the number of bytes {@link #write} produces, give or take the id */
+    int encodedSize() {
+        int size = 2 * LogFile.INT_SIZE;
+        for (int[] r : ranges) {
+            size += 2 * LogFile.INT_SIZE + 2 * r[1];
+        }
+        return size;
+    }
+
+    void write(DataOutput out) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int v : pageInfo) {
+            out.writeInt(v);
+        }
+        out.writeInt(ranges.size());
+        for (int r = 0; r < ranges.size(); r++) {
+            out.writeInt(ranges.get(r)[0]);
+            out.writeInt(ranges.get(r)[1]);
+            out.write(beforeBytes[r]);
+            out.write(afterBytes[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        PageId pid;
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object[] idArgs = new Object[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++) {
+                idArgs[i] = in.readInt();
+            }
+            pid = (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InstantiationException
+                | IllegalAccessException | InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        int n = in.readInt();
+        ArrayList<int[]> ranges = new ArrayList<int[]>(n);
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            int off = in.readInt();
+            int len = in.readInt();
+            ranges.add(new int[] { off, len });
+            before[r] = new byte[len];
+            in.readFully(before[r]);
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, ranges, before, after);
+    }
+
+    /**
+     * Patch the on-disk version of the page and write it back.
+     *
+     * @param redo install the after bytes if true, the before bytes if false
+     * @return the patched page
+     */
+    Page apply(boolean redo) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        Page current = file.readPage(pid);
+        byte[] data = current.getPageData();
+        for (int r = 0; r < ranges.size(); r++) {
+            byte[] src = redo ? afterBytes[r] : beforeBytes[r];
+            System.arraycopy(src, 0, data, ranges.get(r)[0], ranges.get(r)[1]);
+        }
+        Page patched;
+        try {
+            patched = (Page) current.getClass().getDeclaredConstructors()[0].newInstance(pid, data);
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+        file.writePage(patched);
+        return patched;
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pages of a HeapFile handed out in morsels, runs of consecutive pages,
+ * to the scans of a parallel plan (see {@link Exchange}).  Scans sharing a
+ * PageMorsels together read every page once: a scan that is done with its
+ * morsel claims the next one left, so faster workers take more of the file.
+ * <p>
+ * Claiming is a single atomic increment, safe from any number of threads.
+ */
+public class PageMorsels {
+
+    /** Pages in a morsel. */
+    public static final int MORSEL_PAGES = 16;
+
+    private final HeapFile file;
+    private final int morselPages;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile int numPages;
+
+    public PageMorsels(HeapFile file) {
+        this(file, MORSEL_PAGES);
+    }
+
+    public PageMorsels(HeapFile file, int morselPages) {
+        if (morselPages <= 0)
+            throw new IllegalArgumentException("empty morsels");
+        this.file = file;
+        this.morselPages = morselPages;
+        reset();
+    }
+
+    public HeapFile getFile() {
+        return file;
+    }
+
+    /** @return the number of pages handed out, fixed at the last reset */
+    public int numPages() {
+        return numPages;
+    }
+
+    /** @return the number of morsels the file is split into */
+    public int numMorsels() {
+        return (numPages + morselPages - 1) / morselPages;
+    }
+
+    /**
+     * Starts handing out the file again from its first page, taking in any
+     * pages added since the last reset.  Not to be called while scans are
+     * claiming morsels.
+     */
+    public void reset() {
+        numPages = file.numPages();
+        next.set(0);
+    }
+
+    /**
+     * Claims the next morsel.
+     *
+     * @return the first page of the morsel, which runs to page
+     *         {@link #end}(first) exclusive, or -1 if every page is claimed
+     */
+    public int claim() {
+        if (next.get() >= numPages)
+            return -1;
+        int first = next.getAndAdd(morselPages);
+        return first < numPages ? first : -1;
+    }
+
+    /** @return the end, exclusive, of the morsel starting at page first */
+    public int end(int first) {
+        return Math.min(first + morselPages, numPages);
+    }
+}
@@ -0,0 +1,279 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hash equi-join whose build and probe phases are run by several worker
+ * threads.
+ * <p>
+ * The workers first split the build input (child1) between them: each
+ * pulls chunks of it and sorts their tuples into PARTITIONS_PER_WORKER
+ * partitions per worker on the hash of the join field.  Then the hash
+ * table of each partition is built by one worker, concurrently with the
+ * others.  Last the workers probe: each pulls chunks of child2 and looks
+ * their tuples up in the tables, and their results are gathered by an
+ * {@link Exchange}.  Children are read a chunk at a time under a lock, so
+ * any plan can feed the join, while the hashing, building and probing run
+ * in parallel.
+ * <p>
+ * The tables are held in memory.  The optimizer only picks this join when
+ * the build input fits in {@link BufferPool#getOperatorMemory()}; bigger
+ * ones are joined by {@link HashEquiJoin}, which partitions to disk.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Partitions of the build input per worker, to even out skew. */
+    public static final int PARTITIONS_PER_WORKER = 4;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private int dop;
+
+    transient private ArrayList<HashMap<Field, ArrayList<Tuple>>> tables = null;
+    transient private Exchange probes = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; an equality
+     * @param child1
+     *            Iterator for the left(outer) relation to join, which is
+     *            hashed
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param dop
+     *            The number of worker threads
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int dop) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash joins need an equality");
+        if (dop < 1)
+            throw new IllegalArgumentException("no workers");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.dop = dop;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /** @return the number of worker threads */
+    public int getParallelism() {
+        return dop;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the next at most {@link Exchange#CHUNK} tuples of child, or
+     *         null if it has no more; safe to call from any worker
+     */
+    private static Tuple[] nextChunk(OpIterator child) throws DbException,
+            TransactionAbortedException {
+        synchronized (child) {
+            if (!child.hasNext())
+                return null;
+            Tuple[] chunk = new Tuple[Exchange.CHUNK];
+            int n = 0;
+            while (n < chunk.length && child.hasNext())
+                chunk[n++] = child.next();
+            return n == chunk.length ? chunk : Arrays.copyOf(chunk, n);
+        }
+    }
+
+    /** @return the partition of key, in [0, tables.size()) */
+    private static int partition(Field key, int partitions) {
+        int h = key.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % partitions;
+    }
+
+    /** Reads child1 into one hash table per partition. */
+    private void build() throws DbException, TransactionAbortedException {
+        final int partitions = PARTITIONS_PER_WORKER * dop;
+        final int f1 = pred.getField1();
+
+        // every worker partitions the chunks it pulls
+        final ArrayList<ArrayList<ArrayList<Tuple>>> split =
+                new ArrayList<ArrayList<ArrayList<Tuple>>>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int w = 0; w < dop; w++) {
+            final ArrayList<ArrayList<Tuple>> mine = new ArrayList<ArrayList<Tuple>>();
+            for (int p = 0; p < partitions; p++)
+                mine.add(new ArrayList<Tuple>());
+            split.add(mine);
+            tasks.add(() -> {
+                Tuple[] chunk;
+                while ((chunk = nextChunk(child1)) != null) {
+                    for (Tuple t : chunk)
+                        mine.get(partition(t.getField(f1), partitions)).add(t);
+                }
+                return null;
+            });
+        }
+        Exchange.runAll(tasks);
+
+        // then builds the tables of the partitions it claims
+        tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>();
+        for (int p = 0; p < partitions; p++)
+            tables.add(null);
+        final AtomicInteger next = new AtomicInteger();
+        tasks.clear();
+        for (int w = 0; w < dop; w++) {
+            tasks.add(() -> {
+                int p;
+                while ((p = next.getAndIncrement()) < partitions) {
+                    HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+                    for (ArrayList<ArrayList<Tuple>> parts : split) {
+                        for (Tuple t : parts.get(p))
+                            map.computeIfAbsent(t.getField(f1), k -> new ArrayList<Tuple>()).add(t);
+                    }
+                    tables.set(p, map);
+                }
+                return null;
+            });
+        }
+        Exchange.runAll(tasks);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        build();
+        OpIterator[] pipelines = new OpIterator[dop];
+        for (int w = 0; w < dop; w++)
+            pipelines[w] = new Probe();
+        probes = new Exchange(pipelines);
+        probes.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (probes != null)
+            probes.close();
+        probes = null;
+        tables = null;
+        child1.close();
+        child2.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the tables stay; only the probe input is read again
+        probes.close();
+        child2.rewind();
+        probes.open();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the joined tuples of the
+     * probe workers, in no particular order.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return probes.hasNext() ? probes.next() : null;
+    }
+
+    /** The work of one probe worker: joins the chunks of child2 it pulls. */
+    private class Probe extends Operator {
+        private static final long serialVersionUID = 1L;
+
+        private transient Tuple[] chunk;
+        private transient int pos;
+        private transient Tuple probe;
+        private transient ArrayList<Tuple> matches;
+        private transient int match;
+
+        public void open() throws DbException, TransactionAbortedException {
+            chunk = null;
+            probe = null;
+            matches = null;
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            chunk = null;
+            probe = null;
+            matches = null;
+        }
+
+        /**
+         * Drops the chunk and matches in hand and starts over on the chunks
+         * of child2 left; child2 is shared by the probes, so the join
+         * rewinds it.
+         */
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return comboTD;
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (matches != null && match < matches.size()) {
+                    Tuple t1 = matches.get(match++);
+                    Tuple t = new Tuple(comboTD);
+                    int td1n = t1.getTupleDesc().numFields();
+                    for (int i = 0; i < td1n; i++)
+                        t.setField(i, t1.getField(i));
+                    for (int i = 0; i < probe.getTupleDesc().numFields(); i++)
+                        t.setField(td1n + i, probe.getField(i));
+                    return t;
+                }
+                if (chunk == null || pos == chunk.length) {
+                    chunk = nextChunk(child2);
+                    pos = 0;
+                    if (chunk == null)
+                        return null;
+                }
+                probe = chunk[pos++];
+                Field key = probe.getField(pred.getField2());
+                matches = tables.get(partition(key, tables.size())).get(key);
+                match = 0;
+            }
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * PaxFile is a DbFile that stores a collection of tuples in no particular
+ * order, like a HeapFile, on pages that keep every field in a minipage of
+ * its own (see {@link PaxPage}).  Scans that only need some fields of the
+ * table read them through {@link ColumnScan}, which decodes just those
+ * fields; to the rest of the database it is a table like any other.
+ * <p>
+ * Pages are found and numbered as in a HeapFile (with HeapPageIds), and
+ * inserts go through a {@link FreeSpaceMap} of empty slots.  Files are
+ * built by {@link PaxFileEncoder}, or by inserting into an empty file.
+ *
+ * @see PaxPage
+ * @see Catalog#loadSchema
+ */
+public class PaxFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final DbFileChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private final TupleInserter inserter;
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file
+     */
+    public PaxFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.channel = new DbFileChannel(f);
+        ToIntFunction<Page> room = p -> ((PaxPage) p).getNumEmptySlots();
+        this.freeSpace = new FreeSpaceMap(this, f, room);
+        this.inserter = new TupleInserter(this, f, channel, freeSpace, room);
+    }
+
+    /** @return the File backing this file on disk. */
+    public File getFile() {
+        return f;
+    }
+
+    /** @see HeapFile#getId */
+    public int getId() {
+        return f.getAbsolutePath().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pgno = pid.getPageNumber();
+        try {
+            byte[] data = new byte[BufferPool.getPageSize()];
+            if (!channel.read(data, data.length, (long) pgno * BufferPool.getPageSize())) {
+                throw new IllegalArgumentException("pid");
+            }
+            PaxPage p = new PaxPage((HeapPageId) pid, data);
+            freeSpace.update(pgno, p.getNumEmptySlots());
+            return p;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        throw new IllegalArgumentException("file op failed");
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        int pgno = page.getId().getPageNumber();
+        channel.write(page.getPageData(), (long) BufferPool.getPageSize() * pgno);
+        freeSpace.write(pgno, ((PaxPage) page).getNumEmptySlots());
+    }
+
+    /**
+     * Close the file descriptor behind this file.  It is reopened if the
+     * file is used again.
+     */
+    public void close() {
+        channel.close();
+        freeSpace.close();
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return inserter.insertTuple(tid, t, 1);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("PaxFile: deleteTuple: tuple.tableid != getId");
+        }
+        PageId pid = rid.getPageId();
+        PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        page.markDirty(true, tid);
+        freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
+        ArrayList<Page> mdfPage = new ArrayList<>();
+        mdfPage.add(page);
+        return mdfPage;
+    }
+
+    /** Reads the pages one after another, with read-ahead, as HeapFile does. */
+    private class PaxFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final int[] columns;
+        private final TupleDesc outTd;
+        private final List<Predicate> filters;
+        private final ReadAhead readAhead = new ReadAhead(getId());
+        private Iterator<Tuple> itr = null;
+        private int pgNum;
+
+        PaxFileIterator(TransactionId tid, int[] columns, TupleDesc outTd,
+                List<Predicate> filters) {
+            this.tid = tid;
+            this.columns = columns;
+            this.outTd = outTd;
+            this.filters = filters;
+        }
+
+        public void open() {
+            pgNum = -1;
+            itr = Collections.<Tuple>emptyList().iterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (itr == null) {
+                return null;
+            }
+            while (!itr.hasNext()) {
+                int numPages = numPages();
+                if (pgNum + 1 >= numPages) {
+                    return null;
+                }
+                pgNum++;
+                readAhead.pageReached(pgNum, numPages);
+                HeapPageId pid = new HeapPageId(getId(), pgNum);
+                PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_ONLY);
+                itr = page.iterator(columns, outTd, filters);
+            }
+            return itr.next();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            itr = null;
+            readAhead.reset();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        int[] all = new int[td.numFields()];
+        for (int j = 0; j < all.length; j++)
+            all[j] = j;
+        return iterator(tid, all, td, Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator over some of the fields of the tuples of this file
+     * that pass all of filters; see {@link PaxPage#iterator(int[], TupleDesc, List)}.
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] columns, TupleDesc outTd,
+            List<Predicate> filters) {
+        return new PaxFileIterator(tid, columns, outTd, filters);
+    }
+}
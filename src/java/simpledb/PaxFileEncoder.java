@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * PaxFileEncoder converts tuples, as HeapFileEncoder accepts them, to pages
+ * of binary data in the format of PaxPages.  It writes a heap file with
+ * HeapFileEncoder and rearranges every page of it into the minipages of a
+ * PaxPage, so the tuples keep the slots, and pages, HeapFileEncoder puts
+ * them in.
+ *
+ * @see PaxPage
+ * @see HeapFileEncoder
+ */
+
+public class PaxFileEncoder {
+
+  /** Convert the specified tuple list (with only integer fields) into a PAX
+   * page file; see {@link HeapFileEncoder#convert(ArrayList, File, int, int)}.
+   */
+  public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
+      File tempHeap = File.createTempFile("tempTable", ".dat");
+      tempHeap.deleteOnExit();
+      HeapFileEncoder.convert(tuples, tempHeap, npagebytes, numFields);
+      fromHeapFile(tempHeap, outFile, npagebytes, intTypes(numFields));
+      tempHeap.delete();
+  }
+
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields) throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, intTypes(numFields));
+  }
+
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr)
+      throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, ',');
+  }
+
+  /** Convert the specified input text file into a PAX page file; see
+   * {@link HeapFileEncoder#convert(File, File, int, int, Type[], char)}
+   * for the format of the input file.
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      File tempHeap = File.createTempFile("tempTable", ".dat");
+      tempHeap.deleteOnExit();
+      HeapFileEncoder.convert(inFile, tempHeap, npagebytes, numFields, typeAr, fieldSeparator);
+      fromHeapFile(tempHeap, outFile, npagebytes, typeAr);
+      tempHeap.delete();
+  }
+
+  /** Convert a heap file, with fields of the types in typeAr, into a PAX
+   * page file holding the same tuples on the same pages.
+   *
+   * @param heapFile the heap file to read pages from
+   * @param outFile the output file to write data to
+   * @param npagebytes the number of bytes per page in both files
+   * @throws IOException if a file can't be opened, or the heap file isn't
+   *   made of whole pages
+   */
+  public static void fromHeapFile(File heapFile, File outFile, int npagebytes,
+                 Type[] typeAr) throws IOException {
+      if (heapFile.length() % npagebytes != 0)
+          throw new IOException(heapFile + " is not made of whole pages");
+      TupleDesc td = new TupleDesc(typeAr);
+      byte[] page = new byte[npagebytes];
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(heapFile)));
+      BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outFile));
+      try {
+          for (long n = heapFile.length() / npagebytes; n > 0; n--) {
+              in.readFully(page);
+              out.write(PaxPage.fromHeapPageData(page, td));
+          }
+      } finally {
+          in.close();
+          out.close();
+      }
+  }
+
+  private static Type[] intTypes(int numFields) {
+      Type[] ts = new Type[numFields];
+      for (int i = 0; i < ts.length; i++) {
+          ts[i] = Type.INT_TYPE;
+      }
+      return ts;
+  }
+}
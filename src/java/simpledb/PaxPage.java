@@ -0,0 +1,264 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A page of a PaxFile.  It holds as many tuples as a HeapPage of the same
+ * table, with the same header of slot bits, but stores them column by
+ * column (PAX, "partition attributes across"): after the header comes one
+ * minipage per field of the TupleDesc, holding the values of that field
+ * for every slot of the page, one after another.  The value of field j of
+ * slot i is at
+ * <pre>
+ *     headerSize + numSlots * (offset of field j in a tuple) + i * (size of field j)
+ * </pre>
+ * so reading some fields of every tuple on the page touches only their
+ * minipages, and the fields that aren't asked for are never decoded (see
+ * {@link #iterator(int[], TupleDesc, List)}).
+ * <p>
+ * Like a HeapPage, the page keeps its bytes as its before image until it
+ * is changed (see {@link CopyOnWritePage}).
+ *
+ * @see PaxFile
+ * @see HeapPage
+ */
+public class PaxPage extends CopyOnWritePage {
+
+    final int numSlots;
+    private final int headerSize;
+    // the offset of the minipage of every field
+    private final int[] columnOffsets;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk, in the
+     * format described above.  The bytes are kept as they are.
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+        this.numSlots = numSlots(td.getSize(), BufferPool.getPageSize());
+        this.headerSize = (numSlots + 7) / 8;
+        if (data.length < headerSize + numSlots * td.getSize())
+            throw new IOException("short page: " + data.length + " bytes");
+        this.columnOffsets = columnOffsets(td, numSlots, headerSize);
+    }
+
+    /** @return the number of tuples of tupleSize bytes on a page, as for a HeapPage */
+    private static int numSlots(int tupleSize, int pageSize) {
+        return (pageSize * 8) / (tupleSize * 8 + 1);
+    }
+
+    private static int[] columnOffsets(TupleDesc td, int numSlots, int headerSize) {
+        int[] offsets = new int[td.numFields()];
+        int off = headerSize;
+        for (int j = 0; j < offsets.length; j++) {
+            offsets[j] = off;
+            off += numSlots * td.getFieldType(j).getLen();
+        }
+        return offsets;
+    }
+
+    /**
+     * Rearranges the bytes of a HeapPage of a table with the given
+     * TupleDesc into the bytes of the PaxPage holding the same tuples in the
+     * same slots, as {@link PaxFileEncoder} does.
+     */
+    public static byte[] fromHeapPageData(byte[] heapData, TupleDesc td) {
+        int numSlots = numSlots(td.getSize(), heapData.length);
+        int headerSize = (numSlots + 7) / 8;
+        int[] columns = columnOffsets(td, numSlots, headerSize);
+        byte[] data = new byte[heapData.length];
+        System.arraycopy(heapData, 0, data, 0, headerSize);
+        int fieldOffset = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            for (int i = 0; i < numSlots; i++) {
+                System.arraycopy(heapData, headerSize + i * td.getSize() + fieldOffset,
+                        data, columns[j] + i * len, len);
+            }
+            fieldOffset += len;
+        }
+        return data;
+    }
+
+    /** @return the offset of field j of slot i in the bytes of the page */
+    private int valueOffset(int i, int j) {
+        return columnOffsets[j] + i * td.getFieldType(j).getLen();
+    }
+
+    /**
+     * Returns the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        byte[] b = data;
+        int used = 0;
+        for (int i = 0; i < numSlots; i++)
+            used += isSlotUsed(b, i) ? 1 : 0;
+        return numSlots - used;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return isSlotUsed(data, i);
+    }
+
+    private static boolean isSlotUsed(byte[] b, int i) {
+        return ((b[i / 8] >> (i % 8)) & 0x01) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            data[i / 8] = (byte) (data[i / 8] | (0x1 << (i % 8)));
+        else
+            data[i / 8] = (byte) (data[i / 8] & ~(0x1 << (i % 8)));
+    }
+
+    /** @return true if the page has an empty slot */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to reflect
+     *  that it is now stored on this page.
+     * @throws DbException if the page is full (no empty slots) or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("td is mismatch");
+        int slot = -1;
+        for (int i = 0; i < numSlots && slot < 0; i++) {
+            if (!isSlotUsed(i))
+                slot = i;
+        }
+        if (slot < 0)
+            throw new DbException("page is full, not empty slot");
+        byte[][] values = new byte[td.numFields()][];
+        try {
+            for (int j = 0; j < values.length; j++) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getFieldType(j).getLen());
+                DataOutputStream dos = new DataOutputStream(baos);
+                t.getField(j).serialize(dos);
+                dos.flush();
+                values[j] = baos.toByteArray();
+            }
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new DbException("can't serialize tuple: " + e);
+        }
+        beforeWrite();
+        for (int j = 0; j < values.length; j++)
+            System.arraycopy(values[j], 0, data, valueOffset(slot, j), values[j].length);
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
+     *   that it is no longer stored on any page.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !getId().equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        beforeWrite();
+        markSlotUsed(slot, false);
+        // empty slots are all zeroes
+        for (int j = 0; j < td.numFields(); j++) {
+            int off = valueOffset(slot, j);
+            Arrays.fill(data, off, off + td.getFieldType(j).getLen(), (byte) 0);
+        }
+    }
+
+    protected PaxPage pageOf(byte[] data) throws IOException {
+        return new PaxPage(pid, data);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        return (PaxPage) super.getBeforeImage();
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        int[] all = new int[td.numFields()];
+        for (int j = 0; j < all.length; j++)
+            all[j] = j;
+        return iterator(all, td, Collections.<Predicate>emptyList());
+    }
+
+    /**
+     * Returns an iterator over some of the fields of the tuples on this page
+     * that pass all of filters.  The filters, on fields of the page, are
+     * tested on the bytes of their minipages, and only the fields in
+     * columns of the tuples that pass are decoded.  The iterator returns the
+     * tuples of the page as it was when it was created.
+     *
+     * @param columns
+     *            the fields of the page to return, in the order to return
+     *            them in
+     * @param outTd
+     *            the TupleDesc of the tuples returned, with the types of
+     *            columns
+     * @param filters
+     *            predicates on the fields of the page
+     */
+    public Iterator<Tuple> iterator(final int[] columns, final TupleDesc outTd,
+            final List<Predicate> filters) {
+        final byte[] b = snapshot();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            /** @return the first slot from i on holding a tuple that passes */
+            private int advance(int i) {
+                for (; i < numSlots; i++) {
+                    if (!isSlotUsed(b, i))
+                        continue;
+                    boolean pass = true;
+                    for (int k = 0; pass && k < filters.size(); k++) {
+                        Predicate p = filters.get(k);
+                        int f = p.getField();
+                        pass = HeapPage.matches(b, valueOffset(i, f), td.getFieldType(f), p);
+                    }
+                    if (pass)
+                        return i;
+                }
+                return numSlots;
+            }
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (next >= numSlots)
+                    throw new NoSuchElementException();
+                Tuple t = new Tuple(outTd);
+                t.setRecordId(new RecordId(pid, next));
+                for (int k = 0; k < columns.length; k++) {
+                    int j = columns[k];
+                    t.setField(k, HeapPage.readField(b, valueOffset(next, j), td.getFieldType(j)));
+                }
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
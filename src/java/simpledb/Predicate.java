@@ -108,6 +108,103 @@ public class Predicate implements Serializable {
 
     }
 
+    /**
+     * Narrows the selection of batch b to the rows that pass this predicate,
+     * with the same semantics as filter(Tuple).  Int columns are compared
+     * as primitives in one loop per operator.
+     *
+     * @param b
+     *            The batch to filter
+     */
+    public void filter(TupleBatch b) {
+        int n = b.numRows();
+        int[] sel = b.getSelection();
+        int[] out = new int[n];
+        int k = 0;
+        if (operand.getType() == Type.INT_TYPE) {
+            int[] col = b.getIntColumn(fid);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < n; i++) {
+                    int r = sel == null ? i : sel[i];
+                    out[k] = r;
+                    k += col[r] == v ? 1 : 0;
+                }
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++) {
+                    int r = sel == null ? i : sel[i];
+                    out[k] = r;
+                    k += col[r] != v ? 1 : 0;
+                }
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++) {
+                    int r = sel == null ? i : sel[i];
+                    out[k] = r;
+                    k += col[r] > v ? 1 : 0;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int r = sel == null ? i : sel[i];
+                    out[k] = r;
+                    k += col[r] >= v ? 1 : 0;
+                }
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++) {
+                    int r = sel == null ? i : sel[i];
+                    out[k] = r;
+                    k += col[r] < v ? 1 : 0;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int r = sel == null ? i : sel[i];
+                    out[k] = r;
+                    k += col[r] <= v ? 1 : 0;
+                }
+                break;
+            }
+        } else {
+            String[] col = b.getStringColumn(fid);
+            String v = ((StringField) operand).getValue();
+            for (int i = 0; i < n; i++) {
+                int r = sel == null ? i : sel[i];
+                if (compare(col[r], v)) {
+                    out[k++] = r;
+                }
+            }
+        }
+        b.setSelection(out, k);
+    }
+
+    private boolean compare(String value, String v) {
+        if (op == Op.LIKE) {
+            return value.indexOf(v) >= 0;
+        }
+        int cmp = value.compareTo(v);
+        switch (op) {
+        case EQUALS:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        default:
+            return false;
+        }
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -5,7 +5,7 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
@@ -80,6 +80,22 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Returns the child's next batch with its columns rearranged; no values
+     * are copied.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch b = TupleBatch.nextBatch(child);
+        if (b == null) {
+            return null;
+        }
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = outFieldIds.get(i);
+        }
+        return b.project(fields, td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -9,14 +9,48 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String PARALLEL_HASH_JOIN = "⨝(parallel hash)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "scan(index)";
+    static final String COLUMN_SCAN = "scan(columns)";
     static final String ORDERBY = "o";
+    static final String LIMIT = "limit";
+    static final String EXCHANGE = "exchange";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
+    /** @return the predicate of a join operator, or null if o is not one */
+    private static JoinPredicate joinPredicate(Operator o) {
+        if (o instanceof Join)
+            return ((Join) o).getJoinPredicate();
+        if (o instanceof HashEquiJoin)
+            return ((HashEquiJoin) o).getJoinPredicate();
+        if (o instanceof ParallelHashJoin)
+            return ((ParallelHashJoin) o).getJoinPredicate();
+        if (o instanceof SortMergeJoin)
+            return ((SortMergeJoin) o).getJoinPredicate();
+        if (o instanceof IndexNestedLoopJoin)
+            return ((IndexNestedLoopJoin) o).getJoinPredicate();
+        return null;
+    }
+
+    private static String joinSymbol(Operator o) {
+        if (o instanceof HashEquiJoin)
+            return HASH_JOIN;
+        if (o instanceof ParallelHashJoin)
+            return PARALLEL_HASH_JOIN;
+        if (o instanceof SortMergeJoin)
+            return MERGE_JOIN;
+        if (o instanceof IndexNestedLoopJoin)
+            return INDEX_JOIN;
+        return JOIN;
+    }
+
     private int calculateQueryPlanTreeDepth(OpIterator root) {
         if (root == null)
             return 0;
@@ -26,7 +60,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (joinPredicate(o) != null) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,24 +99,49 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof ColumnScan
+                || queryPlan instanceof BTreeScan) {
+            String scan = SCAN;
+            String tableName, alias, search = "";
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else if (queryPlan instanceof ColumnScan) {
+                ColumnScan s = (ColumnScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = COLUMN_SCAN;
+                search = "," + s.getTupleDesc().numFields() + " of "
+                        + Database.getCatalog().getTupleDesc(s.getTableId()).numFields()
+                        + " fields";
+            } else {
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                IndexPredicate ipred = s.getIndexPredicate();
+                if (ipred != null) {
+                    scan = INDEX_SCAN;
+                    BTreeFile f = (BTreeFile) Database.getCatalog()
+                            .getDatabaseFile(s.getTableId());
+                    search = "," + s.getTupleDesc().getFieldName(f.keyField())
+                            + ipred.getOp() + ipred.getField();
+                }
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias + search);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -107,18 +166,18 @@ public class QueryPlanVisualizer {
             Operator plan = (Operator) queryPlan;
             OpIterator[] children = plan.getChildren();
 
-            if (plan instanceof Join) {
-                Join j = (Join) plan;
-                TupleDesc td = j.getTupleDesc();
-                JoinPredicate jp = j.getJoinPredicate();
+            if (joinPredicate(plan) != null) {
+                String symbol = joinSymbol(plan);
+                TupleDesc td = plan.getTupleDesc();
+                JoinPredicate jp = joinPredicate(plan);
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", symbol,
+                        field1 + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = JOIN.length() / 2;
+                if (symbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = symbol.length() / 2;
 
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + adjustDepth + 3, children[0],
@@ -128,35 +187,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - JOIN.length() / 2;
-                thisNode.width = Math.max(
-                        left.width + right.width + SPACE.length(),
-                        thisNode.textStartPosition + thisNode.text.length()
-                                - currentStartPosition);
-                thisNode.leftChild = left;
-                thisNode.rightChild = right;
-                thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
-                int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
-                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[0],
-                        currentStartPosition, upBarShift);
-                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[1],
-                        currentStartPosition + left.width + SPACE.length(), 0);
-                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-                thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - symbol.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -170,16 +201,21 @@ public class QueryPlanVisualizer {
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
-                int gfield = a.groupField();
+                int[] gfields = a.groupFields();
+                String aggs = "";
+                for (int j = gfields.length; j < td.numFields(); j++)
+                    aggs += (aggs.length() == 0 ? "" : ", ") + td.getFieldName(j);
 
-                if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                if (gfields.length == 0) {
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    String groups = td.getFieldName(0);
+                    for (int c = 1; c < gfields.length; c++)
+                        groups += "," + td.getFieldName(c);
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -217,13 +253,31 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
+            } else if (plan instanceof OrderBy || plan instanceof TopN) {
+                int[] keys;
+                boolean[] ascs;
+                if (plan instanceof OrderBy) {
+                    keys = ((OrderBy) plan).getOrderByFields();
+                    ascs = ((OrderBy) plan).getAscending();
+                } else {
+                    keys = ((TopN) plan).getOrderByFields();
+                    ascs = ((TopN) plan).getAscending();
+                }
+                StringBuilder fields = new StringBuilder();
+                for (int i = 0; i < keys.length; i++) {
+                    if (i > 0)
+                        fields.append(",");
+                    fields.append(children[0].getTupleDesc().getFieldName(keys[i]));
+                    if (!ascs[i])
+                        fields.append(" desc");
+                }
+                if (plan instanceof TopN)
+                    fields.append("),limit:").append(((TopN) plan).getLimit());
+                else
+                    fields.append(")");
                 thisNode.text = String.format(
-                        "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        "%1$s(%2$s,card:%3$d",
+                        ORDERBY, fields, plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -238,6 +292,41 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                        ((Limit) plan).getLimit(), plan.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof Exchange) {
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", EXCHANGE,
+                        children.length, plan.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (EXCHANGE.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = EXCHANGE.length() / 2;
+                // the pipelines are all alike; the first stands for them
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - EXCHANGE.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
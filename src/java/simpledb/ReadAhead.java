@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sequential read-ahead for one scan of a file.  The scan reports every
+ * page it moves to; once it has moved forward page by page a couple of
+ * times, the next pages are read into the buffer pool in the background
+ * (see {@link BufferPool#prefetchPage}) so they are cached by the time the
+ * scan gets there.
+ * <p>
+ * The window is sized so that reads are started early enough to hide their
+ * latency at the rate the scan consumes pages: roughly read time divided by
+ * time spent per page, both measured as moving averages.  It is capped at a
+ * quarter of the buffer pool so read-ahead can't flush out the working set.
+ * <p>
+ * A ReadAhead is driven by one scan thread; the reads run on a small shared
+ * pool of daemon threads.
+ */
+class ReadAhead {
+
+    /** Forward steps before the scan counts as sequential. */
+    static final int SEQUENTIAL_AFTER = 2;
+    /** Concurrent background reads, across all scans. */
+    static final int IO_THREADS = 2;
+
+    private static final ExecutorService IO;
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor ex = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+                5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "read-ahead-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        ex.allowCoreThreadTimeOut(true);
+        IO = ex;
+    }
+
+    private final int tableId;
+    private int lastPage = -1;
+    private int run = 0;           // consecutive forward steps
+    private int issuedUpTo = -1;   // highest page handed to the readers
+    private long lastStepNanos = 0;
+    private double stepNanos = 0;  // moving average time per page consumed
+    private volatile double readNanos = 0; // moving average background read time
+
+    ReadAhead(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /** Forget the access history, e.g. when the scan is rewound. */
+    void reset() {
+        lastPage = -1;
+        run = 0;
+        issuedUpTo = -1;
+        lastStepNanos = 0;
+    }
+
+    /**
+     * The scan moved to page pgno of a file with numPages pages.
+     */
+    void pageReached(int pgno, int numPages) {
+        long now = System.nanoTime();
+        if (pgno == lastPage + 1 && lastPage >= 0) {
+            run++;
+            if (lastStepNanos != 0) {
+                stepNanos = average(stepNanos, now - lastStepNanos);
+            }
+        } else {
+            run = 0;
+            issuedUpTo = pgno;
+        }
+        lastPage = pgno;
+        lastStepNanos = now;
+        if (run < SEQUENTIAL_AFTER) {
+            return;
+        }
+        int target = Math.min(numPages - 1, pgno + window());
+        final BufferPool pool = Database.getBufferPool();
+        for (int p = Math.max(issuedUpTo + 1, pgno + 1); p <= target; p++) {
+            final PageId pid = new HeapPageId(tableId, p);
+            IO.execute(() -> {
+                long start = System.nanoTime();
+                if (pool.prefetchPage(pid)) {
+                    readNanos = average(readNanos, System.nanoTime() - start);
+                }
+            });
+            issuedUpTo = p;
+        }
+    }
+
+    /** @return the number of pages to keep in flight ahead of the scan */
+    int window() {
+        int max = Math.max(1, Database.getBufferPool().getNumPages() / 4);
+        if (stepNanos <= 0 || readNanos <= 0) {
+            return Math.min(2, max);
+        }
+        int w = (int) Math.ceil(readNanos / stepNanos) + 1;
+        return Math.max(1, Math.min(w, max));
+    }
+
+    private static double average(double avg, long sample) {
+        return avg == 0 ? sample : 0.8 * avg + 0.2 * sample;
+    }
+}
@@ -7,12 +7,15 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
+    private PageMorsels morsels = null;
+    // predicates the scan tests on the pages of a heap file itself
+    private final ArrayList<Predicate> filters = new ArrayList<Predicate>();
     DbFileIterator dbItr;
 
     /**
@@ -49,6 +52,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableid);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -80,9 +97,61 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Creates one of the scans of a parallel scan of a heap file: it reads
+     * the pages of the morsels it claims from morsels, which it shares with
+     * the other scans.  Rewinding it doesn't hand the pages out again;
+     * {@link PageMorsels#reset} does, for all the scans.
+     */
+    public SeqScan(TransactionId tid, String tableAlias, PageMorsels morsels) {
+        this(tid, morsels.getFile().getId(), tableAlias);
+        this.morsels = morsels;
+    }
+
+    /**
+     * @return the morsels this scan shares with the other scans of a
+     *         parallel scan, or null if it reads the whole table
+     */
+    public PageMorsels getMorsels() {
+        return morsels;
+    }
+
+    /**
+     * Has the scan return only the tuples that pass p, from the next time
+     * it is opened on.  A heap file is filtered on the bytes of its pages,
+     * before the tuples are decoded (see {@link HeapFile#iterator}), and a
+     * compressed file on the encoded columns of its pages.
+     *
+     * @return true if the scan will filter its tuples; false if the table
+     *         is neither, and p has to be applied to them
+     */
+    public boolean pushFilter(Predicate p) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof HeapFile || f instanceof CompressedFile)) {
+            return false;
+        }
+        if (!filters.contains(p)) {
+            filters.add(p);
+        }
+        return true;
+    }
+
+    /** @return the predicates pushed into the scan with pushFilter */
+    public List<Predicate> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        dbItr = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile f = morsels != null ? morsels.getFile()
+                : Database.getCatalog().getDatabaseFile(tableid);
+        if (f instanceof HeapFile) {
+            dbItr = ((HeapFile) f).iterator(tid, morsels, new ArrayList<Predicate>(filters));
+        } else if (f instanceof CompressedFile) {
+            dbItr = ((CompressedFile) f).iterator(tid, new ArrayList<Predicate>(filters));
+        } else {
+            dbItr = f.iterator(tid);
+        }
         dbItr.open();
     }
 
@@ -121,6 +190,21 @@ public class SeqScan implements OpIterator {
 
     }
 
+    /**
+     * Copies the next tuples of the table, with their RecordIds, into the
+     * columns of a batch.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (!dbItr.hasNext()) {
+            return null;
+        }
+        TupleBatch b = new TupleBatch(getTupleDesc());
+        while (!b.isFull() && dbItr.hasNext()) {
+            b.add(dbItr.next());
+        }
+        return b;
+    }
+
     public void close() {
         // some code goes here
         dbItr.close();
@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/**
+ * SlottedFile is a DbFile that stores a collection of tuples in no
+ * particular order, like a HeapFile, but on SlottedPages: tuples are
+ * variable-length records, so strings take the bytes they need rather than
+ * {@link Type#STRING_LEN} each, and a table with short strings takes a
+ * fraction of the pages.  Pages are found and numbered as in a HeapFile
+ * (with HeapPageIds), one after another in the file.
+ * <p>
+ * Inserts find a page with room through a {@link FreeSpaceMap} whose
+ * entries count free bytes in chunks of {@link #roomUnit()} bytes.
+ *
+ * @see SlottedPage
+ * @see Catalog#loadSchema
+ */
+public class SlottedFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final DbFileChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private final TupleInserter inserter;
+
+    /**
+     * Constructs a slotted file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file; missing or empty for an empty table
+     */
+    public SlottedFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.channel = new DbFileChannel(f);
+        ToIntFunction<Page> room = p -> room((SlottedPage) p);
+        this.freeSpace = new FreeSpaceMap(this, f, room);
+        this.inserter = new TupleInserter(this, f, channel, freeSpace, room);
+    }
+
+    /**
+     * @return the bytes of free space an entry of the free-space map
+     *         counts as one, so that a whole page fits in an entry
+     */
+    public static int roomUnit() {
+        return (BufferPool.getPageSize() + 254) / 255;
+    }
+
+    /** @return the entry of p in the free-space map */
+    private static int room(SlottedPage p) {
+        return p.getFreeSpace() / roomUnit();
+    }
+
+    /** @return the File backing this file on disk. */
+    public File getFile() {
+        return f;
+    }
+
+    /** @see HeapFile#getId */
+    public int getId() {
+        return f.getAbsolutePath().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the map of the free space of the pages of this file */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pgno = pid.getPageNumber();
+        try {
+            byte[] data = new byte[BufferPool.getPageSize()];
+            if (!channel.read(data, data.length, (long) pgno * BufferPool.getPageSize())) {
+                throw new IllegalArgumentException("pid");
+            }
+            SlottedPage p = new SlottedPage((HeapPageId) pid, data);
+            freeSpace.update(pgno, room(p));
+            return p;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        throw new IllegalArgumentException("file op failed");
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        int pgno = page.getId().getPageNumber();
+        channel.write(page.getPageData(), (long) BufferPool.getPageSize() * pgno);
+        freeSpace.write(pgno, room((SlottedPage) page));
+    }
+
+    /**
+     * Close the file descriptor behind this file.  It is reopened if the
+     * file is used again.
+     */
+    public void close() {
+        channel.close();
+        freeSpace.close();
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int needed = SlottedPage.spaceNeeded(t);
+        if (needed > BufferPool.getPageSize() - SlottedPage.HEADER_SIZE) {
+            throw new DbException("tuple too large for a page");
+        }
+        int need = (needed + roomUnit() - 1) / roomUnit();
+        return inserter.insertTuple(tid, t, need);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("SlottedFile: deleteTuple: tuple.tableid != getId");
+        }
+        PageId pid = rid.getPageId();
+        SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        page.markDirty(true, tid);
+        freeSpace.update(pid.getPageNumber(), room(page));
+        ArrayList<Page> mdfPage = new ArrayList<>();
+        mdfPage.add(page);
+        return mdfPage;
+    }
+
+    /** Reads the pages one after another, with read-ahead, as HeapFile does. */
+    private class SlottedFileIterator extends AbstractDbFileIterator {
+        private final TransactionId tid;
+        private final ReadAhead readAhead = new ReadAhead(getId());
+        private Iterator<Tuple> itr = null;
+        private int pgNum;
+
+        SlottedFileIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public void open() {
+            pgNum = -1;
+            itr = Collections.<Tuple>emptyList().iterator();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (itr == null) {
+                return null;
+            }
+            while (!itr.hasNext()) {
+                int numPages = numPages();
+                if (pgNum + 1 >= numPages) {
+                    return null;
+                }
+                pgNum++;
+                readAhead.pageReached(pgNum, numPages);
+                HeapPageId pid = new HeapPageId(getId(), pgNum);
+                itr = ((SlottedPage) Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_ONLY)).iterator();
+            }
+            return itr.next();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            itr = null;
+            readAhead.reset();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new SlottedFileIterator(tid);
+    }
+}
@@ -0,0 +1,321 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A page of a SlottedFile: tuples stored as variable-length records, found
+ * through a slot directory.  Unlike a HeapPage, where every string takes
+ * {@link Type#STRING_LEN} bytes whatever its length, a record only takes
+ * the bytes of its values.
+ * <p>
+ * The format of a page is a header of two ints, the number of entries in
+ * the slot directory and the offset the records start at, then the slot
+ * directory, one entry of two ints per slot, the offset and length of its
+ * record (an offset of 0 marks an empty slot), growing up from the header,
+ * and the records, growing down from the end of the page.  A record holds
+ * the values of the fields of its tuple one after another, ints as 4 bytes
+ * and strings as their length followed by their bytes.  A page of all
+ * zeroes is an empty page.
+ * <p>
+ * Deleting a tuple compacts the page, so its free space is always the one
+ * gap between the slot directory and the records.  Slots don't move, so
+ * the RecordIds of the other tuples on the page stay as they are.
+ * <p>
+ * Like a HeapPage, the page decodes tuples only when they are asked for,
+ * and keeps its bytes as its before image until it is changed (see
+ * {@link CopyOnWritePage}).
+ *
+ * @see SlottedFile
+ */
+public class SlottedPage extends CopyOnWritePage {
+
+    /** Bytes of the header of the page. */
+    public static final int HEADER_SIZE = 8;
+    /** Bytes of an entry of the slot directory. */
+    public static final int SLOT_SIZE = 8;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk, in
+     * the format described above.  The bytes are kept as they are.
+     *
+     * @see Database#getCatalog
+     * @see Catalog#getTupleDesc
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data);
+        if (data.length != BufferPool.getPageSize())
+            throw new IOException("bad page size: " + data.length + " bytes");
+        int n = getNumSlots();
+        int start = recordStart(data);
+        if (n < 0 || start < HEADER_SIZE + n * SLOT_SIZE || start > data.length)
+            throw new IOException("corrupt slotted page " + id.getPageNumber());
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /**
+     * @return the offset the records of b start at, which the header holds
+     *         as 0 on an empty page
+     */
+    private static int recordStart(byte[] b) {
+        int start = readInt(b, 4);
+        return start == 0 ? b.length : start;
+    }
+
+    private static int slotOffset(byte[] b, int i) {
+        return readInt(b, HEADER_SIZE + i * SLOT_SIZE);
+    }
+
+    private static int slotLength(byte[] b, int i) {
+        return readInt(b, HEADER_SIZE + i * SLOT_SIZE + 4);
+    }
+
+    /**
+     * @return the string of f, cut to the {@link Type#STRING_LEN} bytes a
+     *         StringField keeps
+     */
+    private static String stringValue(Field f) {
+        String s = ((StringField) f).getValue();
+        return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+    }
+
+    /** @return the number of bytes of the record of t */
+    public static int recordLength(Tuple t) {
+        int len = 0;
+        TupleDesc td = t.getTupleDesc();
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                len += 4;
+            else
+                len += 4 + stringValue(t.getField(j)).length();
+        }
+        return len;
+    }
+
+    /**
+     * @return the bytes of free space a page needs to take t, when it has
+     *         no empty slot to reuse
+     */
+    public static int spaceNeeded(Tuple t) {
+        return recordLength(t) + SLOT_SIZE;
+    }
+
+    /** @return the number of entries of the slot directory */
+    public int getNumSlots() {
+        return readInt(data, 0);
+    }
+
+    /**
+     * @return the bytes of free space on the page, between the slot
+     *         directory and the records
+     */
+    public int getFreeSpace() {
+        byte[] b = data;
+        return recordStart(b) - HEADER_SIZE - readInt(b, 0) * SLOT_SIZE;
+    }
+
+    /** @return the number of tuples on the page */
+    public int getNumTuples() {
+        byte[] b = data;
+        int n = readInt(b, 0);
+        int count = 0;
+        for (int i = 0; i < n; i++)
+            count += slotOffset(b, i) != 0 ? 1 : 0;
+        return count;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        byte[] b = data;
+        return i >= 0 && i < readInt(b, 0) && slotOffset(b, i) != 0;
+    }
+
+    /** @return the first empty slot of the directory of b, or its size */
+    private static int findEmptySlot(byte[] b) {
+        int n = readInt(b, 0);
+        for (int i = 0; i < n; i++) {
+            if (slotOffset(b, i) == 0)
+                return i;
+        }
+        return n;
+    }
+
+    /** @return true if t fits on the page as it is */
+    public boolean hasRoomFor(Tuple t) {
+        byte[] b = data;
+        int need = recordLength(t) + (findEmptySlot(b) < readInt(b, 0) ? 0 : SLOT_SIZE);
+        return need <= getFreeSpace();
+    }
+
+    /** Decodes the record of slot i of b, which must be used. */
+    private Tuple readTuple(byte[] b, int i) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        int off = slotOffset(b, i);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE) {
+                t.setField(j, new IntField(readInt(b, off)));
+                off += 4;
+            } else {
+                int len = readInt(b, off);
+                t.setField(j, new StringField(new String(b, off + 4, len), Type.STRING_LEN));
+                off += 4 + len;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Decodes the tuple in slot i alone, as a lookup by RecordId needs.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        byte[] b = snapshot();
+        if (i < 0 || i >= readInt(b, 0) || slotOffset(b, i) == 0)
+            return null;
+        return readTuple(b, i);
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot or a new
+     * one; the tuple is updated to reflect that it is now stored on this
+     * page.
+     *
+     * @throws DbException if the page has no room for it or tupledesc is
+     *         mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("td is mismatch");
+        if (!hasRoomFor(t))
+            throw new DbException("page is full, no room for tuple");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordLength(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    dos.writeInt(((IntField) t.getField(j)).getValue());
+                } else {
+                    String s = stringValue(t.getField(j));
+                    dos.writeInt(s.length());
+                    dos.writeBytes(s);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new DbException("can't serialize tuple: " + e);
+        }
+        byte[] record = baos.toByteArray();
+
+        beforeWrite();
+        int slot = findEmptySlot(data);
+        int start = recordStart(data) - record.length;
+        System.arraycopy(record, 0, data, start, record.length);
+        writeInt(data, 4, start);
+        writeInt(data, HEADER_SIZE + slot * SLOT_SIZE, start);
+        writeInt(data, HEADER_SIZE + slot * SLOT_SIZE + 4, record.length);
+        if (slot == getNumSlots())
+            writeInt(data, 0, slot + 1);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page, and compacts the page: the
+     * records below it move up to close the gap, and empty slots at the end
+     * of the slot directory are dropped.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !getId().equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (!isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+
+        beforeWrite();
+        int off = slotOffset(data, slot);
+        int len = slotLength(data, slot);
+        int start = recordStart(data);
+        System.arraycopy(data, start, data, start + len, off - start);
+        Arrays.fill(data, start, start + len, (byte) 0);
+        int n = getNumSlots();
+        for (int i = 0; i < n; i++) {
+            int o = slotOffset(data, i);
+            if (o != 0 && o < off)
+                writeInt(data, HEADER_SIZE + i * SLOT_SIZE, o + len);
+        }
+        writeInt(data, HEADER_SIZE + slot * SLOT_SIZE, 0);
+        writeInt(data, HEADER_SIZE + slot * SLOT_SIZE + 4, 0);
+        while (n > 0 && slotOffset(data, n - 1) == 0)
+            n--;
+        writeInt(data, 0, n);
+        // an empty page goes back to all zeroes
+        writeInt(data, 4, n == 0 ? 0 : start + len);
+    }
+
+    protected SlottedPage pageOf(byte[] data) throws IOException {
+        return new SlottedPage(pid, data);
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedPage getBeforeImage() {
+        return (SlottedPage) super.getBeforeImage();
+    }
+
+    /**
+     * @return an iterator over all tuples on this page, in slot order, as
+     *         the page was when the iterator was created (calling remove on
+     *         this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        final byte[] b = snapshot();
+        final int n = readInt(b, 0);
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < n && slotOffset(b, i) == 0)
+                    i++;
+                return i;
+            }
+
+            public boolean hasNext() {
+                return next < n;
+            }
+
+            public Tuple next() {
+                if (next >= n)
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(b, next);
+                next = advance(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * An equality join that sorts both children on their join fields and merges
+ * them.  Each run of equal keys on the left is paired with the matching run
+ * on the right, so duplicate keys on both sides are handled.
+ * <p>
+ * Both children are sorted by an {@link OrderBy} when the operator is
+ * opened, in memory if they fit in {@link BufferPool#getOperatorMemory()}
+ * and in sorted runs on disk otherwise.  Only the run of the current key on
+ * the right is kept in memory while the left streams past it.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    // the children in join field order
+    private transient OrderBy left, right;
+    // the next tuple of each sorted child, null once it is exhausted
+    private transient Tuple leftHead, rightHead;
+    // the tuples on the right with the key of cur, which is joined with
+    // run[rj..] next
+    private transient ArrayList<Tuple> run;
+    private transient Tuple cur;
+    private transient int rj;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, which must be an equality.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("sort-merge join needs an equality predicate");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    private static Tuple advance(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        left = new OrderBy(pred.getField1(), true, child1);
+        right = new OrderBy(pred.getField2(), true, child2);
+        left.open();
+        right.open();
+        run = new ArrayList<Tuple>();
+        start();
+        super.open();
+    }
+
+    /** Starts the merge over from the first tuples of the sorted children. */
+    private void start() throws DbException, TransactionAbortedException {
+        leftHead = advance(left);
+        rightHead = advance(right);
+        run.clear();
+        cur = null;
+        rj = 0;
+    }
+
+    public void close() {
+        super.close();
+        if (right != null) {
+            right.close();
+            left.close();
+            right = left = null;
+        }
+        run = null;
+        cur = leftHead = rightHead = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the sorted inputs are kept; just start the merge over
+        left.rewind();
+        right.rewind();
+        start();
+    }
+
+    /**
+     * Returns the next pair of tuples with equal join fields, in join field
+     * order, or null if there are no more.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1();
+        int f2 = pred.getField2();
+        while (cur == null || rj >= run.size()) {
+            cur = null;
+            if (leftHead == null) {
+                return null;
+            }
+            Tuple t = leftHead;
+            leftHead = advance(left);
+            Field key = t.getField(f1);
+            if (run.isEmpty() || compare(run.get(0).getField(f2), key) != 0) {
+                // a new key: collect its run on the right
+                run.clear();
+                while (rightHead != null && compare(rightHead.getField(f2), key) < 0)
+                    rightHead = advance(right);
+                while (rightHead != null && compare(rightHead.getField(f2), key) == 0) {
+                    run.add(rightHead);
+                    rightHead = advance(right);
+                }
+            }
+            if (!run.isEmpty()) {
+                cur = t;
+                rj = 0;
+            }
+        }
+        Tuple t1 = cur;
+        Tuple t2 = run.get(rj++);
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * The keys of a sort: a list of fields, each sorted ascending or descending.
+ * <p>
+ * So that comparisons don't go through Field.compare, each key of a tuple
+ * is encoded once into a long whose signed order is the order of the key,
+ * direction included (see {@link #encode}).  Int keys are encoded exactly;
+ * string keys are encoded by their first four chars, and only strings that
+ * share those are compared in full.
+ */
+public class SortOrder implements Comparator<Tuple>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fields;
+    private final boolean[] asc;
+    // is the encoding of key i the whole key, or only a prefix of it
+    private final boolean[] exact;
+
+    /**
+     * @param fields
+     *            the fields to sort on, most significant first
+     * @param asc
+     *            for each field, true if it is sorted in ascending order
+     * @param td
+     *            the descriptor of the tuples to sort
+     */
+    public SortOrder(int[] fields, boolean[] asc, TupleDesc td) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+        exact = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            exact[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+        }
+    }
+
+    public int numKeys() {
+        return fields.length;
+    }
+
+    public int getField(int i) {
+        return fields[i];
+    }
+
+    public boolean isAscending(int i) {
+        return asc[i];
+    }
+
+    private static long prefix(String s) {
+        long k = 0;
+        for (int i = 0; i < 4; i++) {
+            k = (k << 16) | (i < s.length() ? s.charAt(i) : 0);
+        }
+        // chars compare unsigned
+        return k ^ Long.MIN_VALUE;
+    }
+
+    /** Writes the encoded keys of t to keys[at .. at + numKeys()). */
+    public void encode(Tuple t, long[] keys, int at) {
+        for (int i = 0; i < fields.length; i++) {
+            Field f = t.getField(fields[i]);
+            long k = exact[i] ? ((IntField) f).getValue()
+                    : prefix(((StringField) f).getValue());
+            keys[at + i] = asc[i] ? k : ~k;
+        }
+    }
+
+    /**
+     * Compares a and b, whose keys were encoded at ka[ia] and kb[ib].
+     *
+     * @return negative, zero or positive as a sorts before, with or after b
+     */
+    public int compare(long[] ka, int ia, Tuple a, long[] kb, int ib, Tuple b) {
+        for (int i = 0; i < fields.length; i++) {
+            long x = ka[ia + i];
+            long y = kb[ib + i];
+            if (x != y)
+                return x < y ? -1 : 1;
+            if (!exact[i]) {
+                int c = ((StringField) a.getField(fields[i])).getValue().compareTo(
+                        ((StringField) b.getField(fields[i])).getValue());
+                if (c != 0)
+                    return asc[i] ? c : -c;
+            }
+        }
+        return 0;
+    }
+
+    public int compare(Tuple a, Tuple b) {
+        long[] ka = new long[fields.length];
+        long[] kb = new long[fields.length];
+        encode(a, ka, 0);
+        encode(b, kb, 0);
+        return compare(ka, 0, a, kb, 0, b);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of tuples that an operator writes when its input does
+ * not fit in {@link BufferPool#getOperatorMemory()} and reads back later.
+ * Spill files bypass the buffer pool: they belong to one operator, are
+ * written sequentially and read sequentially, and never need recovery.
+ * <p>
+ * Tuples are appended with {@link #add} and read back, in the order they
+ * were added, with the iterator returned by {@link #iterator}, which
+ * finishes the file.  Fields are stored compactly (strings without their
+ * padding), and record ids are not kept.  Reading and writing are
+ * buffered a page ({@link BufferPool#getPageSize()}) at a time.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Creates an empty spill file for tuples of the given descriptor.
+     *
+     * @throws DbException if the temporary file can't be created
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("spill", ".dat");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BufferPool.getPageSize()));
+        } catch (IOException e) {
+            throw new DbException("can't create spill file: " + e.getMessage());
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added so far */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /** Appends t to the file. */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file already finished");
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    out.writeInt(((IntField) f).getValue());
+                else
+                    out.writeUTF(((StringField) f).getValue());
+            }
+        } catch (IOException e) {
+            throw new DbException("can't write spill file: " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    private void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("can't write spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Finishes the file and returns an iterator over its tuples.  No more
+     * tuples can be added afterwards; the file can be read any number of
+     * times until it is deleted.
+     */
+    public OpIterator iterator() throws DbException {
+        finish();
+        return new Reader();
+    }
+
+    /** Removes the file from disk. */
+    public void delete() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // being thrown away anyway
+        }
+        file.delete();
+    }
+
+    private class Reader implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in = null;
+        private int read = 0;
+
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BufferPool.getPageSize()));
+            } catch (IOException e) {
+                throw new DbException("can't read spill file: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            if (in == null)
+                throw new IllegalStateException("Operator not yet open");
+            return read < numTuples;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        t.setField(i, new IntField(in.readInt()));
+                    else
+                        t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            } catch (IOException e) {
+                throw new DbException("can't read spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing was written through it
+                }
+                in = null;
+            }
+        }
+    }
+}
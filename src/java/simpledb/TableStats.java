@@ -65,6 +65,15 @@ public class TableStats {
      * histograms.
      */
     static final int NUM_HIST_BINS = 100;
+
+    /**
+     * The cost of reading a page of a B+ tree, relative to reading one in a
+     * sequential scan: a search reads pages at wherever they lie in the
+     * file.
+     */
+    public static final double RANDOM_IO_FACTOR = 4;
+
+    private int tableid;
     private Object[] hits;
     private int ioCostPerPage;
     private int numPage;
@@ -90,12 +99,19 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
+        this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
         this.numTuple = 0;
 
         DbFile dfile = Database.getCatalog().getDatabaseFile(tableid);
         if(dfile instanceof HeapFile) {
             this.numPage = ((HeapFile) dfile).numPages();
+        } else if(dfile instanceof SlottedFile) {
+            this.numPage = ((SlottedFile) dfile).numPages();
+        } else if(dfile instanceof PaxFile) {
+            this.numPage = ((PaxFile) dfile).numPages();
+        } else if(dfile instanceof CompressedFile) {
+            this.numPage = ((CompressedFile) dfile).numPages();
         } else {
             assert (dfile instanceof BTreeFile);
             this.numPage = ((BTreeFile) dfile).numPages();
@@ -187,6 +203,36 @@ public class TableStats {
         return numPage * ioCostPerPage;
     }
 
+    /**
+     * @return the number of levels, root to leaf, of a B+ tree of the given
+     *         number of pages keyed on a field of type keyType
+     */
+    static double indexHeight(int pages, Type keyType) {
+        // internal pages hold a key and a child pointer per entry
+        double fanout = Math.max(2.0, BufferPool.getPageSize()
+                / (double) (keyType.getLen() + BTreeInternalPage.INDEX_SIZE));
+        return 1 + Math.ceil(Math.log(Math.max(1, pages)) / Math.log(fanout));
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy
+     * <tt>field op constant</tt> by searching the B+ tree the table is stored
+     * in: a descent from the root, then the leaves holding the matches.
+     * Every page costs RANDOM_IO_FACTOR times a page of a sequential scan.
+     * 
+     * @return The estimated cost, or infinity if the table is not a
+     *         BTreeFile keyed on field or the tree can't answer op
+     */
+    public double estimateIndexScanCost(int field, Predicate.Op op, Field constant) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != field
+                || op == Predicate.Op.NOT_EQUALS || op == Predicate.Op.LIKE)
+            return Double.POSITIVE_INFINITY;
+        double leaves = Math.ceil(estimateSelectivity(field, op, constant) * numPage);
+        return (indexHeight(numPage, td.getFieldType(field)) + leaves)
+                * ioCostPerPage * RANDOM_IO_FACTOR;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
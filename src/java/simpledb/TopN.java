@@ -0,0 +1,182 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN implements an ORDER BY followed by a LIMIT of n: it returns the first
+ * n tuples of its child in sort order, the same tuples as
+ * {@code new Limit(n, new OrderBy(...))} in the same order.
+ * <p>
+ * Rather than sorting the whole child it keeps the best n tuples seen so
+ * far in a heap whose root is the worst of them, so each tuple of the child
+ * costs at most O(log n) comparisons and only n tuples are held in memory.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private SortOrder order;
+    private int limit;
+
+    // slots 0..limit hold tuples, their encoded keys and their position in
+    // the child, which breaks ties so the result is that of a stable sort;
+    // heap[0..size) lists the slots of the heap, and the one slot not in it
+    // is free for the next tuple of the child
+    private transient Tuple[] tuples;
+    private transient long[] keys;
+    private transient long[] seqs;
+    private transient int[] heap;
+    private transient int size;
+    private transient Tuple[] result;
+    private transient int pos;
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param ascs
+     *            for each field, true if it is sorted in ascending order.
+     * @param limit
+     *            how many tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit");
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.order = new SortOrder(orderbyFields, ascs, td);
+        this.limit = limit;
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if it is sorted ascending */
+    public boolean[] getAscending() {
+        return ascs.clone();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return true if the tuple in slot a sorts after the one in slot b */
+    private boolean after(int a, int b) {
+        int k = order.numKeys();
+        int c = order.compare(keys, a * k, tuples[a], keys, b * k, tuples[b]);
+        return c > 0 || (c == 0 && seqs[a] > seqs[b]);
+    }
+
+    private void siftUp(int i) {
+        int s = heap[i];
+        while (i > 0 && after(s, heap[(i - 1) / 2])) {
+            heap[i] = heap[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        heap[i] = s;
+    }
+
+    private void siftDown(int i) {
+        int s = heap[i];
+        while (2 * i + 1 < size) {
+            int c = 2 * i + 1;
+            if (c + 1 < size && after(heap[c + 1], heap[c]))
+                c++;
+            if (!after(heap[c], s))
+                break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = s;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        int k = order.numKeys();
+        tuples = new Tuple[limit + 1];
+        keys = new long[(limit + 1) * k];
+        seqs = new long[limit + 1];
+        heap = new int[limit + 1];
+        size = 0;
+        int free = 0;
+        long seq = 0;
+        while (limit > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            tuples[free] = t;
+            order.encode(t, keys, free * k);
+            seqs[free] = seq++;
+            if (size < limit) {
+                heap[size++] = free;
+                siftUp(size - 1);
+                free = size;
+            } else if (after(heap[0], free)) {
+                // replaces the worst of the best so far
+                int worst = heap[0];
+                heap[0] = free;
+                siftDown(0);
+                free = worst;
+            }
+        }
+        // pop the worst first to fill the result from the back
+        result = new Tuple[size];
+        while (size > 0) {
+            result[size - 1] = tuples[heap[0]];
+            heap[0] = heap[--size];
+            siftDown(0);
+        }
+        tuples = null;
+        keys = null;
+        seqs = null;
+        heap = null;
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        result = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the best limit tuples of the
+     * child in order.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (result != null && pos < result.length)
+            return result[pos++];
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,312 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A batch of rows stored column by column: an int[] for every INT_TYPE
+ * field and a String[] for every STRING_TYPE field, plus the RecordId of
+ * each row when it came from a table.
+ * <p>
+ * A selection vector picks out the rows that are still live, so a filter
+ * narrows a batch without moving any column data.  Rows are addressed in
+ * two ways: {@link #row(int)} maps the i-th selected row, 0 &lt;= i &lt;
+ * {@link #numRows()}, to its physical index, and the column accessors take
+ * physical indexes.  The usual loop is
+ * <pre>
+ *     for (int i = 0; i &lt; b.numRows(); i++) {
+ *         int r = b.row(i);
+ *         ... b.getInt(col, r) ...
+ *     }
+ * </pre>
+ *
+ * @see BatchOpIterator
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Rows per batch produced by the operators. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private int[][] ints;       // by column; null for string columns
+    private String[][] strings; // by column; null for int columns
+    private RecordId[] rids;
+    private int size = 0;       // physical rows
+    private int[] sel = null;   // null when every row is selected
+    private int selSize = 0;
+
+    /**
+     * Create an empty batch of DEFAULT_SIZE rows for tuples of type td.
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Create an empty batch for tuples of type td that counts as full after
+     * capacity rows.  More rows can still be added; the columns grow.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                strings[i] = new String[capacity];
+            }
+        }
+        rids = new RecordId[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int capacity, int[][] ints,
+            String[][] strings, RecordId[] rids) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = rids;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return true if the batch holds at least its capacity in rows */
+    public boolean isFull() {
+        return size >= capacity;
+    }
+
+    /** @return the number of selected rows */
+    public int numRows() {
+        return sel == null ? size : selSize;
+    }
+
+    /** @return the physical index of the i-th selected row */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /**
+     * @return the selection vector, holding numRows() physical indexes, or
+     *         null if every row is selected
+     */
+    public int[] getSelection() {
+        return sel;
+    }
+
+    /**
+     * Select the rows whose physical indexes are in sel[0..n).  The indexes
+     * must be ascending and taken from the current selection.
+     */
+    public void setSelection(int[] sel, int n) {
+        this.sel = sel;
+        this.selSize = n;
+    }
+
+    /** @return the values of int column col, by physical row */
+    public int[] getIntColumn(int col) {
+        if (ints[col] == null) {
+            throw new IllegalArgumentException("field " + col + " is not an int");
+        }
+        return ints[col];
+    }
+
+    /** @return the values of string column col, by physical row */
+    public String[] getStringColumn(int col) {
+        if (strings[col] == null) {
+            throw new IllegalArgumentException("field " + col + " is not a string");
+        }
+        return strings[col];
+    }
+
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return strings[col][row];
+    }
+
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /**
+     * Add an empty row at the end; the caller fills in its fields with
+     * setInt and setString.  Only allowed while every row is selected.
+     *
+     * @return the physical index of the new row
+     */
+    public int addRow() {
+        if (sel != null) {
+            throw new IllegalStateException("cannot add rows under a selection");
+        }
+        if (size == rids.length) {
+            int n = Math.max(4, size * 2);
+            for (int i = 0; i < ints.length; i++) {
+                if (ints[i] != null) {
+                    ints[i] = Arrays.copyOf(ints[i], n);
+                } else {
+                    strings[i] = Arrays.copyOf(strings[i], n);
+                }
+            }
+            rids = Arrays.copyOf(rids, n);
+        }
+        return size++;
+    }
+
+    public void setInt(int col, int row, int value) {
+        ints[col][row] = value;
+    }
+
+    public void setString(int col, int row, String value) {
+        strings[col][row] = value;
+    }
+
+    /** Append the fields and RecordId of t as a new row. */
+    public void add(Tuple t) {
+        int r = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                ints[i][r] = ((IntField) t.getField(i)).getValue();
+            } else {
+                strings[i][r] = ((StringField) t.getField(i)).getValue();
+            }
+        }
+        rids[r] = t.getRecordId();
+    }
+
+    /**
+     * Copy row srcRow of src into fields [at, at + src's width) of row r of
+     * this batch.  The column types must match.
+     */
+    public void copyRow(TupleBatch src, int srcRow, int r, int at) {
+        for (int i = 0; i < src.ints.length; i++) {
+            if (src.ints[i] != null) {
+                ints[at + i][r] = src.ints[i][srcRow];
+            } else {
+                strings[at + i][r] = src.strings[i][srcRow];
+            }
+        }
+    }
+
+    /** Append row srcRow of src, including its RecordId, as a new row. */
+    public void appendRow(TupleBatch src, int srcRow) {
+        int r = addRow();
+        copyRow(src, srcRow, r, 0);
+        rids[r] = src.rids[srcRow];
+    }
+
+    /** @return physical row r as a Tuple */
+    public Tuple getTuple(int r) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != null) {
+                t.setField(i, new IntField(ints[i][r]));
+            } else {
+                t.setField(i, new StringField(strings[i][r], Type.STRING_LEN));
+            }
+        }
+        t.setRecordId(rids[r]);
+        return t;
+    }
+
+    /**
+     * @return a batch of type outTd over the same rows, whose field i is
+     *         field fields[i] of this batch.  Column data is shared, not
+     *         copied.
+     */
+    public TupleBatch project(int[] fields, TupleDesc outTd) {
+        int[][] pi = new int[fields.length][];
+        String[][] ps = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            pi[i] = ints[fields[i]];
+            ps[i] = strings[fields[i]];
+        }
+        TupleBatch b = new TupleBatch(outTd, capacity, pi, ps, rids);
+        b.size = size;
+        b.sel = sel;
+        b.selSize = selSize;
+        return b;
+    }
+
+    /**
+     * Read the next batch from any OpIterator: natively if it is a
+     * BatchOpIterator, otherwise by collecting up to DEFAULT_SIZE tuples
+     * from next().  This is how batch operators consume children that only
+     * work a tuple at a time.
+     *
+     * @return a batch with at least one row, or null if it is exhausted
+     */
+    public static TupleBatch nextBatch(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        if (it instanceof BatchOpIterator) {
+            return ((BatchOpIterator) it).nextBatch();
+        }
+        if (!it.hasNext()) {
+            return null;
+        }
+        TupleBatch b = new TupleBatch(it.getTupleDesc());
+        while (!b.isFull() && it.hasNext()) {
+            b.add(it.next());
+        }
+        return b;
+    }
+
+    /**
+     * Adapts a batch iterator back to tuples: an OpIterator whose next()
+     * hands out the selected rows of the child's batches one by one.
+     */
+    public static OpIterator tuples(final BatchOpIterator child) {
+        return new OpIterator() {
+            private static final long serialVersionUID = 1L;
+            private TupleBatch batch = null;
+            private int pos = 0;
+
+            public void open() throws DbException, TransactionAbortedException {
+                child.open();
+                batch = null;
+            }
+
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                while (batch == null || pos == batch.numRows()) {
+                    batch = child.nextBatch();
+                    pos = 0;
+                    if (batch == null) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.getTuple(batch.row(pos++));
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                child.rewind();
+                batch = null;
+            }
+
+            public TupleDesc getTupleDesc() {
+                return child.getTupleDesc();
+            }
+
+            public void close() {
+                child.close();
+                batch = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.function.ToIntFunction;
+
+/**
+ * Inserts tuples into a file of TuplePages stored one after another, for
+ * HeapFile and the files laid out like it: on a page its FreeSpaceMap says
+ * has room, read through the buffer pool, or on a new page appended to the
+ * end of the file if none has.
+ */
+public class TupleInserter {
+
+    private final DbFile file;
+    private final File dataFile;
+    private final DbFileChannel channel;
+    private final FreeSpaceMap freeSpace;
+    private final ToIntFunction<Page> room;
+
+    /**
+     * @param file
+     *            the file tuples are inserted into
+     * @param dataFile
+     *            the file on disk file is stored in
+     * @param channel
+     *            the channel file writes its pages through
+     * @param freeSpace
+     *            the free-space map of file
+     * @param room
+     *            gives the room a page of the file has, in the units of the
+     *            entries of freeSpace
+     */
+    public TupleInserter(DbFile file, File dataFile, DbFileChannel channel,
+            FreeSpaceMap freeSpace, ToIntFunction<Page> room) {
+        this.file = file;
+        this.dataFile = dataFile;
+        this.channel = channel;
+        this.freeSpace = freeSpace;
+        this.room = room;
+    }
+
+    /**
+     * Inserts t on a page whose entry in the free-space map is at least
+     * need, or on a new page at the end of the file if none has room.
+     * Neither the map nor the file is locked while the buffer pool waits for
+     * a page.
+     *
+     * @return the page t was inserted on
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t, int need)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> mdPage = new ArrayList<>();
+        // only pages the map says have room for t are read
+        int i;
+        while ((i = freeSpace.pageWithRoom(need)) >= 0) {
+            PageId pid = new HeapPageId(file.getId(), i);
+            TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            if (!page.hasRoomFor(t)) {
+                // not for t, but maybe for a smaller tuple
+                freeSpace.update(i, Math.min(room.applyAsInt(page), need - 1));
+                // keep the lock if we filled the page ourselves, it has to be
+                // flushed when we commit
+                if (!tid.equals(page.isDirty())) {
+                    Database.getBufferPool().releasePage(tid, pid);
+                }
+                continue;
+            }
+            page.insertTuple(t);
+            page.markDirty(true, tid);
+            freeSpace.update(i, room.applyAsInt(page));
+            mdPage.add(page);
+            return mdPage;
+        }
+        // a transaction that waited for another to append a page uses that
+        // page instead of appending one more
+        int oldPageNum = pagesOnDisk();
+        synchronized (file) {
+            if (oldPageNum == pagesOnDisk()) {
+                channel.write(new byte[BufferPool.getPageSize()],
+                        (long) oldPageNum * BufferPool.getPageSize());
+            }
+        }
+        PageId pid = new HeapPageId(file.getId(), pagesOnDisk() - 1);
+        TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        page.markDirty(true, tid);
+        freeSpace.update(pid.getPageNumber(), room.applyAsInt(page));
+        mdPage.add(page);
+        return mdPage;
+    }
+
+    /** @return the number of pages in the file on disk */
+    private int pagesOnDisk() {
+        return (int) (dataFile.length() / BufferPool.getPageSize());
+    }
+}
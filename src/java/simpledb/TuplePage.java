@@ -0,0 +1,20 @@
+package simpledb;
+
+/**
+ * A page of a file of HeapPageIds that tuples are inserted into one at a
+ * time, through a {@link TupleInserter}: a HeapPage or a CopyOnWritePage.
+ */
+public interface TuplePage extends Page {
+
+    /** @return true if t fits on the page as it is now */
+    public boolean hasRoomFor(Tuple t);
+
+    /**
+     * Adds the specified tuple to the page;  the tuple should be updated to
+     * reflect that it is now stored on this page.
+     *
+     * @throws DbException if the page has no room for the tuple or
+     *         tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException;
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The wait-for graph of the lock manager.  There is an edge from T1 to T2
+ * while T1 is blocked on a page lock that T2 holds.  Edges are added and
+ * removed as requests block, are granted and locks are released, so the
+ * graph always describes the current waits and a cycle is a deadlock.
+ * <p>
+ * All methods are synchronized; they are only called on the slow path when
+ * a request has to block or somebody is waiting on a released lock.
+ */
+class WaitForGraph {
+
+    private final HashMap<TransactionId, HashSet<TransactionId>> waitsFor =
+            new HashMap<TransactionId, HashSet<TransactionId>>();
+
+    /** Record that waiter is blocked on a lock held by holders (waiter itself excluded). */
+    public synchronized void setWaitsFor(TransactionId waiter, Collection<TransactionId> holders) {
+        HashSet<TransactionId> out = new HashSet<TransactionId>(holders);
+        out.remove(waiter);
+        waitsFor.put(waiter, out);
+    }
+
+    /** Add an edge from waiter to holder, if waiter is blocked at all. */
+    public synchronized void addEdge(TransactionId waiter, TransactionId holder) {
+        HashSet<TransactionId> out = waitsFor.get(waiter);
+        if (out != null && !waiter.equals(holder)) {
+            out.add(holder);
+        }
+    }
+
+    /** Remove the edge from waiter to holder, e.g. when holder released the lock. */
+    public synchronized void removeEdge(TransactionId waiter, TransactionId holder) {
+        HashSet<TransactionId> out = waitsFor.get(waiter);
+        if (out != null) {
+            out.remove(holder);
+        }
+    }
+
+    /** waiter is not blocked any more. */
+    public synchronized void removeWaiter(TransactionId waiter) {
+        waitsFor.remove(waiter);
+    }
+
+    /**
+     * Look for a cycle through start.  Only cycles through the transaction
+     * that blocked last can be new, so this is all that needs to be checked
+     * on each block.
+     *
+     * @return the transactions on the cycle, starting with start, or null
+     *         if start is not deadlocked
+     */
+    public synchronized List<TransactionId> findCycle(TransactionId start) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        HashSet<TransactionId> visited = new HashSet<TransactionId>();
+        path.add(start);
+        if (dfs(start, start, path, visited)) {
+            return path;
+        }
+        return null;
+    }
+
+    private boolean dfs(TransactionId start, TransactionId t,
+                        ArrayList<TransactionId> path, HashSet<TransactionId> visited) {
+        HashSet<TransactionId> out = waitsFor.get(t);
+        if (out == null) {
+            return false;
+        }
+        for (TransactionId next : out) {
+            if (next.equals(start)) {
+                return true;
+            }
+            if (visited.add(next)) {
+                path.add(next);
+                if (dfs(start, next, path, visited)) {
+                    return true;
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+}
@@ -9,6 +9,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -176,6 +177,70 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() grouping on two fields, with several
+   * aggregates per group
+   */
+  @Test public void multipleGroupsAndAggregates() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new Object[] { 1, "a", 2,
+                       1, "a", 4,
+                       1, "b", 6,
+                       3, "a", 2,
+                       3, "a", 8,
+                       1, "b", 1 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 1, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.MAX });
+    assertEquals(5, op.getTupleDesc().numFields());
+    assertEquals(Type.STRING_TYPE, op.getTupleDesc().getFieldType(1));
+    OpIterator expected = TestUtil.createTupleList(5,
+        new Object[] { 1, "a", 6, 2, 4,
+                       1, "b", 7, 2, 6,
+                       3, "a", 10, 2, 8 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(3, count);
+    op.close();
+  }
+
+  /**
+   * Queries with several GROUP BY fields and aggregates are planned as a
+   * single Aggregate
+   */
+  @Test public void parser() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 200, 20, null, null, "c");
+    Database.getCatalog().addTable(f, "G");
+    TableStats.setTableStats("G", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT G.c1, MAX(G.c2), G.c0, COUNT(G.c2) FROM G GROUP BY G.c0, G.c1;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+    assertEquals(2, agg.groupFields().length);
+    assertEquals(2, agg.aggregateOps().length);
+    TupleDesc td = plan.getTupleDesc();
+    assertEquals("G.c1", td.getFieldName(0));
+    assertEquals("max(G.c2)", td.getFieldName(1));
+    assertEquals("G.c0", td.getFieldName(2));
+    plan.open();
+    int rows = 0;
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      assertTrue(((IntField) t.getField(1)).getValue() <= 20);
+      rows += ((IntField) t.getField(3)).getValue();
+    }
+    assertEquals(200, rows);
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -201,6 +201,57 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.cursor(): searches find what indexIterator
+	 * does, and ascending keys mostly don't descend from the root again
+	 */
+	@Test public void cursor() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 20000, 5000,
+				null, tuples, 0);
+		Random rand = new Random(5);
+		int[] keys = new int[300];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = rand.nextInt(5100);
+		Arrays.sort(keys);
+
+		BTreeCursor it = bigFile.cursor(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		for (int key : keys) {
+			it.seek(new IndexPredicate(Op.EQUALS, new IntField(key)));
+			int count = 0;
+			while (it.hasNext()) {
+				assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+				count++;
+			}
+			int expected = 0;
+			for (ArrayList<Integer> t : tuples)
+				if (t.get(0) == key)
+					expected++;
+			assertEquals(expected, count);
+		}
+		assertTrue(bigFile.numPages() > 40);
+		assertTrue(it.internalPagesRead() < keys.length / 2);
+
+		// and it climbs back for keys in any order, and for ranges
+		Op[] ops = { Op.GREATER_THAN, Op.LESS_THAN_OR_EQ, Op.EQUALS, Op.LESS_THAN };
+		for (int i = 0; i < 20; i++) {
+			IndexPredicate ipred = new IndexPredicate(ops[i % ops.length],
+					new IntField(keys[rand.nextInt(keys.length)]));
+			it.seek(ipred);
+			DbFileIterator search = bigFile.indexIterator(tid, ipred);
+			search.open();
+			while (search.hasNext()) {
+				assertTrue(it.hasNext());
+				assertEquals(search.next().getRecordId(), it.next().getRecordId());
+			}
+			assertFalse(it.hasNext());
+			search.close();
+		}
+		it.close();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
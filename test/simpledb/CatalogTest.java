@@ -1,7 +1,10 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +96,28 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for Catalog.loadSchema(), which picks the storage of every
+     * table
+     */
+    @Test public void loadSchema() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String h = "h" + Math.abs(r.nextInt()), s = "s" + Math.abs(r.nextInt());
+        FileWriter w = new FileWriter(schema);
+        w.write(h + " (a int pk, b string)\n");
+        w.write(s + " (a int, b string) slotted\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+
+        DbFile hf = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(h));
+        DbFile sf = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(s));
+        assertTrue(hf instanceof HeapFile);
+        assertTrue(sf instanceof SlottedFile);
+        assertEquals("a", Database.getCatalog().getPrimaryKey(hf.getId()));
+        assertEquals(Type.STRING_TYPE, sf.getTupleDesc().getFieldType(1));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedFileTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private File heap;
+    private CompressedFile file;
+
+    /** A table of small ints, as a heap file and as a compressed file */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        heap = SystemTestUtil.createRandomHeapFileUnopened(4, 3000, 100, null, tuples);
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        CompressedFileEncoder.fromHeapFile(heap, f, BufferPool.getPageSize(), Utility.getTypes(4));
+        file = new CompressedFile(f, Utility.getTupleDesc(4));
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * The file holds the tuples it was converted from, on a fraction of the
+     * pages of the heap file
+     */
+    @Test public void encoder() throws Exception {
+        SystemTestUtil.matchTuples(file, tuples);
+        assertTrue(file.numPages() * 3 <= heap.length() / BufferPool.getPageSize());
+    }
+
+    /** A filter over a scan of the file is tested on the encoded columns */
+    @Test public void filterPushedDown() throws Exception {
+        TransactionId tid = new TransactionId();
+        Filter f = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(10)),
+                new SeqScan(tid, file.getId(), ""));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) < 10)
+                expected.add(t);
+        SystemTestUtil.matchTuples(f, expected);
+        assertTrue(f.isPushedDown());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Deletes make room on the pages for new tuples, and aborted inserts
+     * are rolled back
+     */
+    @Test public void insertDelete() throws Exception {
+        int pages = file.numPages();
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, file.getId(), "");
+        scan.pushFilter(new Predicate(3, Predicate.Op.LESS_THAN, new IntField(50)));
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        scan.open();
+        while (scan.hasNext())
+            doomed.add(scan.next());
+        scan.close();
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(i % 50, 4));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(pages, file.numPages());
+
+        tid = new TransactionId();
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(tid, file.getId(), Utility.getHeapTuple(i, 4));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(3) >= 50)
+                expected.add(t);
+        for (int i = 0; i < 100; i++)
+            expected.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(i % 50, 4)));
+        SystemTestUtil.matchTuples(file, expected);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedFileTest.class);
+    }
+}
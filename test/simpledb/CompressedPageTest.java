@@ -0,0 +1,207 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "grp", "code", "noise" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, TD), SystemTestUtil.getUUID());
+    }
+
+    /** @return a tuple with a growing id, a sorted group, a code from a small set and noise */
+    private static Tuple tuple(int id, int noise) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new IntField(id / 100));
+        t.setField(2, new StringField("C" + (id % 5), Type.STRING_LEN));
+        t.setField(3, new IntField(noise));
+        return t;
+    }
+
+    private static Tuple[] tuples(int n) {
+        Random r = new Random(42);
+        Tuple[] slots = new Tuple[n];
+        for (int i = 0; i < n; i++)
+            slots[i] = tuple(i, r.nextInt());
+        return slots;
+    }
+
+    private static ArrayList<Integer> ids(Iterator<Tuple> it) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        while (it.hasNext())
+            ids.add(((IntField) it.next().getField(0)).getValue());
+        return ids;
+    }
+
+    /**
+     * Every column takes the encoding that suits its values, and the page
+     * decodes to the tuples it was encoded from
+     */
+    @Test public void encodings() throws Exception {
+        Tuple[] slots = tuples(300);
+        slots[7] = null;
+        CompressedPage page = new CompressedPage(pid,
+                CompressedPage.encode(TD, slots, BufferPool.getPageSize()));
+        assertEquals(CompressedPage.FOR, page.getEncoding(0));
+        assertEquals(CompressedPage.RLE, page.getEncoding(1));
+        assertEquals(CompressedPage.DICT, page.getEncoding(2));
+        assertEquals(CompressedPage.PLAIN, page.getEncoding(3));
+        assertEquals(300, page.getNumSlots());
+        assertEquals(299, page.getNumTuples());
+        assertFalse(page.isSlotUsed(7));
+
+        Iterator<Tuple> it = page.iterator();
+        for (int i = 0; i < 300; i++) {
+            if (i == 7)
+                continue;
+            Tuple t = it.next();
+            assertTrue(TestUtil.compareTuples(slots[i], t));
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+        assertFalse(it.hasNext());
+        assertTrue(TestUtil.compareTuples(slots[123], page.getTuple(123)));
+    }
+
+    /**
+     * Filters tested on the encoded columns pass the tuples the predicates
+     * pass
+     */
+    @Test public void filters() throws Exception {
+        Tuple[] slots = tuples(300);
+        slots[210] = null;
+        CompressedPage page = new CompressedPage(pid,
+                CompressedPage.encode(TD, slots, BufferPool.getPageSize()));
+        Predicate[] preds = {
+            new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(250)),
+            new Predicate(0, Predicate.Op.LESS_THAN, new IntField(-5)),
+            new Predicate(1, Predicate.Op.EQUALS, new IntField(2)),
+            new Predicate(2, Predicate.Op.EQUALS, new StringField("C3", Type.STRING_LEN)),
+            new Predicate(2, Predicate.Op.GREATER_THAN, new StringField("C1", Type.STRING_LEN)),
+            new Predicate(3, Predicate.Op.LESS_THAN, new IntField(0)),
+        };
+        for (Predicate p : preds) {
+            for (Predicate q : preds) {
+                ArrayList<Integer> expected = new ArrayList<Integer>();
+                for (Tuple t : slots) {
+                    if (t != null && p.filter(t) && q.filter(t))
+                        expected.add(((IntField) t.getField(0)).getValue());
+                }
+                ArrayList<Predicate> filters = new ArrayList<Predicate>();
+                filters.add(p);
+                filters.add(q);
+                assertEquals(p + " " + q, expected, ids(page.iterator(filters)));
+            }
+        }
+    }
+
+    /**
+     * Inserts fill a page with many more tuples than a HeapPage holds;
+     * deletes leave the other tuples in their slots, and the page keeps its
+     * before image
+     */
+    @Test public void insertDelete() throws Exception {
+        CompressedPage page = new CompressedPage(pid, CompressedPage.createEmptyPageData());
+        assertEquals(-1, page.getEncoding(0));
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, n % 7))) {
+            Tuple t = tuple(n, n % 7);
+            page.insertTuple(t);
+            assertEquals(new RecordId(pid, n), t.getRecordId());
+            n++;
+        }
+        int heapSlots = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+        assertTrue(n > 10 * heapSlots);
+        try {
+            page.insertTuple(tuple(n, 0));
+            fail("inserted into a full page");
+        } catch (DbException e) {
+            // the page is full
+        }
+
+        page.setBeforeImage();
+        Tuple doomed = page.getTuple(40);
+        page.deleteTuple(doomed);
+        assertEquals(n - 1, page.getNumTuples());
+        assertEquals(41, ((IntField) page.getTuple(41).getField(0)).getValue());
+        // the values of the page still fit
+        Tuple t = tuple(40, 3);
+        page.insertTuple(t);
+        assertEquals(new RecordId(pid, 40), t.getRecordId());
+
+        assertEquals(n, page.getBeforeImage().getNumTuples());
+        assertTrue(TestUtil.compareTuples(doomed, page.getBeforeImage().getTuple(40)));
+        CompressedPage copy = new CompressedPage(pid, page.getPageData());
+        assertEquals(n, copy.getNumTuples());
+        assertTrue(TestUtil.compareTuples(t, copy.getTuple(40)));
+
+        // trailing empty slots are dropped, and an empty page is all zeroes
+        CompressedPage small = new CompressedPage(pid,
+                CompressedPage.encode(TD, tuples(3), BufferPool.getPageSize()));
+        small.deleteTuple(small.getTuple(2));
+        assertEquals(2, small.getNumSlots());
+        small.deleteTuple(small.getTuple(0));
+        small.deleteTuple(small.getTuple(1));
+        assertEquals(0, small.getNumSlots());
+        assertEquals(BufferPool.getPageSize(), small.getFreeSpace());
+        assertEquals(Collections.<Integer>emptyList(), ids(small.iterator()));
+    }
+
+    /** @return tuple(id, 0) with the given code */
+    private static Tuple tuple(int id, String code) {
+        Tuple t = tuple(id, 0);
+        t.setField(2, new StringField(code, Type.STRING_LEN));
+        return t;
+    }
+
+    /**
+     * A tuple can be deleted from a full page, also when the string it
+     * leaves behind is much shorter than its neighbours
+     */
+    @Test public void deleteFromFullPage() throws Exception {
+        CompressedPage page = new CompressedPage(pid, CompressedPage.createEmptyPageData());
+        page.insertTuple(tuple(0, "a"));
+        int n = 1;
+        String pad = String.format("%090d", 0);
+        while (page.hasRoomFor(tuple(n, pad + n)))
+            page.insertTuple(tuple(n, pad + n++));
+        while (page.hasRoomFor(tuple(n, "s" + n)))
+            page.insertTuple(tuple(n, "s" + n++));
+        assertEquals(CompressedPage.PLAIN, page.getEncoding(2));
+
+        page.deleteTuple(page.getTuple(0));
+        assertEquals(n - 1, page.getNumTuples());
+        assertFalse(page.isSlotUsed(0));
+        assertEquals(pad + 1, ((StringField) page.getTuple(1).getField(2)).getValue());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageTest.class);
+    }
+}
@@ -7,6 +7,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +212,32 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * Deadlocks are detected when they form, and the victim is chosen by the
+   * configured policy: the older transaction holds fewer locks, so it is
+   * aborted even though the default policy would pick the younger one.
+   */
+  @Test public void testFewestLocksVictim() throws Exception {
+    TransactionId older = new TransactionId();
+    TransactionId younger = new TransactionId();
+    bp.setDeadlockVictimPolicy(DeadlockVictimPolicy.FEWEST_LOCKS);
+
+    bp.getPage(younger, p0, Permissions.READ_WRITE);
+    bp.getPage(younger, p2, Permissions.READ_WRITE);
+    bp.getPage(older, p1, Permissions.READ_WRITE);
+
+    LockGrabber lgYounger = startGrabber(younger, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lgOlder = startGrabber(older, p0, Permissions.READ_WRITE);
+
+    // the victim aborts right away, no timeout involved
+    lgOlder.join(WAIT_INTERVAL);
+    lgYounger.join(WAIT_INTERVAL);
+    assertTrue(lgOlder.getError() instanceof TransactionAbortedException);
+    assertTrue(lgYounger.acquired());
+    bp.transactionComplete(younger);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+    private static final int CAPACITY = 10;
+    private static final int TABLE = 1;
+
+    /**
+     * Drive a policy the way BufferPool does: hit if resident, otherwise
+     * evict when full and load.
+     */
+    private static void access(EvictionPolicy policy, HashSet<PageId> resident, PageId pid) {
+        if (resident.contains(pid)) {
+            policy.pageAccessed(pid);
+            return;
+        }
+        if (resident.size() >= CAPACITY) {
+            PageId victim = policy.evict(p -> true);
+            assertNotNull(victim);
+            assertTrue(resident.remove(victim));
+        }
+        resident.add(pid);
+        policy.pageLoaded(pid);
+    }
+
+    /**
+     * Pages that are used over and over must survive a long scan of pages
+     * that are each touched once.
+     */
+    private void checkScanResistance(EvictionPolicy policy) {
+        HashSet<PageId> resident = new HashSet<PageId>();
+        PageId[] hot = new PageId[CAPACITY / 2];
+        for (int i = 0; i < hot.length; i++) {
+            hot[i] = new HeapPageId(TABLE, i);
+        }
+        // warm up: the hot set is referenced repeatedly
+        for (int round = 0; round < 4; round++) {
+            for (PageId pid : hot) {
+                access(policy, resident, pid);
+            }
+        }
+        // a big scan interleaved with the hot working set
+        for (int i = 0; i < 20 * CAPACITY; i++) {
+            access(policy, resident, new HeapPageId(TABLE, 1000 + i));
+            if (i % 3 == 0) {
+                access(policy, resident, hot[(i / 3) % hot.length]);
+            }
+        }
+        for (PageId pid : hot) {
+            assertTrue(pid + " was evicted by the scan", resident.contains(pid));
+        }
+    }
+
+    @Test public void lruKScanResistance() {
+        checkScanResistance(new LRUKEvictionPolicy(2, CAPACITY));
+    }
+
+    @Test public void clockProScanResistance() {
+        checkScanResistance(new ClockProEvictionPolicy(CAPACITY));
+    }
+
+    /**
+     * With fewer than K references everywhere, LRU-K degenerates to LRU.
+     */
+    @Test public void lruKFallsBackToLru() {
+        EvictionPolicy policy = new LRUKEvictionPolicy(2, CAPACITY);
+        for (int i = 0; i < 3; i++) {
+            policy.pageLoaded(new HeapPageId(TABLE, i));
+        }
+        assertEquals(new HeapPageId(TABLE, 0), policy.evict(p -> true));
+        assertEquals(new HeapPageId(TABLE, 1), policy.evict(p -> true));
+    }
+
+    /**
+     * Pages the caller refuses to give up (dirty pages) are never chosen,
+     * and evict returns null if nothing is evictable.
+     */
+    private void checkRespectsFilter(EvictionPolicy policy) {
+        for (int i = 0; i < CAPACITY; i++) {
+            policy.pageLoaded(new HeapPageId(TABLE, i));
+        }
+        PageId only = new HeapPageId(TABLE, 7);
+        assertEquals(only, policy.evict(p -> p.equals(only)));
+        assertNull(policy.evict(p -> false));
+        // the evicted page is not resident any more
+        assertNull(policy.evict(p -> p.equals(only)));
+    }
+
+    @Test public void lruKRespectsFilter() {
+        checkRespectsFilter(new LRUKEvictionPolicy(2, CAPACITY));
+    }
+
+    @Test public void clockProRespectsFilter() {
+        checkRespectsFilter(new ClockProEvictionPolicy(CAPACITY));
+    }
+
+    @Test public void removedPagesAreNotEvicted() {
+        EvictionPolicy[] policies = { new LRUKEvictionPolicy(2, CAPACITY),
+                new ClockProEvictionPolicy(CAPACITY) };
+        for (EvictionPolicy policy : policies) {
+            PageId a = new HeapPageId(TABLE, 0);
+            PageId b = new HeapPageId(TABLE, 1);
+            policy.pageLoaded(a);
+            policy.pageLoaded(b);
+            policy.pageRemoved(a);
+            assertEquals(b, policy.evict(p -> true));
+            assertNull(policy.evict(p -> true));
+        }
+    }
+
+    /**
+     * A victim the buffer pool keeps after all is resident again, with no
+     * new reference: LRU-K picks it again, and CLOCK-Pro doesn't take it
+     * for a re-read page that deserves to be hot.
+     */
+    @Test public void reinstatedVictimKeepsItsHistory() {
+        EvictionPolicy lruK = new LRUKEvictionPolicy(2, CAPACITY);
+        PageId a = new HeapPageId(TABLE, 0);
+        lruK.pageLoaded(a);
+        lruK.pageLoaded(new HeapPageId(TABLE, 1));
+        assertEquals(a, lruK.evict(p -> true));
+        lruK.reinstate(a);
+        assertEquals(a, lruK.evict(p -> true));
+
+        ClockProEvictionPolicy clockPro = new ClockProEvictionPolicy(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            clockPro.pageLoaded(new HeapPageId(TABLE, i));
+        }
+        int coldTarget = clockPro.getColdTarget();
+        PageId victim = clockPro.evict(p -> true);
+        clockPro.reinstate(victim);
+        assertEquals(coldTarget, clockPro.getColdTarget());
+    }
+
+    /**
+     * BufferPool counts hits, misses and evictions.
+     */
+    @Test public void bufferPoolStatistics() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        assertEquals(6, hf.numPages());
+        BufferPool bp = Database.resetBufferPool(4);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 6; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, new HeapPageId(hf.getId(), 5), Permissions.READ_ONLY);
+        assertEquals(1, bp.getHitCount());
+        assertEquals(6, bp.getMissCount());
+        assertEquals(2, bp.getEvictionCount());
+        bp.transactionComplete(tid);
+
+        bp.resetStatistics();
+        assertEquals(0, bp.getHitCount());
+        assertEquals(0, bp.getMissCount());
+        assertEquals(0, bp.getEvictionCount());
+    }
+
+    /**
+     * A pinned page stays in the pool until it is unpinned.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        PageId first = new HeapPageId(hf.getId(), 0);
+        PageId second = new HeapPageId(hf.getId(), 1);
+        bp.pinPage(tid, first, Permissions.READ_ONLY);
+        bp.pinPage(tid, second, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(first));
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("all frames are pinned");
+        } catch (DbException expected) {
+        }
+
+        bp.unpinPage(second);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+        bp.resetStatistics();
+        bp.getPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(1, bp.getHitCount());
+        bp.unpinPage(first);
+        assertEquals(0, bp.getPinCount(first));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Concurrent misses on different pages never cache more pages than the
+     * pool has frames.
+     */
+    @Test public void concurrentMissesStayWithinCapacity() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 504 * 32, null, null);
+        // slow reads, so that the misses overlap
+        final HeapFile hf = new HeapFile(table.getFile(), table.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        final BufferPool bp = Database.resetBufferPool(4);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = first; i < 32; i += threads.length) {
+                        bp.prefetchPage(new HeapPageId(hf.getId(), i));
+                    }
+                }
+            };
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(bp.getPrefetchCount() - bp.getEvictionCount() <= 4);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,190 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import Zql.ZDelete;
+import Zql.ZInsert;
+import Zql.ZqlParser;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  @After public void tearDown() {
+    Exchange.resetParallelism();
+  }
+
+  /**
+   * Scans sharing morsels read every tuple of the table exactly once, also
+   * after a rewind
+   */
+  @Test public void parallelScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 1000, null, tuples);
+    TransactionId tid = new TransactionId();
+    PageMorsels morsels = new PageMorsels(f, 4);
+    assertTrue(morsels.numMorsels() > 4);
+    OpIterator[] scans = new OpIterator[4];
+    for (int i = 0; i < scans.length; i++)
+      scans[i] = new SeqScan(tid, "", morsels);
+    Exchange op = new Exchange(scans);
+    SystemTestUtil.matchTuples(op, tuples);
+
+    op.open();
+    op.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(20000, count);
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Closing before the pipelines are done stops them
+   */
+  @Test public void closeEarly() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, null);
+    TransactionId tid = new TransactionId();
+    PageMorsels morsels = new PageMorsels(f, 1);
+    OpIterator[] scans = new OpIterator[3];
+    for (int i = 0; i < scans.length; i++)
+      scans[i] = new SeqScan(tid, "", morsels);
+    Limit op = new Limit(10, new Exchange(scans));
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(10, count);
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Single table queries on big enough tables are planned as parallel
+   * pipelines, aggregates computed in parts and combined, and give the
+   * answer of the serial plan
+   */
+  @Test public void parser() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 20, null, null, "c");
+    Database.getCatalog().addTable(f, "P");
+    TableStats.setTableStats("P", new TableStats(f.getId(), 1));
+    String[] queries = {
+        "SELECT P.c0, COUNT(P.c1), MAX(P.c2) FROM P WHERE P.c1 > 3 GROUP BY P.c0;",
+        "SELECT AVG(P.c2) FROM P WHERE P.c0 < 10;",
+        "SELECT P.c1, P.c2 FROM P WHERE P.c0 = 7;" };
+    TransactionId tid = new TransactionId();
+    for (String query : queries) {
+      Exchange.setParallelism(1);
+      ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+      OpIterator plan = new Parser().generateLogicalPlan(tid, query)
+          .physicalPlan(tid, TableStats.getStatsMap(), false);
+      plan.open();
+      while (plan.hasNext())
+        expected.add(SystemTestUtil.tupleToList(plan.next()));
+      plan.close();
+
+      Exchange.setParallelism(4);
+      plan = new Parser().generateLogicalPlan(tid, query)
+          .physicalPlan(tid, TableStats.getStatsMap(), false);
+      assertTrue(hasExchange(plan));
+      assertTrue(expected.size() > 0);
+      SystemTestUtil.matchTuples(plan, expected);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Plans are serial by default, and plans that feed a DELETE or INSERT
+   * stay serial whatever the parallelism
+   */
+  @Test public void onlySelectsRunInParallel() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 20000, 20, null, null, "c");
+    Database.getCatalog().addTable(f, "P");
+    Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(3, 0, 20, null, null, "c"), "Q");
+    TableStats.setTableStats("P", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+    String select = "SELECT * FROM P WHERE P.c0 < 10;";
+    assertEquals(1, Exchange.getParallelism());
+    assertFalse(hasExchange(new Parser().generateLogicalPlan(tid, select)
+        .physicalPlan(tid, TableStats.getStatsMap(), false)));
+
+    Exchange.setParallelism(4);
+    assertTrue(hasExchange(new Parser().generateLogicalPlan(tid, select)
+        .physicalPlan(tid, TableStats.getStatsMap(), false)));
+    ZDelete delete = (ZDelete) new ZqlParser(new ByteArrayInputStream(
+        "DELETE FROM P WHERE P.c0 < 10;".getBytes())).readStatement();
+    assertFalse(hasExchange(new Parser().handleDeleteStatement(delete, tid).getPhysicalPlan()));
+    ZInsert insert = (ZInsert) new ZqlParser(new ByteArrayInputStream(
+        "INSERT INTO Q SELECT * FROM P WHERE P.c0 < 10;".getBytes())).readStatement();
+    assertFalse(hasExchange(new Parser().handleInsertStatement(insert, tid).getPhysicalPlan()));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Workers whose morsels have no tuples passing the filter add nothing to
+   * an aggregate without group by fields
+   */
+  @Test public void selectiveParallelAggregate() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < 20000; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(i);
+      t.add(-i);
+      tuples.add(t);
+    }
+    File temp = File.createTempFile("table", ".dat");
+    temp.deleteOnExit();
+    HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+    HeapFile f = Utility.openHeapFile(2, temp);
+    TransactionId tid = new TransactionId();
+    Aggregator.Op[] aops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.COUNT };
+    // only the last page passes the first filter, and no page the second
+    for (int bound : new int[] { 19990, 20000 }) {
+      PageMorsels morsels = new PageMorsels(f, 1);
+      OpIterator[] pipelines = new OpIterator[4];
+      for (int i = 0; i < pipelines.length; i++)
+        pipelines[i] = Aggregate.partial(new Filter(
+            new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(bound)),
+            new SeqScan(tid, "", morsels)), new int[] { 0, 1, 0 }, new int[0], aops);
+      Aggregate merged = Aggregate.merging(new Exchange(pipelines), 0, aops);
+      ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+      int n = Math.max(0, 19999 - bound);
+      expected.add(new ArrayList<Integer>(n == 0 ? Arrays.asList(0, 0, 0)
+          : Arrays.asList(bound + 1, -(bound + 1), n)));
+      SystemTestUtil.matchTuples(merged, expected);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static boolean hasExchange(OpIterator it) {
+    if (it instanceof Exchange)
+      return true;
+    if (it instanceof Operator)
+      for (OpIterator child : ((Operator) it).getChildren())
+        if (hasExchange(child))
+          return true;
+    return false;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -3,12 +3,16 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class FilterTest extends SimpleDbTestBase {
 
@@ -120,6 +124,31 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Filters over a scan of a heap file, also stacked, are applied by the
+   * scan on the bytes of the pages
+   */
+  @Test public void pushedDown() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, tuples);
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    for (ArrayList<Integer> t : tuples) {
+      if (t.get(0) >= 200 && t.get(1) != 7)
+        expected.add(t);
+    }
+    TransactionId tid = new TransactionId();
+    SeqScan ss = new SeqScan(tid, f.getId(), "");
+    Filter inner = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(200)), ss);
+    Filter outer = new Filter(new Predicate(1, Predicate.Op.NOT_EQUALS,
+        new IntField(7)), inner);
+    SystemTestUtil.matchTuples(outer, expected);
+    assertTrue(inner.isPushedDown());
+    assertTrue(outer.isPushedDown());
+    assertEquals(2, ss.getFilters().size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private File file;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("groupcommit", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Concurrent committers share fsyncs, and every commit returns only
+     * after its record is durable.
+     */
+    @Test public void concurrentCommitsShareFsyncs() throws Exception {
+        final int threads = 16;
+        final int commitsPerThread = 10;
+        log.setGroupCommit(threads, 2000);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < commitsPerThread; j++) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                        assertTrue(log.getFlushedLsn() > 0);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            t.start();
+            workers.add(t);
+        }
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * commitsPerThread, log.getCommitCount());
+        assertTrue("no commits were grouped: " + log.getFsyncCount() + " fsyncs",
+                log.getFsyncCount() < log.getCommitCount());
+        assertTrue(log.getCommitsPerFsync() > 1.0);
+        assertEquals(log.getCurrentLsn(), log.getFlushedLsn());
+    }
+
+    /**
+     * A lone committer is not held back by the batch size.
+     */
+    @Test public void singleCommitIsDurable() throws Exception {
+        log.setGroupCommit(64, 0);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        assertEquals(1, log.getCommitCount());
+        assertTrue(log.getFsyncCount() >= 1);
+        assertEquals(log.getCurrentLsn(), log.getFlushedLsn());
+    }
+
+    /**
+     * LSNs keep growing when a checkpoint truncates the log.
+     */
+    @Test public void lsnSurvivesTruncation() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        long before = log.getCurrentLsn();
+        log.logCheckpoint();
+        assertTrue(log.getCurrentLsn() >= before);
+        assertEquals(log.getCurrentLsn(), log.getFlushedLsn());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -77,6 +77,55 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Pages past the end of the file can't be read, and closing the file
+     * does not stop it from being read again.
+     */
+    @Test
+    public void readPageAfterClose() throws Exception {
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), 1));
+            fail("page 1 does not exist");
+        } catch (IllegalArgumentException expected) {
+        }
+        hf.close();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(484, page.getNumEmptySlots());
+    }
+
+    /**
+     * Concurrent readers share one file handle without interfering.
+     */
+    @Test
+    public void concurrentReadPage() throws Exception {
+        final HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        final byte[][] expected = new byte[big.numPages()][];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = big.readPage(new HeapPageId(big.getId(), i)).getPageData();
+        }
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            final int offset = r;
+            readers[r] = new Thread(() -> {
+                try {
+                    for (int n = 0; n < 50; n++) {
+                        int i = (n + offset) % expected.length;
+                        Page p = big.readPage(new HeapPageId(big.getId(), i));
+                        assertArrayEquals(expected[i], p.getPageData());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            readers[r].start();
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
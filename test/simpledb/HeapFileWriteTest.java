@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.File;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -7,6 +9,8 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
+import simpledb.systemtest.SystemTestUtil;
+
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
 
@@ -43,6 +47,81 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /** Counts the pages read from the file. */
+    static class CountingHeapFile extends HeapFile {
+        int reads = 0;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+            Database.getCatalog().addTable(this, SystemTestUtil.getUUID());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Inserts into a file of full pages read only the page with room that
+     * the free-space map points them to, also once the file is reopened,
+     * and deletes make room that later inserts find.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        File file = full.getFile();
+        file.deleteOnExit();
+        new File(file.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+
+        // the first insert builds the map from the pages
+        CountingHeapFile f = new CountingHeapFile(file, full.getTupleDesc());
+        f.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(21, f.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        f.reads = 0;
+        tid = new TransactionId();
+        assertEquals(20, f.insertTuple(tid, Utility.getHeapTuple(2, 2)).get(0)
+                .getId().getPageNumber());
+        assertEquals(1, f.reads);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // reopened, the map is read back rather than rebuilt
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        f = new CountingHeapFile(file, full.getTupleDesc());
+        assertEquals(255, f.getFreeSpaceMap().emptySlots(20)); // 502, capped
+        assertEquals(0, f.reads);
+        tid = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(f.getId(), 3), Permissions.READ_WRITE);
+        f.deleteTuple(tid, page.iterator().next());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(3, f.insertTuple(tid, Utility.getHeapTuple(3, 2)).get(0)
+                .getId().getPageNumber());
+        assertEquals(21, f.numPages());
+    }
+
+    /**
+     * A delete made before the free-space map is loaded is not lost when
+     * the map is rebuilt from the pages on disk.
+     */
+    @Test public void freeSpaceMapDeleteBeforeLoad() throws Exception {
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        full.getFile().deleteOnExit();
+        new File(full.getFile().getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(full.getId(), 5), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, page.iterator().next());
+        assertEquals(5, full.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0)
+                .getId().getPageNumber());
+        assertEquals(20, full.numPages());
+    }
+
     /**
      * JUnit suite target
      */
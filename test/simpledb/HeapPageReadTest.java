@@ -120,6 +120,33 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getTuple() and HeapPage.iterator(List), which
+     * decode only the tuples asked for
+     */
+    @Test public void lazyDecoding() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Tuple t = page.getTuple(3);
+        assertEquals(new RecordId(pid, 3), t.getRecordId());
+        assertEquals(EXAMPLE_VALUES[3][0], ((IntField) t.getField(0)).getValue());
+        assertEquals(EXAMPLE_VALUES[3][1], ((IntField) t.getField(1)).getValue());
+        assertEquals(null, page.getTuple(25));
+
+        List<Predicate> filters = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+                new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(43575)));
+        Iterator<Tuple> it = page.iterator(filters);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            if (EXAMPLE_VALUES[row][0] <= 20000 || EXAMPLE_VALUES[row][1] > 43575)
+                continue;
+            assertTrue(it.hasNext());
+            t = it.next();
+            assertEquals(row, t.getRecordId().getTupleNumber());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) t.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
     /**
      * JUnit suite target
      */
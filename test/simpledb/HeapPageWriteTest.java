@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,39 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The bytes a page is made from are never written to: the first change
+     * goes to a copy, and the bytes become the before image, until
+     * setBeforeImage() makes the current contents the before image
+     */
+    @Test public void beforeImageCopyOnWrite() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        assertTrue(Arrays.equals(data, page.getBeforeImage().getPageData()));
+        Iterator<Tuple> it = page.iterator();
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        page.insertTuple(t);
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, data));
+        assertTrue(Arrays.equals(data, page.getBeforeImage().getPageData()));
+        assertEquals(484, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
+
+        // iterators see the page as it was when they were made
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(20, count);
+
+        page.setBeforeImage();
+        assertTrue(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+        page.deleteTuple(t);
+        assertEquals(483, page.getBeforeImage().getNumEmptySlots());
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -208,6 +208,42 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Many groups, string keys and sums past the int range are kept exactly
+   */
+  @Test public void manyGroups() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator min = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MIN);
+    TupleDesc sd = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    for (int i = 0; i < 10000; i++) {
+      Tuple t = new Tuple(sd);
+      t.setField(0, new StringField("g" + (i % 1000), Type.STRING_LEN));
+      t.setField(1, new IntField(Integer.MAX_VALUE - (i / 1000)));
+      agg.mergeTupleIntoGroup(t);
+      min.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] { i % 1000, i }));
+    }
+    OpIterator it = agg.iterator();
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(Integer.MAX_VALUE - 5, ((IntField) t.getField(1)).getValue());
+      count++;
+    }
+    assertEquals(1000, count);
+    it.close();
+
+    it = min.iterator();
+    it.open();
+    count = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+      count++;
+    }
+    assertEquals(1000, count);
+  }
+
   /**
    * JUnit suite target
    */
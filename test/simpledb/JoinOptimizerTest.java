@@ -7,6 +7,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Vector;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -54,12 +55,19 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
     int tableId2;
     TableStats stats2;
 
+    @After
+    public void tearDown() {
+        Exchange.resetParallelism();
+    }
+
     /**
      * Set up the test; create some initial tables to work with
      */
     @Before
     public void setUp() throws Exception {
         super.setUp();
+        // serial plans, whatever the number of processors
+        Exchange.setParallelism(1);
         // Create some sample tables to work with
         this.tuples1 = new ArrayList<ArrayList<Integer>>();
         this.f1 = SystemTestUtil.createRandomHeapFile(10, 1000, 20, null,
@@ -628,4 +636,136 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * chooseJoinMethod picks hash joins for equality joins, even ones that
+     * spill, and nested loops for everything else
+     */
+    @Test
+    public void chooseJoinMethodTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"),
+                new Vector<LogicalJoinNode>());
+        LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.LESS_THAN);
+        double cost1 = stats1.estimateScanCost();
+        double cost2 = stats2.estimateScanCost();
+
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH,
+                jo.chooseJoinMethod(eq, 1000, 10000, cost1, cost2, true));
+        Assert.assertEquals(JoinOptimizer.JoinMethod.NESTED_LOOPS,
+                jo.chooseJoinMethod(lt, 1000, 10000, cost1, cost2, true));
+        // partitioning reads each side about three times, never once per
+        // memory load of the outer side
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH,
+                jo.chooseJoinMethod(eq, 100000, 100000, cost1, 1000000, true));
+        double inMemory = jo.estimateJoinCost(JoinOptimizer.JoinMethod.HASH,
+                eq, 1000, 100000, cost1, 1000000, true);
+        Assert.assertTrue(inMemory < 2 * (cost1 + 1000000));
+        double sortedInMemory = jo.estimateJoinCost(JoinOptimizer.JoinMethod.SORT_MERGE,
+                eq, 1000, 100000, cost1, 1000000, true);
+        try {
+            BufferPool.setOperatorMemory(4096);
+            double spilling = jo.estimateJoinCost(JoinOptimizer.JoinMethod.HASH,
+                    eq, 1000, 100000, cost1, 1000000, true);
+            Assert.assertTrue(spilling > inMemory);
+            Assert.assertTrue(spilling < 4 * (cost1 + 1000000));
+            // sorting in runs writes and reads both sides again too
+            double sortedInRuns = jo.estimateJoinCost(JoinOptimizer.JoinMethod.SORT_MERGE,
+                    eq, 1000, 100000, cost1, 1000000, true);
+            Assert.assertTrue(sortedInRuns > sortedInMemory + 2 * (cost1 + 1000000));
+            Assert.assertEquals(JoinOptimizer.JoinMethod.HASH,
+                    jo.chooseJoinMethod(eq, 100000, 100000, cost1, 1000000, true));
+        } finally {
+            BufferPool.resetOperatorMemory();
+        }
+        // heap files have no index to probe
+        Assert.assertEquals(Double.POSITIVE_INFINITY, jo.estimateJoinCost(
+                JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS, eq, 1000, 10000,
+                cost1, cost2, true), 0);
+        // the estimate for a join is that of the method chosen for it
+        Assert.assertEquals(jo.estimateJoinCost(JoinOptimizer.JoinMethod.HASH,
+                eq, 1000, 10000, cost1, cost2, true),
+                jo.estimateJoinCost(eq, 1000, 10000, cost1, cost2), 0);
+
+        // workers pay off on big joins whose outer side fits in memory
+        Exchange.setParallelism(8);
+        Assert.assertEquals(JoinOptimizer.JoinMethod.PARALLEL_HASH,
+                jo.chooseJoinMethod(eq, 1000, 1000000, cost1, cost2, true));
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH,
+                jo.chooseJoinMethod(eq, 10, 100, cost1, cost2, true));
+        Assert.assertEquals(Double.POSITIVE_INFINITY, jo.estimateJoinCost(
+                JoinOptimizer.JoinMethod.PARALLEL_HASH, eq, 100000, 1000000,
+                cost1, cost2, true), 0);
+        Assert.assertEquals(Double.POSITIVE_INFINITY, jo.estimateJoinCost(
+                JoinOptimizer.JoinMethod.PARALLEL_HASH, lt, 1000, 1000000,
+                cost1, cost2, true), 0);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq.withMethod(
+                JoinOptimizer.JoinMethod.PARALLEL_HASH),
+                new SeqScan(tid, tableId1, "t1"), new SeqScan(tid, tableId2, "t2"))
+                instanceof ParallelHashJoin);
+    }
+
+    /**
+     * An index on the inner join field is probed when there are few outer
+     * tuples, and instantiateJoin builds the operator for the chosen method
+     */
+    @Test
+    public void indexJoinTest() throws Exception {
+        final int ROWS = 20000;
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        // the same file, with column names the parser can resolve
+        BTreeFile index = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(index, "TI", "c0");
+        TableStats statsI = new TableStats(index.getId(), 1000);
+        TableStats.setTableStats("TI", statsI);
+
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, TI t2 WHERE t1.c1 = t2.c0;"),
+                new Vector<LogicalJoinNode>());
+        LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "c1", "c0",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode notKey = new LogicalJoinNode("t1", "t2", "c1", "c1",
+                Predicate.Op.EQUALS);
+        double costI = statsI.estimateScanCost();
+
+        Assert.assertEquals(JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS,
+                jo.chooseJoinMethod(eq, 5, ROWS, 1000, costI, true));
+        // an intermediate result can't be probed, nor can a non-key field
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH,
+                jo.chooseJoinMethod(eq, 5, ROWS, 1000, costI, false));
+        Assert.assertEquals(JoinOptimizer.JoinMethod.HASH,
+                jo.chooseJoinMethod(notKey, 5, ROWS, 1000, costI, true));
+        // with many outer tuples a scan is cheaper than probing
+        Assert.assertTrue(JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS
+                != jo.chooseJoinMethod(eq, ROWS, ROWS, 1000, costI, true));
+
+        SeqScan outer = new SeqScan(tid, tableId1, "t1");
+        SeqScan inner = new SeqScan(tid, index.getId(), "t2");
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq.withMethod(
+                JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS), outer, inner)
+                instanceof IndexNestedLoopJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq.withMethod(
+                JoinOptimizer.JoinMethod.SORT_MERGE), outer, inner)
+                instanceof SortMergeJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(eq, outer, inner)
+                instanceof HashEquiJoin);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(new LogicalJoinNode(
+                "t1", "t2", "c1", "c0", Predicate.Op.LESS_THAN), outer, inner)
+                instanceof Join);
+        // a heap file on the inner side falls back to the default
+        LogicalJoinNode swapped = new LogicalJoinNode("t2", "t1", "c0", "c1",
+                Predicate.Op.EQUALS);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(swapped.withMethod(
+                JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS), inner, outer)
+                instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
 }
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest extends SimpleDbTestBase {
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("logbuffer", ".log");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    @After public void tearDown() throws Exception {
+        raf.close();
+        file.delete();
+    }
+
+    private static byte[] record(int n, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (n + i);
+        }
+        return b;
+    }
+
+    /**
+     * Small records are written in big chunks, and come back intact even
+     * when they wrap around the end of the ring.
+     */
+    @Test public void appendWrapsAndDrains() throws Exception {
+        LogBuffer buf = new LogBuffer(100, raf.getChannel(), 0);
+        byte[] expected = new byte[0];
+        for (int n = 0; n < 30; n++) {
+            byte[] r = record(n, 7 + n % 5);
+            buf.append(r, 0, r.length);
+            byte[] e = new byte[expected.length + r.length];
+            System.arraycopy(expected, 0, e, 0, expected.length);
+            System.arraycopy(r, 0, e, expected.length, r.length);
+            expected = e;
+        }
+        assertEquals(expected.length, buf.getEndOffset());
+        assertTrue(buf.getWrittenOffset() < buf.getEndOffset());
+        buf.drain();
+        assertEquals(buf.getEndOffset(), buf.getWrittenOffset());
+        // 30 records, but only a handful of writes
+        assertTrue(buf.getChannelWrites() < 10);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * A record bigger than the ring goes straight to the file, after
+     * whatever was buffered before it.
+     */
+    @Test public void oversizedRecord() throws Exception {
+        LogBuffer buf = new LogBuffer(16, raf.getChannel(), 0);
+        byte[] small = record(1, 5);
+        byte[] big = record(2, 40);
+        buf.append(small, 0, small.length);
+        buf.append(big, 0, big.length);
+        assertEquals(45, buf.getWrittenOffset());
+        byte[] onDisk = Files.readAllBytes(file.toPath());
+        assertEquals(45, onDisk.length);
+        assertEquals(small[4], onDisk[4]);
+        assertEquals(big[39], onDisk[44]);
+    }
+
+    /**
+     * LogFile appends go through the buffer: many records, few writes,
+     * and a force makes all of them durable.
+     */
+    @Test public void logFileBatchesWrites() throws Exception {
+        File f = File.createTempFile("logbuffer", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        for (int i = 0; i < 100; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+        }
+        log.force();
+        assertTrue(log.getLogFileWrites() < 10);
+        assertEquals(log.getCurrentLsn(), f.length());
+        assertEquals(log.getCurrentLsn(), log.getFlushedLsn());
+        f.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  @After public void tearDown() {
+    BufferPool.resetOperatorMemory();
+  }
+
+  /**
+   * Unit test for OrderBy on a single field, in both directions
+   */
+  @Test public void singleField() throws Exception {
+    OpIterator child = TestUtil.createTupleList(2,
+        new int[] { 3, 1, 1, 2, 2, 3, 1, 4 });
+    OrderBy op = new OrderBy(0, true, child);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 2, 1, 4, 2, 3, 3, 1 }), op);
+    op.close();
+
+    op = new OrderBy(1, false, TestUtil.createTupleList(2,
+        new int[] { 3, 1, 1, 2, 2, 3, 1, 4 }));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 4, 2, 3, 1, 2, 3, 1 }), op);
+    op.close();
+  }
+
+  /**
+   * Later fields break ties, each in its own direction
+   */
+  @Test public void multipleFields() throws Exception {
+    OpIterator child = TestUtil.createTupleList(2,
+        new int[] { 2, 5, 1, 7, 2, -3, 1, 8, 2, 9 });
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, child);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 8, 1, 7, 2, 9, 2, 5, 2, -3 }), op);
+    op.rewind();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2,
+        new int[] { 1, 8, 1, 7, 2, 9, 2, 5, 2, -3 }), op);
+    op.close();
+  }
+
+  /**
+   * Strings that agree on a prefix are compared in full
+   */
+  @Test public void strings() throws Exception {
+    Object[] data = new Object[] { 1, "banana", 2, "ban", 3, "bandana", 4, "apple", 5, "bandanas" };
+    OrderBy op = new OrderBy(1, true, TestUtil.createTupleList(2, data));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new Object[] {
+        4, "apple", 2, "ban", 1, "banana", 3, "bandana", 5, "bandanas" }), op);
+    op.close();
+
+    op = new OrderBy(1, false, TestUtil.createTupleList(2, data));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(2, new Object[] {
+        5, "bandanas", 3, "bandana", 1, "banana", 2, "ban", 4, "apple" }), op);
+    op.close();
+  }
+
+  /**
+   * A child bigger than the memory budget is sorted in runs on disk, which
+   * take more than one pass to merge
+   */
+  @Test public void externalSort() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, tuples);
+    Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+      public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+        int c = b.get(1).compareTo(a.get(1));
+        return c != 0 ? c : a.get(2).compareTo(b.get(2));
+      }
+    });
+    // 1024 tuples per run and two runs merged at a time
+    BufferPool.setOperatorMemory(3 * BufferPool.getPageSize());
+    TransactionId tid = new TransactionId();
+    OrderBy op = new OrderBy(new int[] { 1, 2 }, new boolean[] { false, true },
+        new SeqScan(tid, f.getId(), ""));
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      for (ArrayList<Integer> expected : tuples) {
+        assertTrue(op.hasNext());
+        ArrayList<Integer> actual = SystemTestUtil.tupleToList(op.next());
+        assertEquals(expected.subList(1, 3), actual.subList(1, 3));
+      }
+      assertFalse(op.hasNext());
+      op.rewind();
+    }
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = Utility.getTupleDesc(4, "c");
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile heap;
+    private PaxFile pax;
+
+    /** A table as a heap file, H, and as a PAX file, P */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File heap = SystemTestUtil.createRandomHeapFileUnopened(4, 2000, 100, null, tuples);
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        PaxFileEncoder.fromHeapFile(heap, f, BufferPool.getPageSize(), Utility.getTypes(4));
+        assertEquals(heap.length(), f.length());
+
+        this.heap = new HeapFile(heap, TD);
+        Database.getCatalog().addTable(this.heap, "H");
+        pax = new PaxFile(f, TD);
+        Database.getCatalog().addTable(pax, "P");
+    }
+
+    /** @return the results of a query, sorted */
+    private static ArrayList<ArrayList<Integer>> run(OpIterator plan) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        plan.open();
+        while (plan.hasNext())
+            rows.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        Collections.sort(rows, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                return a.toString().compareTo(b.toString());
+            }
+        });
+        return rows;
+    }
+
+    private static OpIterator plan(TransactionId tid, String query) throws Exception {
+        return new Parser().generateLogicalPlan(tid, query)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    /** @return the scan of the table at the bottom of plan, or null */
+    private static OpIterator scanOf(OpIterator plan, String alias) {
+        if (plan instanceof ColumnScan)
+            return alias.equals(((ColumnScan) plan).getAlias()) ? plan : null;
+        if (plan instanceof SeqScan)
+            return alias.equals(((SeqScan) plan).getAlias()) ? plan : null;
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                OpIterator s = scanOf(child, alias);
+                if (s != null)
+                    return s;
+            }
+        }
+        return null;
+    }
+
+    /** The file holds the tuples it was converted from */
+    @Test public void encoder() throws Exception {
+        SystemTestUtil.matchTuples(pax, tuples);
+    }
+
+    /**
+     * The planner reads a PAX table for the fields the query refers to
+     * only, and the answers are those of the heap table
+     */
+    @Test public void plannerPushesProjection() throws Exception {
+        TableStats.setTableStats("H", new TableStats(heap.getId(), 1));
+        TableStats.setTableStats("P", new TableStats(pax.getId(), 1));
+        TransactionId tid = new TransactionId();
+        OpIterator p = plan(tid, "SELECT P.c2, SUM(P.c0) FROM P WHERE P.c1 < 50 GROUP BY P.c2;");
+        OpIterator scan = scanOf(p, "P");
+        assertTrue(scan instanceof ColumnScan);
+        assertArrayEquals(new int[] { 0, 1, 2 }, ((ColumnScan) scan).getColumns());
+        assertEquals(run(plan(tid, "SELECT H.c2, SUM(H.c0) FROM H WHERE H.c1 < 50 GROUP BY H.c2;")),
+                run(p));
+        assertEquals(1, ((ColumnScan) scan).getFilters().size());
+
+        p = plan(tid, "SELECT a.c3, b.c0 FROM P a, H b WHERE a.c0 = b.c1 AND a.c1 < 10;");
+        assertArrayEquals(new int[] { 0, 1, 3 }, ((ColumnScan) scanOf(p, "a")).getColumns());
+        assertEquals(run(plan(tid, "SELECT a.c3, b.c0 FROM H a, H b WHERE a.c0 = b.c1 AND a.c1 < 10;")),
+                run(p));
+
+        // a query on every field scans them all
+        p = plan(tid, "SELECT * FROM P WHERE P.c3 > 90;");
+        assertTrue(scanOf(p, "P") instanceof SeqScan);
+        assertEquals(run(plan(tid, "SELECT * FROM H WHERE H.c3 > 90;")), run(p));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts fill the slots deletes leave, and aborted inserts are rolled
+     * back
+     */
+    @Test public void insertDelete() throws Exception {
+        int pages = pax.numPages();
+        TransactionId tid = new TransactionId();
+        ColumnScan scan = new ColumnScan(tid, pax.getId(), "P", new int[] { 3 });
+        scan.pushFilter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(50)));
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        scan.open();
+        while (scan.hasNext())
+            doomed.add(scan.next());
+        scan.close();
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        for (int i = 0; i < doomed.size(); i++)
+            Database.getBufferPool().insertTuple(tid, pax.getId(), Utility.getHeapTuple(i, 4));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(pages, pax.numPages());
+
+        tid = new TransactionId();
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(tid, pax.getId(), Utility.getHeapTuple(i, 4));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(3) >= 50)
+                expected.add(t);
+        for (int i = 0; i < doomed.size(); i++)
+            expected.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(i, 4)));
+        SystemTestUtil.matchTuples(pax, expected);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxFileTest.class);
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PaxPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "code", "qty" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField("C" + (id % 7), Type.STRING_LEN));
+        t.setField(2, new IntField(id * 10));
+        return t;
+    }
+
+    /** @return a heap page with tuples 0 to n-1, less the multiples of 5 */
+    private HeapPage heapPage(int n) throws Exception {
+        HeapPage hp = new HeapPage(pid, HeapPage.createEmptyPageData());
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = tuple(i);
+            hp.insertTuple(t);
+            if (i % 5 == 0)
+                doomed.add(t);
+        }
+        for (Tuple t : doomed)
+            hp.deleteTuple(t);
+        return hp;
+    }
+
+    /**
+     * A heap page rearranged into minipages holds the same tuples in the
+     * same slots
+     */
+    @Test public void fromHeapPageData() throws Exception {
+        HeapPage hp = heapPage(20);
+        PaxPage page = new PaxPage(pid, PaxPage.fromHeapPageData(hp.getPageData(), TD));
+        assertEquals(hp.getNumEmptySlots(), page.getNumEmptySlots());
+        Iterator<Tuple> expected = hp.iterator();
+        Iterator<Tuple> actual = page.iterator();
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            Tuple e = expected.next();
+            Tuple a = actual.next();
+            assertTrue(TestUtil.compareTuples(e, a));
+            assertEquals(e.getRecordId(), a.getRecordId());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    /**
+     * A page can be read for some of its fields, in any order, and filtered
+     * on fields it doesn't return
+     */
+    @Test public void columns() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.fromHeapPageData(heapPage(20).getPageData(), TD));
+        TupleDesc outTd = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        filters.add(new Predicate(1, Predicate.Op.EQUALS, new StringField("C3", Type.STRING_LEN)));
+        Iterator<Tuple> it = page.iterator(new int[] { 2, 0 }, outTd, filters);
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(1)).getValue();
+            assertEquals(id * 10, ((IntField) t.getField(0)).getValue());
+            assertEquals(new RecordId(pid, id), t.getRecordId());
+            ids.add(id);
+        }
+        // 3, 10 and 17 are C3, but 10 was deleted
+        assertEquals(2, ids.size());
+        assertEquals(Integer.valueOf(3), ids.get(0));
+        assertEquals(Integer.valueOf(17), ids.get(1));
+
+        it = page.iterator(new int[] { 0 }, new TupleDesc(new Type[] { Type.INT_TYPE }),
+                Collections.<Predicate>emptyList());
+        int n = 0;
+        for (; it.hasNext(); it.next())
+            n++;
+        assertEquals(16, n);
+    }
+
+    /**
+     * Inserts fill the empty slots, deletes empty them, and the page keeps
+     * its before image
+     */
+    @Test public void insertDelete() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        int slots = page.getNumEmptySlots();
+        assertEquals(BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1), slots);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < slots; i++) {
+            Tuple t = tuple(i);
+            page.insertTuple(t);
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+            tuples.add(t);
+        }
+        assertEquals(0, page.getNumEmptySlots());
+        page.deleteTuple(tuples.get(3));
+        assertFalse(page.isSlotUsed(3));
+        Tuple t = tuple(100);
+        page.insertTuple(t);
+        assertEquals(new RecordId(pid, 3), t.getRecordId());
+
+        assertEquals(slots, page.getBeforeImage().getNumEmptySlots());
+        page.setBeforeImage();
+        assertEquals(0, page.getBeforeImage().getNumEmptySlots());
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < slots; i++)
+            assertTrue(TestUtil.compareTuples(i == 3 ? t : tuples.get(i), it.next()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxPageTest.class);
+    }
+}
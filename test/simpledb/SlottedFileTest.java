@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+            new String[] { "id", "code" });
+
+    private SlottedFile file;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
+        file = new SlottedFile(f, TD);
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField("C" + (id % 100), Type.STRING_LEN));
+        return t;
+    }
+
+    private void insert(int from, int to) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = from; i < to; i++)
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return the sorted ids of the table, checking the codes too */
+    private ArrayList<Integer> scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, file.getId(), "");
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals("C" + (id % 100), ((StringField) t.getField(1)).getValue());
+            ids.add(id);
+        }
+        ss.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Tuples with short strings take a fraction of the pages of a heap
+     * file; space freed by deletes is used again, and aborted inserts are
+     * rolled back
+     */
+    @Test public void insertDeleteScan() throws Exception {
+        insert(0, 3000);
+        ArrayList<Integer> ids = scan();
+        assertEquals(3000, ids.size());
+        assertEquals(Integer.valueOf(2999), ids.get(2999));
+        int heapPages = 3000 / (BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1)) + 1;
+        int pages = file.numPages();
+        assertTrue(pages * 5 < heapPages);
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, file.getId(), "");
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            if (((IntField) t.getField(0)).getValue() % 2 == 0)
+                doomed.add(t);
+        }
+        ss.close();
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1500, scan().size());
+
+        // the room left by the deletes takes the new tuples
+        insert(3000, 4400);
+        assertEquals(2900, scan().size());
+        assertEquals(pages, file.numPages());
+
+        tid = new TransactionId();
+        for (int i = 5000; i < 5100; i++)
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(2900, scan().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedFileTest.class);
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+            new String[] { "id", "code" });
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String code) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(code, Type.STRING_LEN));
+        return t;
+    }
+
+    private static ArrayList<Integer> ids(SlottedPage page) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            ids.add(((IntField) it.next().getField(0)).getValue());
+        return ids;
+    }
+
+    /**
+     * Records take the bytes of their values: a page holds many more
+     * tuples with short strings than a HeapPage does
+     */
+    @Test public void insertAndRead() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        assertEquals(0, page.getNumTuples());
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, "FR"))) {
+            Tuple t = tuple(n, "FR");
+            page.insertTuple(t);
+            assertEquals(new RecordId(pid, n), t.getRecordId());
+            n++;
+        }
+        // 4 + 4 + 2 bytes of record and 8 of slot per tuple
+        assertEquals((BufferPool.getPageSize() - SlottedPage.HEADER_SIZE) / 18, n);
+        assertTrue(n > 5 * (BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1)));
+        try {
+            page.insertTuple(tuple(n, "FR"));
+            throw new Exception("page should be full; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+
+        Tuple t = page.getTuple(7);
+        assertEquals(7, ((IntField) t.getField(0)).getValue());
+        assertEquals("FR", ((StringField) t.getField(1)).getValue());
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertEquals(n, copy.getNumTuples());
+        assertEquals(ids(page), ids(copy));
+    }
+
+    /**
+     * Deletes compact the page: the free space is one gap again, the other
+     * tuples keep their slots, and freed slots are reused
+     */
+    @Test public void deleteCompacts() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        Tuple[] tuples = new Tuple[5];
+        String[] codes = { "a", "bbbbbbbbbbbbbbbbbbbb", "cc", "dddd", "eeeeeeeeee" };
+        for (int i = 0; i < tuples.length; i++) {
+            tuples[i] = tuple(i, codes[i]);
+            page.insertTuple(tuples[i]);
+        }
+        int free = page.getFreeSpace();
+        page.deleteTuple(tuples[1]);
+        assertEquals(free + SlottedPage.recordLength(tuples[1]), page.getFreeSpace());
+        assertEquals(null, page.getTuple(1));
+        assertEquals(Arrays.asList(0, 2, 3, 4), ids(page));
+        assertEquals("dddd", ((StringField) page.getTuple(3).getField(1)).getValue());
+
+        Tuple t = tuple(9, "zz");
+        page.insertTuple(t);
+        assertEquals(1, t.getRecordId().getTupleNumber());
+        assertEquals(5, page.getNumSlots());
+
+        // empty slots at the end of the directory are dropped
+        page.deleteTuple(tuples[4]);
+        page.deleteTuple(tuples[3]);
+        assertEquals(3, page.getNumSlots());
+        page.deleteTuple(tuples[0]);
+        page.deleteTuple(t);
+        page.deleteTuple(tuples[2]);
+        assertEquals(0, page.getNumSlots());
+        assertTrue(Arrays.equals(SlottedPage.createEmptyPageData(), page.getPageData()));
+
+        try {
+            page.deleteTuple(tuples[2]);
+            throw new Exception("slot should be empty; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+    }
+
+    /**
+     * As for HeapPages, the first change goes to a copy and leaves the
+     * before image alone
+     */
+    @Test public void beforeImage() throws Exception {
+        byte[] data = SlottedPage.createEmptyPageData();
+        SlottedPage page = new SlottedPage(pid, data);
+        page.insertTuple(tuple(1, "x"));
+        assertTrue(Arrays.equals(SlottedPage.createEmptyPageData(), data));
+        assertEquals(0, page.getBeforeImage().getNumTuples());
+        page.setBeforeImage();
+        page.insertTuple(tuple(2, "y"));
+        assertEquals(1, page.getBeforeImage().getNumTuples());
+        assertEquals(2, page.getNumTuples());
+        assertFalse(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  /**
+   * Limit returns the first tuples of its child and reads no further
+   */
+  @Test public void limit() throws Exception {
+    OpIterator child = TestUtil.createTupleList(1, new int[] { 5, 4, 3, 2, 1 });
+    Limit op = new Limit(2, child);
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 5, 4 }), op);
+    assertEquals(3, ((IntField) child.next().getField(0)).getValue());
+    op.rewind();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 5, 4 }), op);
+    op.close();
+
+    op = new Limit(0, TestUtil.createTupleList(1, new int[] { 5, 4 }));
+    op.open();
+    assertFalse(op.hasNext());
+    op.close();
+
+    op = new Limit(10, TestUtil.createTupleList(1, new int[] { 5, 4 }));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(1, new int[] { 5, 4 }), op);
+    op.close();
+  }
+
+  /**
+   * TopN gives exactly what a full sort cut off by a Limit gives, ties in
+   * the same order, for limits below, at and above the size of the child
+   */
+  @Test public void sameAsSortAndLimit() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, 50, null, null);
+    TransactionId tid = new TransactionId();
+    int[][] keys = { { 0 }, { 1, 2 } };
+    boolean[][] ascs = { { true }, { false, true } };
+    for (int k = 0; k < keys.length; k++) {
+      for (int n : new int[] { 0, 1, 10, 500, 2000, 3000 }) {
+        TopN topN = new TopN(keys[k], ascs[k], n, new SeqScan(tid, f.getId(), ""));
+        Limit expected = new Limit(n, new OrderBy(keys[k], ascs[k],
+            new SeqScan(tid, f.getId(), "")));
+        topN.open();
+        expected.open();
+        TestUtil.compareDbIterators(expected, topN);
+        topN.rewind();
+        expected.rewind();
+        TestUtil.compareDbIterators(expected, topN);
+        topN.close();
+        expected.close();
+      }
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * LIMIT is parsed, and ORDER BY with LIMIT is planned as a TopN
+   */
+  @Test public void parser() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, 20, null, tuples, "c");
+    Database.getCatalog().addTable(f, "T");
+    TableStats.setTableStats("T", new TableStats(f.getId(), 1));
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    LogicalPlan lp = p.generateLogicalPlan(tid,
+        "SELECT * FROM T ORDER BY T.c1 DESC LIMIT 5;");
+    assertEquals(5, lp.getLimit());
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+    plan.open();
+    int count = 0;
+    int last = Integer.MAX_VALUE;
+    while (plan.hasNext()) {
+      int v = ((IntField) plan.next().getField(1)).getValue();
+      assertTrue(v <= last);
+      last = v;
+      count++;
+    }
+    assertEquals(5, count);
+    plan.close();
+
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM T WHERE T.c0 > 0 limit 7 ;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+
+    lp = p.generateLogicalPlan(tid, "SELECT * FROM T;");
+    assertEquals(-1, lp.getLimit());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static int count(DbFile f) throws Exception {
+    TransactionId tid = new TransactionId();
+    DbFileIterator it = f.iterator(tid);
+    int n = 0;
+    it.open();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    Database.getBufferPool().transactionComplete(tid);
+    return n;
+  }
+
+  /**
+   * LIMIT limits the SELECT of an INSERT, and is rejected in a DELETE
+   * rather than ignored
+   */
+  @Test public void limitInInsertAndDelete() throws Exception {
+    HeapFile t = SystemTestUtil.createRandomHeapFile(2, 100, 20, null, null, "c");
+    HeapFile u = SystemTestUtil.createRandomHeapFile(2, 0, 20, null, null, "c");
+    Database.getCatalog().addTable(t, "T");
+    Database.getCatalog().addTable(u, "U");
+    TableStats.setTableStats("T", new TableStats(t.getId(), 1));
+    TableStats.setTableStats("U", new TableStats(u.getId(), 1));
+    // start from a pool without the pages the stats were computed from
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    Parser p = new Parser();
+
+    p.processNextStatement("INSERT INTO U SELECT * FROM T WHERE T.c0 >= 0 LIMIT 7;");
+    assertEquals(7, count(u));
+    p.processNextStatement("DELETE FROM T WHERE T.c0 >= 0 LIMIT 3;");
+    assertEquals(100, count(t));
+    p.processNextStatement("INSERT INTO U VALUES (1, 2) LIMIT 1;");
+    assertEquals(7, count(u));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * The batch paths of the operators give the same results as their tuple
+ * at a time paths.
+ */
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    private HeapFile a;
+    private HeapFile b;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        // a spans several pages and several batches; small values so there
+        // are plenty of join matches and groups
+        a = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null, null);
+        b = SystemTestUtil.createRandomHeapFile(2, 700, 50, null, null);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Compare op read tuple by tuple with same read a batch at a time. */
+    private void assertSameResults(OpIterator op, BatchOpIterator same) throws Exception {
+        op.open();
+        OpIterator batched = TupleBatch.tuples(same);
+        batched.open();
+        TestUtil.compareDbIterators(op, batched);
+        batched.rewind();
+        op.rewind();
+        TestUtil.compareDbIterators(op, batched);
+        batched.close();
+        op.close();
+    }
+
+    @Test public void seqScan() throws Exception {
+        SeqScan scan = new SeqScan(tid, a.getId(), "a");
+        scan.open();
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null) {
+            assertTrue(batch.numRows() > 0);
+            assertTrue(batch.numRows() <= TupleBatch.DEFAULT_SIZE);
+            assertNull(batch.getSelection());
+            for (int i = 0; i < batch.numRows(); i++) {
+                assertNotNull(batch.getRecordId(batch.row(i)));
+            }
+            rows += batch.numRows();
+        }
+        scan.close();
+        assertEquals(3000, rows);
+
+        assertSameResults(new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, a.getId(), "a"));
+    }
+
+    @Test public void filter() throws Exception {
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(20));
+            assertSameResults(new Filter(p, new SeqScan(tid, a.getId(), "a")),
+                    new Filter(p, new SeqScan(tid, a.getId(), "a")));
+        }
+        // stacked filters narrow the same selection vector
+        Predicate lo = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(10));
+        Predicate hi = new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(30));
+        assertSameResults(new Filter(hi, new Filter(lo, new SeqScan(tid, a.getId(), "a"))),
+                new Filter(hi, new Filter(lo, new SeqScan(tid, a.getId(), "a"))));
+    }
+
+    /** Tuple-only children are read into batches, string columns included. */
+    @Test public void filterStrings() throws Exception {
+        Object[] data = new Object[] { 1, "apple", 2, "banana", 3, "cherry", 4, "grape" };
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new StringField("an", Type.STRING_LEN));
+            assertSameResults(new Filter(p, TestUtil.createTupleList(2, data)),
+                    new Filter(p, TestUtil.createTupleList(2, data)));
+        }
+        Filter like = new Filter(new Predicate(1, Predicate.Op.LIKE,
+                new StringField("an", Type.STRING_LEN)), TestUtil.createTupleList(2, data));
+        like.open();
+        TupleBatch batch = like.nextBatch();
+        assertEquals(1, batch.numRows());
+        assertEquals("banana", batch.getString(1, batch.row(0)));
+        assertEquals(2, batch.getInt(0, batch.row(0)));
+        assertNull(like.nextBatch());
+        like.close();
+    }
+
+    @Test public void project() throws Exception {
+        ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(25));
+        assertSameResults(new Project(fields, types, new Filter(p, new SeqScan(tid, a.getId(), "a"))),
+                new Project(fields, types, new Filter(p, new SeqScan(tid, a.getId(), "a"))));
+    }
+
+    @Test public void aggregate() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+            Aggregate agg = new Aggregate(new SeqScan(tid, a.getId(), "a"), 1, 0, op);
+            agg.open();
+            ArrayList<Tuple> expected = new ArrayList<Tuple>();
+            // reference: group the scan by hand
+            int[] min = new int[51], max = new int[51], sum = new int[51], count = new int[51];
+            SeqScan scan = new SeqScan(tid, a.getId(), "a");
+            scan.open();
+            while (scan.hasNext()) {
+                Tuple t = scan.next();
+                int g = ((IntField) t.getField(0)).getValue();
+                int v = ((IntField) t.getField(1)).getValue();
+                min[g] = count[g] == 0 ? v : Math.min(min[g], v);
+                max[g] = count[g] == 0 ? v : Math.max(max[g], v);
+                sum[g] += v;
+                count[g]++;
+            }
+            scan.close();
+            int groups = 0;
+            for (int g = 0; g <= 50; g++) {
+                if (count[g] > 0) {
+                    groups++;
+                }
+            }
+            int rows = 0;
+            TupleBatch batch;
+            while ((batch = agg.nextBatch()) != null) {
+                for (int i = 0; i < batch.numRows(); i++) {
+                    int r = batch.row(i);
+                    int g = batch.getInt(0, r);
+                    int want = op == Aggregator.Op.MIN ? min[g] : op == Aggregator.Op.MAX ? max[g]
+                            : op == Aggregator.Op.SUM ? sum[g] : op == Aggregator.Op.AVG
+                            ? sum[g] / count[g] : count[g];
+                    assertEquals(want, batch.getInt(1, r));
+                    rows++;
+                }
+            }
+            agg.close();
+            assertEquals(groups, rows);
+        }
+    }
+
+    @Test public void hashEquiJoin() throws Exception {
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        assertSameResults(new HashEquiJoin(p, new SeqScan(tid, a.getId(), "a"),
+                        new SeqScan(tid, b.getId(), "b")),
+                new HashEquiJoin(p, new SeqScan(tid, a.getId(), "a"),
+                        new SeqScan(tid, b.getId(), "b")));
+
+        // with a filter below and batches of exactly DEFAULT_SIZE rows out
+        HashEquiJoin j = new HashEquiJoin(p, new SeqScan(tid, a.getId(), "a"),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(40)),
+                        new SeqScan(tid, b.getId(), "b")));
+        j.open();
+        TupleBatch batch;
+        while ((batch = j.nextBatch()) != null) {
+            assertTrue(batch.numRows() <= TupleBatch.DEFAULT_SIZE);
+            for (int i = 0; i < batch.numRows(); i++) {
+                int r = batch.row(i);
+                assertEquals(batch.getInt(1, r), batch.getInt(3, r));
+                assertTrue(batch.getInt(4, r) > 40);
+            }
+        }
+        j.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
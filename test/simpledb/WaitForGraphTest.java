@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class WaitForGraphTest extends SimpleDbTestBase {
+    private WaitForGraph g;
+    private TransactionId t1, t2, t3;
+
+    @Before public void createGraph() {
+        g = new WaitForGraph();
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    @Test public void noCycle() {
+        g.setWaitsFor(t1, Arrays.asList(t2));
+        g.setWaitsFor(t2, Arrays.asList(t3));
+        assertNull(g.findCycle(t1));
+        assertNull(g.findCycle(t2));
+        assertNull(g.findCycle(t3));
+    }
+
+    @Test public void cycle() {
+        g.setWaitsFor(t1, Arrays.asList(t2));
+        g.setWaitsFor(t2, Arrays.asList(t3));
+        g.setWaitsFor(t3, Arrays.asList(t1));
+        List<TransactionId> cycle = g.findCycle(t3);
+        assertEquals(Arrays.asList(t3, t1, t2), cycle);
+    }
+
+    @Test public void selfEdgesIgnored() {
+        // a lock upgrade waits for the other shared holders only
+        g.setWaitsFor(t1, Arrays.asList(t1, t2));
+        assertNull(g.findCycle(t1));
+        g.addEdge(t2, t2);
+        assertNull(g.findCycle(t2));
+    }
+
+    @Test public void removedEdgesBreakCycles() {
+        g.setWaitsFor(t1, Arrays.asList(t2));
+        g.setWaitsFor(t2, Arrays.asList(t1));
+        g.removeEdge(t2, t1);
+        assertNull(g.findCycle(t1));
+
+        g.setWaitsFor(t2, Arrays.asList(t1));
+        g.removeWaiter(t1);
+        assertNull(g.findCycle(t2));
+    }
+
+    @Test public void addEdgeOnlyForWaiters() {
+        // t1 is not blocked, so it cannot start waiting for anybody
+        g.addEdge(t1, t2);
+        g.setWaitsFor(t2, Arrays.asList(t1));
+        assertNull(g.findCycle(t2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitForGraphTest.class);
+    }
+}
@@ -113,6 +113,64 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /**
+     * Groups that don't fit in the operator memory are spilled to partitions,
+     * and partitions that still don't fit are split again
+     */
+    @Test public void testSpill() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20000, 5000, null, createdTuples);
+        ArrayList<ArrayList<Integer>> expected =
+                aggregate(createdTuples, Aggregator.Op.SUM, 1, 0);
+        try {
+            // room for 40 groups
+            BufferPool.setOperatorMemory(40 * (4 + 8 + 8 + 8 + 4));
+            validateAggregate(table, Aggregator.Op.SUM, 1, 0, expected);
+        } finally {
+            BufferPool.resetOperatorMemory();
+        }
+    }
+
+    /**
+     * Several aggregates over groups of two fields, spilled
+     */
+    @Test public void testMultipleGroupFields() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 5000, 40, null, createdTuples);
+        HashMap<ArrayList<Integer>, int[]> groups = new HashMap<ArrayList<Integer>, int[]>();
+        for (ArrayList<Integer> t : createdTuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>(t.subList(0, 2));
+            int[] acc = groups.get(key);
+            if (acc == null) {
+                acc = new int[] { 0, Integer.MAX_VALUE };
+                groups.put(key, acc);
+            }
+            acc[0]++;
+            acc[1] = Math.min(acc[1], t.get(2));
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<ArrayList<Integer>, int[]> e : groups.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>(e.getKey());
+            result.add(e.getValue()[0]);
+            result.add(e.getValue()[1]);
+            expected.add(result);
+        }
+
+        TransactionId tid = new TransactionId();
+        try {
+            BufferPool.setOperatorMemory(4096);
+            Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""),
+                    new int[] { 2, 2 }, new int[] { 0, 1 },
+                    new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MIN });
+            SystemTestUtil.matchTuples(ag, expected);
+        } finally {
+            BufferPool.resetOperatorMemory();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
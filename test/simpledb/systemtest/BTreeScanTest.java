@@ -282,6 +282,78 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    private static boolean hasIndexScan(OpIterator it) {
+        if (it instanceof BTreeScan)
+            return ((BTreeScan) it).getIndexPredicate() != null;
+        if (it instanceof Operator)
+            for (OpIterator child : ((Operator) it).getChildren())
+                if (hasIndexScan(child))
+                    return true;
+        return false;
+    }
+
+    /**
+     * The planner searches the B+ tree for a selective filter on its key,
+     * and scans the table otherwise; an index nested loops join probes
+     * through a searched inner table too.
+     */
+    @Test public void testAccessPath() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        // the same file, with column names the parser can resolve
+        BTreeFile f = new BTreeFile(bf.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, "IX", "c0");
+        TableStats stats = new TableStats(f.getId(), 1000);
+        TableStats.setTableStats("IX", stats);
+        assertTrue(stats.estimateIndexScanCost(0, Op.EQUALS, new IntField(5))
+                < stats.estimateScanCost());
+        assertEquals(Double.POSITIVE_INFINITY,
+                stats.estimateIndexScanCost(1, Op.EQUALS, new IntField(5)), 0);
+        assertEquals(Double.POSITIVE_INFINITY,
+                stats.estimateIndexScanCost(0, Op.NOT_EQUALS, new IntField(5)), 0);
+
+        int key = tuples.get(r.nextInt(tuples.size())).get(0);
+        String[] queries = {
+                "SELECT * FROM IX t WHERE t.c0 = " + key + ";",
+                "SELECT * FROM IX t WHERE t.c0 > 10;",
+                "SELECT * FROM IX t WHERE t.c1 = " + key + ";" };
+        Op[] ops = { Op.EQUALS, Op.GREATER_THAN, null };
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < queries.length; i++) {
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> t : tuples)
+                if (ops[i] == null ? t.get(1) == key
+                        : new IntField(t.get(0)).compare(ops[i], new IntField(i == 0 ? key : 10)))
+                    expected.add(t);
+            OpIterator plan = new Parser().generateLogicalPlan(tid, queries[i])
+                    .physicalPlan(tid, TableStats.getStatsMap(), false);
+            // only the point lookup is cheaper through the index
+            assertEquals(i == 0, hasIndexScan(plan));
+            SystemTestUtil.matchTuples(plan, expected);
+        }
+
+        int bound = 30000;
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : tuples) {
+            if (t1.get(0) >= 3000)
+                continue;
+            for (ArrayList<Integer> t2 : tuples) {
+                if (t1.get(1).equals(t2.get(0)) && t2.get(0) < bound) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        assertTrue(expected.size() > 0);
+        JoinPredicate p = new JoinPredicate(1, Op.EQUALS, 0);
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(p,
+                new BTreeScan(tid, f.getId(), "t1", new IndexPredicate(Op.LESS_THAN, new IntField(3000))),
+                new BTreeScan(tid, f.getId(), "t2", new IndexPredicate(Op.LESS_THAN, new IntField(bound))));
+        SystemTestUtil.matchTuples(join, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
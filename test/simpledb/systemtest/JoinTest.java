@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 import simpledb.*;
@@ -13,6 +16,13 @@ public class JoinTest extends SimpleDbTestBase {
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
             throws IOException, DbException, TransactionAbortedException {
+        validateJoin(table1ColumnValue, table1Rows, table2ColumnValue, table2Rows,
+                JoinOptimizer.JoinMethod.NESTED_LOOPS);
+    }
+
+    public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
+            int table2Rows, JoinOptimizer.JoinMethod method)
+            throws IOException, DbException, TransactionAbortedException {
         // Create the two tables
         HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
         columnSpecification.put(0, table1ColumnValue);
@@ -23,8 +33,12 @@ public class JoinTest extends SimpleDbTestBase {
 
         columnSpecification.put(0, table2ColumnValue);
         ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
-        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
-                COLUMNS, table2Rows, columnSpecification, t2Tuples);
+        // an index nested loops join probes a B+ tree on the join field
+        DbFile table2 = method == JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS
+                ? BTreeUtility.createRandomBTreeFile(
+                        COLUMNS, table2Rows, columnSpecification, t2Tuples, 0)
+                : SystemTestUtil.createRandomHeapFile(
+                        COLUMNS, table2Rows, columnSpecification, t2Tuples);
         assert t2Tuples.size() == table2Rows;
 
         // Generate the expected results
@@ -45,7 +59,23 @@ public class JoinTest extends SimpleDbTestBase {
         SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
         SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
         JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
-        Join joinOp = new Join(p, ss1, ss2);
+        Operator joinOp;
+        switch (method) {
+        case SORT_MERGE:
+            joinOp = new SortMergeJoin(p, ss1, ss2);
+            break;
+        case INDEX_NESTED_LOOPS:
+            joinOp = new IndexNestedLoopJoin(p, ss1, ss2);
+            break;
+        case HASH:
+            joinOp = new HashEquiJoin(p, ss1, ss2);
+            break;
+        case PARALLEL_HASH:
+            joinOp = new ParallelHashJoin(p, ss1, ss2, 4);
+            break;
+        default:
+            joinOp = new Join(p, ss1, ss2);
+        }
 
         // test the join results
         SystemTestUtil.matchTuples(joinOp, expectedResults);
@@ -69,6 +99,214 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /** The outer table spans more than one block of Join. */
+    @Test public void testMultipleBlocks()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, Join.BLOCK_SIZE + 10, 1, 3);
+    }
+
+    @Test public void testSortMerge()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 1, 1, 1, JoinOptimizer.JoinMethod.SORT_MERGE);
+        validateJoin(1, 2, 2, 10, JoinOptimizer.JoinMethod.SORT_MERGE);
+        validateJoin(1, 3, 1, 3, JoinOptimizer.JoinMethod.SORT_MERGE);
+    }
+
+    /**
+     * Sides larger than the operator memory are sorted in runs on disk,
+     * and every match is still found, also after a rewind.
+     */
+    @Test public void testSortMergeSpills()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 2000, 1000, null, t2Tuples);
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(1).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        BufferPool.setOperatorMemory(3 * BufferPool.getPageSize());
+        try {
+            TransactionId tid = new TransactionId();
+            JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+            SortMergeJoin joinOp = new SortMergeJoin(p,
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+            joinOp.open();
+            while (joinOp.hasNext())
+                joinOp.next();
+            joinOp.rewind();
+            int count = 0;
+            while (joinOp.hasNext()) {
+                joinOp.next();
+                count++;
+            }
+            assertEquals(expectedResults.size(), count);
+            joinOp.close();
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            BufferPool.resetOperatorMemory();
+        }
+    }
+
+    @Test public void testIndexNestedLoops()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 1, 1, 1, JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS);
+        validateJoin(1, 2, 2, 10, JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS);
+        validateJoin(1, 3, 1, 3, JoinOptimizer.JoinMethod.INDEX_NESTED_LOOPS);
+    }
+
+    /**
+     * Outer tuples are probed in sorted batches, which find every match and
+     * mostly search on from the last leaf rather than from the root.
+     */
+    @Test public void testIndexNestedLoopsBatches()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, IndexNestedLoopJoin.BATCH_SIZE + 1000, 30000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(
+                COLUMNS, 20000, 30000, null, t2Tuples, 0);
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(1).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(p,
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+        joinOp.open();
+        ArrayList<ArrayList<Integer>> copy = new ArrayList<ArrayList<Integer>>(expectedResults);
+        while (joinOp.hasNext()) {
+            assertTrue(copy.remove(SystemTestUtil.tupleToList(joinOp.next())));
+        }
+        assertTrue(copy.isEmpty());
+        assertTrue(joinOp.internalPagesRead() < t1Tuples.size() / 10);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Workers sharing the build and the probe find every match once, also
+     * after a rewind.
+     */
+    @Test public void testParallelHash()
+            throws IOException, DbException, TransactionAbortedException {
+        validateJoin(1, 1, 1, 1, JoinOptimizer.JoinMethod.PARALLEL_HASH);
+        validateJoin(1, 2, 2, 10, JoinOptimizer.JoinMethod.PARALLEL_HASH);
+        validateJoin(1, 3, 1, 3, JoinOptimizer.JoinMethod.PARALLEL_HASH);
+
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 1000, 1000, null, t2Tuples);
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(1).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        ParallelHashJoin joinOp = new ParallelHashJoin(p,
+                new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""), 4);
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+
+        joinOp.open();
+        while (joinOp.hasNext())
+            joinOp.next();
+        joinOp.rewind();
+        int count = 0;
+        while (joinOp.hasNext()) {
+            joinOp.next();
+            count++;
+        }
+        assertEquals(expectedResults.size(), count);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Every outer tuple has the same key, so partitioning can't split it. */
+    @Test public void testHashSkewed()
+            throws IOException, DbException, TransactionAbortedException {
+        try {
+            BufferPool.setOperatorMemory(100);
+            validateJoin(1, 300, 1, 20, JoinOptimizer.JoinMethod.HASH);
+            validateJoin(1, 300, 2, 20, JoinOptimizer.JoinMethod.HASH);
+        } finally {
+            BufferPool.resetOperatorMemory();
+        }
+    }
+
+    /**
+     * A hash join whose outer side doesn't fit in memory partitions both
+     * sides to disk, and gives the same result tuple at a time and in batches.
+     */
+    @Test public void testHashSpill()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 3000, 1000, null, t1Tuples);
+        ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 1000, 1000, null, t2Tuples);
+        ArrayList<ArrayList<Integer>> expectedResults = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : t1Tuples) {
+            for (ArrayList<Integer> t2 : t2Tuples) {
+                if (t1.get(1).equals(t2.get(0))) {
+                    ArrayList<Integer> out = new ArrayList<Integer>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(1, Predicate.Op.EQUALS, 0);
+        try {
+            // room for 100 outer tuples, so partitions are split twice
+            BufferPool.setOperatorMemory(800);
+            HashEquiJoin joinOp = new HashEquiJoin(p,
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), ""));
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+            joinOp.close();
+
+            OpIterator batched = TupleBatch.tuples(new HashEquiJoin(p,
+                    new SeqScan(tid, table1.getId(), ""), new SeqScan(tid, table2.getId(), "")));
+            SystemTestUtil.matchTuples(batched, expectedResults);
+            batched.close();
+        } finally {
+            BufferPool.resetOperatorMemory();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -427,6 +427,36 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestDeltaRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1); // first update of the page: full images
+        long fullBytes = Database.getLogFile().getCurrentLsn();
+
+        long before = Database.getLogFile().getCurrentLsn();
+        doInsert(hf1, 2, -1); // same page again: a delta
+        long deltaBytes = Database.getLogFile().getCurrentLsn() - before;
+        assertEquals(1, Database.getLogFile().getDeltaRecordCount());
+        assertTrue("delta record too big: " + deltaBytes,
+                deltaBytes * 10 < fullBytes);
+
+        // redo the delta on top of the full image, undo an aborted one
+        dontInsert(hf1, 3, -1);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 4, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
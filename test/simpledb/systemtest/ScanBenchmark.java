@@ -0,0 +1,60 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import simpledb.*;
+
+/**
+ * Times full SeqScans of a heap file with page reads served by read calls
+ * and by a memory mapping of the file ({@link HeapFile#setMemoryMapped}).
+ * Every scan starts with an empty buffer pool, so every page is read from
+ * the file (which stays in the operating system's page cache).
+ * <p>
+ * Usage: ScanBenchmark [rows [columns [scans]]]
+ */
+public class ScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int scans = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        File file = SystemTestUtil.createRandomHeapFileUnopened(columns, rows,
+                Integer.MAX_VALUE, null, new ArrayList<ArrayList<Integer>>());
+        HeapFile table = Utility.openHeapFile(columns, file);
+        System.out.println(rows + " rows, " + table.numPages() + " pages");
+
+        // warm up both paths before timing either
+        for (boolean mapped : new boolean[] { false, true, false, true }) {
+            table.setMemoryMapped(mapped);
+            long ns = time(table, scans);
+            System.out.printf("%-12s %8.2f ms/scan%n", mapped ? "mmap" : "read calls",
+                    ns / 1e6 / scans);
+        }
+        file.delete();
+    }
+
+    /** @return the nanoseconds scans full scans of table take */
+    private static long time(HeapFile table, int scans) throws Exception {
+        long total = 0;
+        for (int i = 0; i < scans; i++) {
+            Database.resetBufferPool(table.numPages() + 1);
+            TransactionId tid = new TransactionId();
+            SeqScan scan = new SeqScan(tid, table.getId(), "");
+            long start = System.nanoTime();
+            scan.open();
+            int n = 0;
+            while (scan.hasNext()) {
+                scan.next();
+                n++;
+            }
+            scan.close();
+            total += System.nanoTime() - start;
+            Database.getBufferPool().transactionComplete(tid);
+            if (n == 0 && table.numPages() > 0)
+                throw new RuntimeException("scan returned no tuples");
+        }
+        return total;
+    }
+}
@@ -71,19 +71,19 @@ public class ScanTest extends SimpleDbTestBase {
      * @throws TransactionAbortedException
      * @throws DbException */
     @Test public void testCache() throws IOException, DbException, TransactionAbortedException {
-        /** Counts the number of readPage operations. */
+        /** Counts the number of readPage operations, including read-ahead. */
         class InstrumentedHeapFile extends HeapFile {
             public InstrumentedHeapFile(File f, TupleDesc td) {
                 super(f, td);
             }
 
             @Override
-            public Page readPage(PageId pid) throws NoSuchElementException {
+            public synchronized Page readPage(PageId pid) throws NoSuchElementException {
                 readCount += 1;
                 return super.readPage(pid);
             }
 
-            public int readCount = 0;
+            public volatile int readCount = 0;
         }
 
         // Create the table
@@ -104,6 +104,61 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** A sequential scan reads pages ahead of its position. */
+    @Test public void testReadAhead() throws Exception {
+        final int PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992*PAGES, 1000, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "table");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            assertEquals(tuples.get(count), SystemTestUtil.tupleToList(scan.next()));
+            // a slow consumer, so the readers get ahead
+            if (++count % 200 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(tuples.size(), count);
+        assertTrue(bp.getPrefetchCount() > 0);
+        // every page was read exactly once, by the scan or ahead of it
+        assertEquals(PAGES, bp.getMissCount() + bp.getPrefetchCount());
+    }
+
+    /** Scans of a memory mapped table see the same tuples, also after the
+     * table grows. */
+    @Test public void testMemoryMapped() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, tuples);
+        f.setMemoryMapped(true);
+        assertTrue(f.isMemoryMapped());
+        SystemTestUtil.matchTuples(f, tuples);
+
+        // fill the last page and add a new one past the mapped region
+        int pages = f.numPages();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 600; i++) {
+            Tuple t = new Tuple(f.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            Database.getBufferPool().insertTuple(tid, f.getId(), t);
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(-i);
+            tuples.add(row);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(f.numPages() > pages);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);